@@ -0,0 +1,94 @@
+package com.recoveryrecord.surveyandroid.condition;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.recoveryrecord.surveyandroid.Answer;
+import com.recoveryrecord.surveyandroid.MapAnswerProvider;
+import com.recoveryrecord.surveyandroid.question.Question;
+import com.recoveryrecord.surveyandroid.question.QuestionsWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Every showIf of the bundled SurveyQuestions.json evaluated once, as FilteredQuestions does when it
+// is built: by the compiled trees and by the interpreter they replaced.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConditionBenchmark {
+    private final MapAnswerProvider answerProvider = new MapAnswerProvider();
+    private final Map<String, Answer> answers = answerProvider.answers;
+    private final List<Condition> showIfs = new ArrayList<>();
+    private ReferenceConditionEvaluator reference;
+
+    @Setup
+    public void setUp() throws IOException {
+        ObjectMapper mapper = new ObjectMapper()
+                .enable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        InputStream in = ConditionBenchmark.class.getResourceAsStream("/SurveyQuestions.json");
+        QuestionsWrapper wrapper;
+        try {
+            wrapper = mapper.readValue(in, QuestionsWrapper.class);
+        } finally {
+            in.close();
+        }
+        addShowIfs(wrapper.questions);
+        // the first showIf is met, the question the others look at isn't answered
+        for (Condition condition : showIfs) {
+            if (condition instanceof SimpleCondition) {
+                SimpleCondition met = (SimpleCondition) condition;
+                answers.put(met.id, new Answer(met.value));
+                break;
+            }
+        }
+        reference = new ReferenceConditionEvaluator(answerProvider);
+    }
+
+    private void addShowIfs(List<Question> questions) {
+        if (questions == null) {
+            return;
+        }
+        for (Question question : questions) {
+            showIfs.add(question.showIf);
+            if (question.showIf != null) {
+                question.showIf.compiled();
+            }
+            addShowIfs(question.subQuestions);
+        }
+    }
+
+    @Benchmark
+    public int compiled() {
+        int met = 0;
+        for (Condition condition : showIfs) {
+            if (condition == null || condition.compiled().isMet(answerProvider, null)) {
+                met++;
+            }
+        }
+        return met;
+    }
+
+    @Benchmark
+    public int reference() {
+        int met = 0;
+        for (Condition condition : showIfs) {
+            if (reference.isConditionMet(condition)) {
+                met++;
+            }
+        }
+        return met;
+    }
+}
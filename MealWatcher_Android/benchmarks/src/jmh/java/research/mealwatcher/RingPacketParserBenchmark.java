@@ -0,0 +1,104 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring data packets per second through RingPacketParser: PACKETS COBS encoded data packets, cut
+ * into BLE notifications of NOTIFICATION bytes as the ring sends them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RingPacketParserBenchmark {
+    private static final int PACKETS = 1000;
+    private static final int NOTIFICATION = 20;     /* bytes per BLE notification with the default MTU */
+
+    private byte[] stream;
+    private long sum;
+    private final RingPacketParser parser = new RingPacketParser(packet ->
+            sum += RingPacketParser.getLongLE(packet, RingPacketParser.TIMESTAMP_OFFSET));
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] packet = new byte[RingPacketParser.DATA_PACKET_LENGTH];
+        for (int i = 0; i < PACKETS; i++) {
+            random.nextBytes(packet);
+            for (int k = 4; k < packet.length; k += 7) {
+                packet[k] = 0;      /* zeros to encode */
+            }
+            packet[0] = 3;
+            packet[1] = 1;
+            packet[2] = 105;
+            packet[3] = 0;
+            RingPacketParser.putLongLE(packet, RingPacketParser.TIMESTAMP_OFFSET, i * 20_000L);
+            byte[] frame = cobs(packet);
+            out.write(frame, 0, frame.length);
+        }
+        stream = out.toByteArray();
+    }
+
+    /* COBS with the closing 0, as the ring sends it */
+    private static byte[] cobs(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block = new byte[255];
+        int length = 1;
+        for (byte v : data) {
+            if (v == 0) {
+                block[0] = (byte) length;
+                out.write(block, 0, length);
+                length = 1;
+            } else {
+                block[length++] = v;
+                if (length == 255) {
+                    block[0] = (byte) 255;
+                    out.write(block, 0, length);
+                    length = 1;
+                }
+            }
+        }
+        block[0] = (byte) length;
+        out.write(block, 0, length);
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long dataPackets() {
+        for (int offset = 0; offset < stream.length; offset += NOTIFICATION) {
+            parser.accept(stream, offset, Math.min(NOTIFICATION, stream.length - offset));
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The log file writer behind LogFunction.  Callers (BLE, sensor and UI threads) only put the message
+ * on a lock-free queue and return; one writer thread takes everything queued, formats the lines
+ * and writes them in one write, FLUSH_INTERVAL_MS after the first of them or right away for an
+ * error.  While nothing is queued the writer sleeps until log() wakes it.
+ * The lines are the same as before: time,level,source,content with time as yyyy-MM-dd-HH-mm-ss-SSS
+ * in the device's time zone.  The time is taken when the message is logged, not when it is
+ * written, and the formatted date and time is reused for all messages in the same second.
+ * *
+ * Messages below the minimum level are dropped at once.  Messages logged while no file is open
+ * wait in the queue for the next one, up to MAX_PENDING messages; after that they are dropped
+ * and counted.
+ */
+public class AsyncLog {
+    public static final char DEBUG = 'D', INFO = 'I', ERROR = 'E';
+    public static final long FLUSH_INTERVAL_MS = 250;
+    public static final int MAX_PENDING = 10_000;
+    private static final int BATCH_CHARS = 32 * 1024;
+    private static final DateTimeFormatter SECOND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss-");
+
+    private static class Entry {
+        final long time;
+        final char level;
+        final String source;
+        final String content;
+
+        Entry(long time, char level, String source, String content) {
+            this.time = time;
+            this.level = level;
+            this.source = source;
+            this.content = content;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int minRank = rank(DEBUG);
+    private volatile Thread writer;
+    private volatile boolean idle;      /* the writer sleeps until something is logged */
+    private volatile boolean urgent;    /* an error was logged, write without waiting */
+
+    /* used by the writer only, under the lock */
+    private OutputStream out;
+    private final StringBuilder batch = new StringBuilder(BATCH_CHARS + 1024);
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedPrefix;
+    private long written, batches;
+
+    private static int rank(char level) {
+        return level == DEBUG ? 0 : level == INFO ? 1 : 2;
+    }
+
+    public void setMinLevel(char level) {
+        minRank = rank(level);
+    }
+
+    public boolean isLoggable(char level) {
+        return rank(level) >= minRank;
+    }
+
+    public void log(char level, String source, String content) {
+        if (rank(level) < minRank) {
+            return;
+        }
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Entry(System.currentTimeMillis(), level, source, content));
+        if (level == ERROR) {
+            urgent = true;
+        }
+        Thread w = writer;
+        if (w != null && (idle || level == ERROR)) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    /* appends to file; what was logged before is written to it too */
+    public synchronized void open(File file) throws IOException {
+        open(new FileOutputStream(file, true));
+    }
+
+    synchronized void open(OutputStream stream) throws IOException {
+        if (out != null) {
+            close();
+        }
+        out = stream;
+        if (writer == null) {
+            Thread w = new Thread(this::writeLoop, "AsyncLog");
+            w.setDaemon(true);
+            writer = w;
+            w.start();
+        } else {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /* writes everything logged so far, then closes the file */
+    public synchronized void close() throws IOException {
+        drain();
+        if (out != null) {
+            OutputStream stream = out;
+            out = null;
+            stream.close();
+        }
+    }
+
+    /* writes everything logged so far, on the caller's thread */
+    public synchronized void flush() throws IOException {
+        drain();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            urgent = false;
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (queue.isEmpty()) {
+                idle = true;
+                if (queue.isEmpty()) {  /* log() offers before it looks at idle, so nothing is missed */
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+            if (!urgent) {
+                /* lets the lines of the next FLUSH_INTERVAL_MS pile up into one write */
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS));
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        if (out == null) {
+            return;
+        }
+        int lines = 0;
+        Entry e;
+        try {
+            while ((e = queue.poll()) != null) {
+                pending.decrementAndGet();
+                appendTime(e.time);
+                batch.append(',').append(e.level).append(',').append(e.source).append(',').append(e.content).append('\n');
+                lines++;
+                if (batch.length() >= BATCH_CHARS) {
+                    writeBatch(lines);
+                    lines = 0;
+                }
+            }
+            writeBatch(lines);
+        } finally {
+            if (batch.length() > 0) {
+                dropped.addAndGet(lines);   /* the write failed */
+                batch.setLength(0);
+            }
+        }
+    }
+
+    private void writeBatch(int lines) throws IOException {
+        if (lines == 0) {
+            return;
+        }
+        out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+        batch.setLength(0);
+        written += lines;
+        batches++;
+    }
+
+    private void appendTime(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != cachedSecond) {
+            cachedPrefix = SECOND_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault()));
+            cachedSecond = second;
+        }
+        long ms = Math.floorMod(millis, 1000L);
+        batch.append(cachedPrefix);
+        if (ms < 100) {
+            batch.append('0');
+        }
+        if (ms < 10) {
+            batch.append('0');
+        }
+        batch.append(ms);
+    }
+
+    public synchronized String statsString() {
+        return "written=" + written + " batches=" + batches + " pending=" + pending.get() + " dropped=" + dropped.get();
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Maps a device's sample timestamps (the ring's clock, or the watch's sensor clock) onto the host's
+ * wall clock, following the drift between the two clocks over the whole recording instead of
+ * fixing one offset at the first sample.
+ * *
+ * Every sample gives a pair (device time, host time when it arrived).  host - device is the clock
+ * offset plus the delivery latency, and the latency is never negative, so the smallest value in a
+ * stretch of samples is the best view of the offset.  Samples are grouped into windows of
+ * WINDOW_MS device time and the minimum of each window is kept, for the last MAX_WINDOWS windows.
+ * The offset is fitted as a line over device time through those minima with the Theil-Sen
+ * estimator (median of the slopes between all pairs of points, then median intercept), so a few
+ * windows with only late samples (BLE retries, a busy phone) don't move it.  The slope is the
+ * skew of the device clock.
+ * *
+ * A window whose minimum is more than OFF_FIT_MS off the fit is left out: above it, the link
+ * stalled for the whole window; below it, one of the clocks was set.  OFF_WINDOWS_TO_RESET of
+ * them in a row are a step of a clock (or a stall that doesn't end), and the fit starts over
+ * from them.  A device time going backwards means the device restarted, which starts over too.
+ * Timestamps given back never go backwards, so a fit update can't reorder samples in the file.
+ * Not thread safe, use one instance per stream on the thread that writes it.
+ */
+public class ClockSync {
+    public static final long WINDOW_MS = 10_000;
+    public static final int MAX_WINDOWS = 90;       /* fit over the last 15 min */
+    public static final long OFF_FIT_MS = 50;
+    public static final int OFF_WINDOWS_TO_RESET = 3;
+
+    /* window minima, oldest first from start */
+    private final long[] windowDevice = new long[MAX_WINDOWS];
+    private final long[] windowOffset = new long[MAX_WINDOWS];
+    private final double[] scratch = new double[MAX_WINDOWS * (MAX_WINDOWS - 1) / 2];
+    private int start, windows;
+
+    /* the window being collected */
+    private long currentStart = Long.MIN_VALUE;
+    private long currentDevice, currentOffset;
+
+    /* the fit: offset(device) = intercept + skew * (device - reference) */
+    private boolean fitted;
+    private long reference;
+    private double intercept, skew;
+
+    private long lastDevice = Long.MIN_VALUE;
+    private long lastHost = Long.MIN_VALUE;
+    private int offInRow;
+
+    /* statistics */
+    private long samples, offWindows, resets;
+
+    /* records the pair and gives the device time on the host clock */
+    public long sync(long deviceMs, long hostMs) {
+        observe(deviceMs, hostMs);
+        long host = toHost(deviceMs);
+        if (host < lastHost) {
+            host = lastHost;
+        }
+        lastHost = host;
+        return host;
+    }
+
+    public void observe(long deviceMs, long hostMs) {
+        if (deviceMs < lastDevice) {
+            reset();    /* device clock started over */
+            resets++;
+        }
+        lastDevice = deviceMs;
+        samples++;
+        long offset = hostMs - deviceMs;
+        if (currentStart == Long.MIN_VALUE) {
+            currentStart = deviceMs;
+            currentDevice = deviceMs;
+            currentOffset = offset;
+        } else if (deviceMs - currentStart >= WINDOW_MS) {
+            closeWindow();
+            currentStart = deviceMs;
+            currentDevice = deviceMs;
+            currentOffset = offset;
+        } else if (offset < currentOffset) {
+            currentDevice = deviceMs;
+            currentOffset = offset;
+        }
+    }
+
+    /* the device time on the host clock, by the fit so far */
+    public long toHost(long deviceMs) {
+        if (!fitted) {
+            /* until there are two windows: the smallest offset seen so far */
+            long offset = currentOffset;
+            if (windows > 0) {
+                offset = Math.min(offset, windowOffset[(start + windows - 1) % MAX_WINDOWS]);
+            }
+            return deviceMs + offset;
+        }
+        return deviceMs + Math.round(intercept + skew * (deviceMs - reference));
+    }
+
+    private void closeWindow() {
+        if (fitted) {
+            long predicted = Math.round(intercept + skew * (currentDevice - reference));
+            if (Math.abs(currentOffset - predicted) > OFF_FIT_MS) {
+                offWindows++;
+                if (++offInRow < OFF_WINDOWS_TO_RESET) {
+                    return;
+                }
+                windows = 0;
+                fitted = false;
+                resets++;
+            }
+        }
+        offInRow = 0;
+        if (windows == MAX_WINDOWS) {
+            start = (start + 1) % MAX_WINDOWS;
+            windows--;
+        }
+        int k = (start + windows) % MAX_WINDOWS;
+        windowDevice[k] = currentDevice;
+        windowOffset[k] = currentOffset;
+        windows++;
+        if (windows >= 2) {
+            fit();
+        }
+    }
+
+    /* Theil-Sen line through the window minima */
+    private void fit() {
+        reference = windowDevice[(start + windows - 1) % MAX_WINDOWS];
+        int n = 0;
+        for (int i = 0; i < windows; i++) {
+            int a = (start + i) % MAX_WINDOWS;
+            for (int j = i + 1; j < windows; j++) {
+                int b = (start + j) % MAX_WINDOWS;
+                long dx = windowDevice[b] - windowDevice[a];
+                if (dx != 0) {
+                    scratch[n++] = (double) (windowOffset[b] - windowOffset[a]) / dx;
+                }
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+        skew = median(scratch, n);
+        for (int i = 0; i < windows; i++) {
+            int a = (start + i) % MAX_WINDOWS;
+            scratch[i] = windowOffset[a] - skew * (windowDevice[a] - reference);
+        }
+        intercept = median(scratch, windows);
+        fitted = true;
+    }
+
+    private static double median(double[] values, int n) {
+        Arrays.sort(values, 0, n);
+        return (n & 1) == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+    }
+
+    public void reset() {
+        start = 0;
+        windows = 0;
+        fitted = false;
+        offInRow = 0;
+        currentStart = Long.MIN_VALUE;
+        lastDevice = Long.MIN_VALUE;
+    }
+
+    /* drift of the device clock against the host, parts per million */
+    public double getSkewPpm() {
+        return fitted ? skew * 1e6 : 0;
+    }
+
+    public long getOffset() {
+        return toHost(lastDevice) - lastDevice;
+    }
+
+    public String statsString() {
+        return "samples=" + samples + " windows=" + windows + " offset=" + (lastDevice == Long.MIN_VALUE ? 0 : getOffset())
+                + "ms skew=" + String.format(Locale.US, "%.1f", getSkewPpm()) + "ppm offWindows=" + offWindows + " resets=" + resets;
+    }
+}
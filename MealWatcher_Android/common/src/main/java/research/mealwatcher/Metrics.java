@@ -0,0 +1,210 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms for the capture, transfer and upload paths, written
+ * to the session log as one line every reporting period.
+ * *
+ * Counters only go up and are cheap to bump from any thread (LongAdder).  Gauges are read when
+ * the line is made.  Histograms keep HDR-style buckets: exact below 16, above that 16 buckets per
+ * power of two, so a value is known to within 1/16 (6%) up to 2^40; recording is one atomic add.
+ * Histograms are per period: they are emptied by every snapshot.
+ * *
+ * A snapshot line is "period=60s name=value ..." with names sorted:
+ * *	counter		name=total+rate/s	(rate over the period)
+ * *	gauge		name=value
+ * *	histogram	name=count/p50/p90/p99/max	(nothing recorded: name=0)
+ */
+public class Metrics {
+    public static final long DEFAULT_PERIOD_MS = 60_000;
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB;
+
+    public static class Counter {
+        private final LongAdder total = new LongAdder();
+        private long reported;
+
+        public void inc() {
+            total.increment();
+        }
+
+        public void add(long n) {
+            total.add(n);
+        }
+
+        public long get() {
+            return total.sum();
+        }
+    }
+
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(index(value));
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // another thread raised it meanwhile
+            }
+        }
+
+        /* records the nanoseconds since start, a System.nanoTime() */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        /* empties the histogram and gives count/p50/p90/p99/max of what was in it */
+        String drain() {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.getAndSet(i, 0);
+                count += counts[i];
+            }
+            long maxValue = max.getAndSet(0);
+            if (count == 0) {
+                return "0";
+            }
+            return count + "/" + percentile(counts, count, 50, maxValue) + "/" + percentile(counts, count, 90, maxValue)
+                    + "/" + percentile(counts, count, 99, maxValue) + "/" + maxValue;
+        }
+    }
+
+    /* bucket of value: exact below SUB, then SUB buckets per power of two */
+    static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        if (exponent == MAX_EXPONENT) {
+            return BUCKETS - 1;     /* 2^40 and over */
+        }
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB + (int) (value >>> shift) % SUB;
+    }
+
+    /* the highest value that falls in bucket i */
+    static long highest(int i) {
+        if (i < SUB) {
+            return i;
+        }
+        int shift = i / SUB - 1;
+        return ((long) (SUB + i % SUB + 1) << shift) - 1;
+    }
+
+    private static long percentile(long[] counts, long count, int percent, long maxValue) {
+        long rank = (count * percent + 99) / 100;    /* the rank-th smallest value, rounded up */
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    private static final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+    private static long lastSnapshot = System.nanoTime();
+    private static ScheduledExecutorService reporter;
+
+    public static Counter counter(String name) {
+        return (Counter) metrics.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return (Histogram) metrics.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /* value is read at every snapshot; registering the name again replaces it */
+    public static void gauge(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    /* drops a metric, e.g. a gauge whose source is closed, so the line stops reading it */
+    public static void remove(String name) {
+        metrics.remove(name);
+    }
+
+    public static synchronized String snapshot() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastSnapshot) / 1e9);
+        lastSnapshot = now;
+        StringBuilder sb = new StringBuilder("period=").append(Math.round(seconds)).append('s');
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            sb.append(' ').append(entry.getKey()).append('=');
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                Counter counter = (Counter) metric;
+                long total = counter.get();
+                sb.append(total).append('+').append(String.format(Locale.US, "%.1f", (total - counter.reported) / seconds)).append("/s");
+                counter.reported = total;
+            } else if (metric instanceof Histogram) {
+                sb.append(((Histogram) metric).drain());
+            } else {
+                try {
+                    sb.append(((LongSupplier) metric).getAsLong());
+                } catch (RuntimeException e) {
+                    sb.append('?');     /* whatever it reads is gone */
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /* hands a snapshot to sink every periodMs, on a background thread; only the first call starts it */
+    public static synchronized void startReporting(long periodMs, Consumer<String> sink) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshot();     /* the first period starts now */
+        reporter.scheduleAtFixedRate(() -> sink.accept(snapshot()), periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdown();
+            reporter = null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AsyncLogTest {
+    private final AsyncLog log = new AsyncLog();
+    private final ByteArrayOutputStream file = new ByteArrayOutputStream();
+
+    private String[] lines() {
+        String text = new String(file.toByteArray(), StandardCharsets.UTF_8);
+        return text.isEmpty() ? new String[0] : text.split("\n");
+    }
+
+    @Test
+    public void lines_keepTheCsvFormat() throws IOException {
+        log.open(file);
+        String before = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss-SSS"));
+        log.log(AsyncLog.INFO, "Ring_BT", "Connected to the ring.");
+        log.log(AsyncLog.ERROR, "File", "Failed, reason: \u00fc");
+        log.close();
+
+        String[] lines = lines();
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].matches("\\d{4}-\\d\\d-\\d\\d-\\d\\d-\\d\\d-\\d\\d-\\d{3},I,Ring_BT,Connected to the ring\\."));
+        assertTrue(lines[0].substring(0, 23).compareTo(before) >= 0);
+        assertTrue(lines[1].endsWith(",E,File,Failed, reason: \u00fc"));
+    }
+
+    @Test
+    public void manyThreads_noLinesLostOrMixed() throws Exception {
+        log.open(file);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    log.log(AsyncLog.DEBUG, "T" + thread, "message " + i);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log.close();
+
+        String[] lines = lines();
+        assertEquals(8000, lines.length);
+        int[] next = new int[4];
+        for (String line : lines) {
+            String[] fields = line.split(",");
+            int thread = fields[2].charAt(1) - '0';
+            assertEquals("message " + next[thread]++, fields[3]);      /* each thread's lines in order */
+        }
+        assertTrue(log.statsString().contains("dropped=0"));
+    }
+
+    @Test
+    public void levelFilter() throws IOException {
+        log.setMinLevel(AsyncLog.INFO);
+        log.open(file);
+        log.log(AsyncLog.DEBUG, "A", "hidden");
+        log.log(AsyncLog.INFO, "A", "shown");
+        log.log(AsyncLog.ERROR, "A", "shown too");
+        log.close();
+        assertEquals(2, lines().length);
+        assertFalse(log.isLoggable(AsyncLog.DEBUG));
+    }
+
+    @Test
+    public void loggedBeforeOpen_goesToTheNextFile() throws IOException {
+        log.log(AsyncLog.INFO, "Main", "early");
+        log.open(file);
+        log.close();
+        log.log(AsyncLog.INFO, "Main", "between files");
+        ByteArrayOutputStream renamed = new ByteArrayOutputStream();
+        log.open(renamed);
+        log.close();
+
+        assertEquals(1, lines().length);
+        assertTrue(lines()[0].endsWith("early"));
+        assertTrue(new String(renamed.toByteArray(), StandardCharsets.UTF_8).endsWith(",I,Main,between files\n"));
+    }
+
+    @Test
+    public void writerThread_writesWithoutClose() throws Exception {
+        log.open(file);
+        log.log(AsyncLog.INFO, "A", "one");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (file.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, lines().length);
+    }
+
+    private static boolean writersSleepWithoutTimeout() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("AsyncLog") && thread.getState() != Thread.State.WAITING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void idleWriter_sleepsUntilSomethingIsLogged() throws Exception {
+        log.open(file);
+        log.log(AsyncLog.INFO, "A", "one");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(file.size() > 0 && writersSleepWithoutTimeout()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(writersSleepWithoutTimeout());     /* parked, not waking up every FLUSH_INTERVAL_MS */
+
+        log.log(AsyncLog.INFO, "A", "two");
+        deadline = System.currentTimeMillis() + 5000;
+        while (lines().length < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, lines().length);
+    }
+}
@@ -0,0 +1,105 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds a simulated 100 Hz stream from a device whose clock runs fast against the host, with
+ * random delivery latency, and checks the synced timestamps against the true host time.
+ */
+public class ClockSyncTest {
+    private static final double SKEW = 80e-6;   /* device clock gains 80 ms in 1000 s */
+    private static final long HOST_START = 1_700_000_000_000L;
+
+    private final Random random = new Random(3);
+    private final ClockSync sync = new ClockSync();
+
+    /* device time of the sample taken at host time host */
+    private static long device(long host) {
+        return 5_000 + Math.round((host - HOST_START) * (1 + SKEW));
+    }
+
+    /* 1 to ~30 ms, like BLE notifications */
+    private long latency() {
+        return 1 + (long) (-8 * Math.log(1 - random.nextDouble()));
+    }
+
+    /* within 5 ms; assertEquals with a delta would compare unix millis as floats */
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected " + expected + " got " + actual, Math.abs(expected - actual) <= 5);
+    }
+
+    @Test
+    public void followsDrift_overHours() {
+        long maxError = 0;
+        long firstOffsetError = 0;
+        long firstOffset = 0;
+        for (long host = HOST_START; host < HOST_START + 3 * 3600_000L; host += 10) {
+            long device = device(host);
+            long arrived = host + latency();
+            long synced = sync.sync(device, arrived);
+            if (host == HOST_START) {
+                firstOffset = arrived - device;
+            }
+            if (host > HOST_START + 2 * ClockSync.WINDOW_MS) {
+                maxError = Math.max(maxError, Math.abs(synced - host));
+            }
+            firstOffsetError = Math.abs(device + firstOffset - host);
+        }
+        assertTrue("max error " + maxError, maxError <= 5);
+        assertTrue("a fixed offset is off by " + firstOffsetError, firstOffsetError > 800);
+        assertEquals(-SKEW * 1e6, sync.getSkewPpm(), 2);
+    }
+
+    @Test
+    public void lateWindows_dontMoveTheFit() {
+        for (long host = HOST_START; host < HOST_START + 1800_000L; host += 10) {
+            long late = (host - HOST_START) / ClockSync.WINDOW_MS % 7 == 3 ? 1500 : 0;    /* a stalled link */
+            long synced = sync.sync(device(host), host + latency() + late);
+            if (host > HOST_START + 3 * ClockSync.WINDOW_MS) {
+                assertNear(host, synced);
+            }
+        }
+    }
+
+    @Test
+    public void hostClockStep_isFollowed() {
+        long host = HOST_START;
+        for (; host < HOST_START + 600_000L; host += 10) {
+            sync.sync(device(host), host + latency());
+        }
+        long step = 3600_000L;  /* the phone's clock was moved an hour ahead */
+        long synced = 0;
+        for (long end = host + 60_000L; host < end; host += 10) {
+            synced = sync.sync(device(host), host + step + latency());
+        }
+        assertNear(host - 10 + step, synced);
+        assertTrue(sync.statsString().contains("resets=1"));
+    }
+
+    @Test
+    public void deviceRestart_startsOver() {
+        long host = HOST_START;
+        for (; host < HOST_START + 100_000L; host += 10) {
+            sync.sync(device(host), host + latency());
+        }
+        long last = sync.sync(device(host), host + 1);
+        /* device clock back at 0 */
+        long synced = sync.sync(10, host + 20 + 1);
+        assertTrue(synced >= last);
+        assertNear(host + 20, synced);
+    }
+
+    @Test
+    public void output_neverGoesBackwards() {
+        long previous = Long.MIN_VALUE;
+        for (long host = HOST_START; host < HOST_START + 600_000L; host += 10) {
+            long synced = sync.sync(device(host), host + latency() * latency());
+            assertTrue(synced >= previous);
+            previous = synced;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    /* value of name in a snapshot line */
+    private static String field(String snapshot, String name) {
+        for (String part : snapshot.split(" ")) {
+            if (part.startsWith(name + "=")) {
+                return part.substring(name.length() + 1);
+            }
+        }
+        fail(name + " not in " + snapshot);
+        return null;
+    }
+
+    @Test
+    public void buckets_coverValuesWithin1in16() {
+        int previous = -1;
+        for (long v = 0; v < 1L << 40; v = v < 100 ? v + 1 : v + v / 7) {
+            int i = Metrics.index(v);
+            assertTrue(i >= previous && i < Metrics.BUCKETS);
+            assertTrue(v <= Metrics.highest(i));
+            assertTrue("bucket of " + v, Metrics.highest(i) - v <= v / 16);
+            previous = i;
+        }
+        assertEquals(Metrics.BUCKETS - 1, Metrics.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void histogram_percentilesPerPeriod() {
+        Metrics.Histogram histogram = Metrics.histogram("test.latency_us");
+        for (int v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+        String[] values = field(Metrics.snapshot(), "test.latency_us").split("/");
+        assertEquals("1000", values[0]);
+        assertEquals(500, Long.parseLong(values[1]), 500 / 16);
+        assertEquals(900, Long.parseLong(values[2]), 900 / 16);
+        assertEquals(990, Long.parseLong(values[3]), 990 / 16);
+        assertEquals("1000", values[4]);
+
+        assertEquals("0", field(Metrics.snapshot(), "test.latency_us"));
+    }
+
+    @Test
+    public void counters_andGauges() throws InterruptedException {
+        Metrics.Counter counter = Metrics.counter("test.samples");
+        assertSame(counter, Metrics.counter("test.samples"));
+        AtomicLong depth = new AtomicLong(7);
+        Metrics.gauge("test.depth", depth::get);
+        Metrics.snapshot();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    counter.inc();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        depth.set(3);
+        String snapshot = Metrics.snapshot();
+        assertTrue(field(snapshot, "test.samples").startsWith("40000+"));
+        assertTrue(field(snapshot, "test.samples").endsWith("/s"));
+        assertEquals("3", field(snapshot, "test.depth"));
+        assertTrue(field(Metrics.snapshot(), "test.samples").startsWith("40000+0.0/s"));
+    }
+
+    @Test
+    public void removedGauge_isNotReported() {
+        Metrics.gauge("test.closed", () -> 1);
+        assertTrue(Metrics.snapshot().contains(" test.closed=1"));
+        Metrics.remove("test.closed");
+        assertFalse(Metrics.snapshot().contains("test.closed"));
+    }
+
+    @Test
+    public void reporting_givesLinesToTheSink() throws InterruptedException {
+        List<String> lines = new ArrayList<>();
+        Metrics.counter("test.reported").add(5);
+        Metrics.startReporting(20, line -> {
+            synchronized (lines) {
+                lines.add(line);
+            }
+        });
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (lines) {
+                    if (lines.size() >= 2) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+        } finally {
+            Metrics.stopReporting();
+        }
+        synchronized (lines) {
+            assertTrue(lines.size() >= 2);
+            assertTrue(lines.get(0).startsWith("period="));
+            assertEquals("5+0.0/s", field(lines.get(1), "test.reported"));
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Streaming decoder for the compressed sensor files (.mwz) written by the watch (BlockEncoder in the watch app).
+ * *
+ * File layout (all values little-endian):
+ * *	header	'M' 'W' 'Z' version(1), channel count (u8), per channel the quantization step (f64)
+ * *	blocks	record count (u16), payload length (u32), payload, CRC32 of the 6+length bytes before it (u32)
+ * *
+ * The payload holds one column per value (timestamp, system time, channels), each made of its
+ * first value(s) as varints and the bit packed deltas, see BlockEncoder for the details.
+ * *
+ * Each block is checked against its CRC before it is decoded.  A block with a wrong CRC is skipped
+ * (and counted), the blocks after it are still decoded since every block is encoded on its own.
+ * If a block header itself is damaged there is no way to find the next block, so decoding stops there,
+ * as it does at a block cut short by the end of the file.
+ * *
+ * decodeToRaw() turns the file back into the 80 byte records of the .data files, so the rest
+ * of the phone app and the analysis scripts don't have to know about the compressed format.
+ */
+public class BlockDecoder {
+    public static final byte VERSION = 1;
+    public static final int RECORD_SIZE = 80;   /* 16 floats + 2 longs, same as the .data files */
+    private static final int BLOCK_HEADER = 6;
+    private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    public interface RecordSink {
+        void onRecord(float[] sensor_reading, long timestamp, long timeStampSystem) throws IOException;
+    }
+
+    private final InputStream in;
+    private final int channels;
+    private final double[] steps;
+    private final float[] sensor_reading;
+    private long[][] columns = new long[0][];
+    private final CRC32 crc = new CRC32();
+    private byte[] block = new byte[64 * 1024];
+    private int position;       /* read position in block while decoding a payload */
+    private int payloadEnd;
+
+    private long records, blocks, corruptBlocks;
+    private boolean truncated;
+
+    /* Reads and checks the file header. */
+    public BlockDecoder(InputStream in) throws IOException {
+        this.in = in;
+        byte[] header = new byte[5];
+        readFully(header, 0, 5);
+        if (header[0] != 'M' || header[1] != 'W' || header[2] != 'Z') {
+            throw new IOException("Not a compressed sensor file");
+        }
+        if (header[3] != VERSION) {
+            throw new IOException("Unsupported compressed sensor file version " + header[3]);
+        }
+        channels = header[4] & 0xFF;
+        steps = new double[channels];
+        byte[] step = new byte[8];
+        for (int c = 0; c < channels; c++) {
+            readFully(step, 0, 8);
+            steps[c] = Double.longBitsToDouble(getLong(step, 0));
+        }
+        sensor_reading = new float[channels];
+    }
+
+    /**
+     * Decodes every block, passing each record to sink (sensor_reading is reused between calls).
+     * Returns the number of records decoded.
+     */
+    public long decode(RecordSink sink) throws IOException {
+        byte[] blockHeader = new byte[BLOCK_HEADER];
+        while (true) {
+            int n = readUpTo(blockHeader, 0, BLOCK_HEADER);
+            if (n == 0) {
+                break;      /* clean end of file */
+            }
+            if (n < BLOCK_HEADER) {
+                truncated = true;
+                break;
+            }
+            int count = (blockHeader[0] & 0xFF) | (blockHeader[1] & 0xFF) << 8;
+            int payload = getInt(blockHeader, 2);
+            if (count == 0 || payload <= 0 || payload > MAX_PAYLOAD) {
+                corruptBlocks++;    /* can't trust the length, so there is no next block to go to */
+                break;
+            }
+            if (block.length < BLOCK_HEADER + payload + 4) {
+                block = new byte[BLOCK_HEADER + payload + 4];
+            }
+            System.arraycopy(blockHeader, 0, block, 0, BLOCK_HEADER);
+            if (readUpTo(block, BLOCK_HEADER, payload + 4) < payload + 4) {
+                truncated = true;
+                break;
+            }
+            crc.reset();
+            crc.update(block, 0, BLOCK_HEADER + payload);
+            if ((int) crc.getValue() != getInt(block, BLOCK_HEADER + payload)) {
+                corruptBlocks++;
+                continue;
+            }
+            position = BLOCK_HEADER;
+            payloadEnd = BLOCK_HEADER + payload;
+            try {
+                decodeBlock(count, sink);
+            } catch (EOFException e) {
+                corruptBlocks++;    /* CRC matched but the payload is short, e.g. written by a newer encoder */
+                continue;
+            }
+            blocks++;
+        }
+        return records;
+    }
+
+    private void decodeBlock(int count, RecordSink sink) throws IOException {
+        if (columns.length == 0 || columns[0].length < count) {
+            columns = new long[2 + channels][count];
+        }
+        for (int col = 0; col < 2; col++) {
+            // timestamps: first value, first delta, then the delta-of-deltas
+            long[] t = columns[col];
+            t[0] = unzigzag(getUnsigned());
+            if (count > 1) {
+                t[1] = t[0] + unzigzag(getUnsigned());
+            }
+            getPacked(t, 2, count - 2);
+            for (int i = 2; i < count; i++) {
+                t[i] = unzigzag(t[i]) + 2 * t[i - 1] - t[i - 2];
+            }
+        }
+        for (int c = 0; c < channels; c++) {
+            long[] q = columns[2 + c];
+            boolean lossless = !(steps[c] > 0);
+            q[0] = lossless ? getUnsigned() : unzigzag(getUnsigned());
+            getPacked(q, 1, count - 1);
+            for (int i = 1; i < count; i++) {
+                q[i] = lossless ? q[i] ^ q[i - 1] : unzigzag(q[i]) + q[i - 1];
+            }
+        }
+
+        for (int r = 0; r < count; r++) {
+            for (int c = 0; c < channels; c++) {
+                long q = columns[2 + c][r];
+                sensor_reading[c] = steps[c] > 0 ? (float) (q * steps[c]) : Float.intBitsToFloat((int) q);
+            }
+            sink.onRecord(sensor_reading, columns[0][r], columns[1][r]);
+            records++;
+        }
+    }
+
+    /**
+     * Converts the rest of the file to the 80 byte .data records (16 floats, timestamp, system time,
+     * little-endian) and returns the number of records written.
+     */
+    public long decodeToRaw(OutputStream out) throws IOException {
+        if (channels * 4 + 16 != RECORD_SIZE) {
+            throw new IOException("Compressed file has " + channels + " channels, .data records need 16");
+        }
+        byte[] record = new byte[RECORD_SIZE * 100];
+        ByteBuffer buffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+        int[] used = {0};
+        long count = decode((sensor_reading, timestamp, timeStampSystem) -> {
+            int offset = used[0];
+            for (int c = 0; c < sensor_reading.length; c++) {
+                buffer.putFloat(offset + c * 4, sensor_reading[c]);
+            }
+            buffer.putLong(offset + 64, timestamp);
+            buffer.putLong(offset + 72, timeStampSystem);
+            used[0] += RECORD_SIZE;
+            if (used[0] == record.length) {
+                out.write(record, 0, used[0]);
+                used[0] = 0;
+            }
+        });
+        out.write(record, 0, used[0]);
+        out.flush();
+        return count;
+    }
+
+    private long getUnsigned() throws EOFException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= payloadEnd) {
+                throw new EOFException();
+            }
+            byte b = block[position++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new EOFException();   /* more than 10 bytes, not a varint */
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /* reads the width byte and count values of that many bits into values[offset..] */
+    private void getPacked(long[] values, int offset, int count) throws EOFException {
+        if (position >= payloadEnd) {
+            throw new EOFException();
+        }
+        int width = block[position++] & 0xFF;
+        if (width > 64) {
+            throw new EOFException();
+        }
+        if (count <= 0) {
+            return;
+        }
+        long bytes = ((long) width * count + 7) / 8;
+        if (position + bytes > payloadEnd) {
+            throw new EOFException();
+        }
+        long mask = width == 64 ? -1L : (1L << width) - 1;
+        long bit = (long) position * 8;
+        for (int i = 0; i < count; i++) {
+            // gather the value from the bytes it spans, LSB first
+            long v = 0;
+            int got = 0;
+            while (got < width) {
+                int index = (int) (bit >>> 3);
+                int shift = (int) (bit & 7);
+                int take = Math.min(8 - shift, width - got);
+                v |= (long) (((block[index] & 0xFF) >>> shift) & ((1 << take) - 1)) << got;
+                got += take;
+                bit += take;
+            }
+            values[offset + i] = v & mask;
+        }
+        position += (int) bytes;
+    }
+
+    private void readFully(byte[] b, int offset, int length) throws IOException {
+        if (readUpTo(b, offset, length) < length) {
+            throw new EOFException("Compressed sensor file is too short");
+        }
+    }
+
+    private int readUpTo(byte[] b, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(b, offset + total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16 | (b[offset + 3] & 0xFF) << 24;
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        return (getInt(b, offset) & 0xFFFFFFFFL) | (long) getInt(b, offset + 4) << 32;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getBlocks() {
+        return blocks;
+    }
+
+    public long getCorruptBlocks() {
+        return corruptBlocks;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
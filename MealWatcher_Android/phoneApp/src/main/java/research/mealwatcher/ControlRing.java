@@ -64,13 +64,10 @@ import com.welie.blessed.PhyType;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
@@ -82,11 +79,9 @@ import java.util.UUID;
 
 public class ControlRing extends IntentService {
 
-    public long TimeOffset; /* phone-measured time when 1st ring sensor data received, to sync ring data */
+    private ClockSync ringClock = new ClockSync(); /* ring clock -> phone time, follows the drift over the recording */
     private int TotalDataReceived = 0;
-    public int WavePacketTotalBytes, DecodedPacketTotalBytes;
-    private FileOutputStream fileOutputStream = null;
-    private BufferedOutputStream bufferedOutputStream = null;
+    private RingRecordWriter ringRecordWriter = null;  /* writes the ring file off the BLE callback thread */
     private static BluetoothCentralManager central;
     private static final UUID DIS_SERVICE_UUID = UUID.fromString("0000180A-0000-1000-8000-00805f9b34fb");
     private static final UUID MANUFACTURER_NAME_CHARACTERISTIC_UUID = UUID.fromString("00002A29-0000-1000-8000-00805f9b34fb");
@@ -99,7 +94,6 @@ public class ControlRing extends IntentService {
     private final UUID WAVE_SERVICE_UUID = UUID.fromString("65e9296c-8dfb-11ea-bc55-0242ac130003");
     private final UUID WAVE_API_CHARACTERISTIC_UUID = UUID.fromString("65e92bb1-8dfb-11ea-bc55-0242ac130003");
     private final UUID WAVE_CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-    public int b, i, j;
     public long ts;
     public long tsSystem;
     public long previousts;
@@ -113,7 +107,6 @@ public class ControlRing extends IntentService {
     // private int dataReceived;
 
     private MediaPlayer mediaPlayer;
-    public ByteBuffer Convert;
     static int RingConnection = 0; /* 0 not connected, 1 connected.*/
     static boolean connectedOnce = false; //
     private static BluetoothPeripheral RingPeripheral = null;
@@ -121,11 +114,13 @@ public class ControlRing extends IntentService {
     // Handler to check the ring status
     private final Handler timeoutHandler = new Handler();
     private Runnable timeoutRunnable;
-    public static final int MAX_PACKET_LENGTH = 256;
+    public static final int RING_RECORD_LENGTH = 80;
 
-    public byte[] WavePacket = new byte[MAX_PACKET_LENGTH];
-    public byte[] DecodedPacket = new byte[MAX_PACKET_LENGTH];
-    public byte[] SavePacket = new byte[MAX_PACKET_LENGTH];
+    /* stitches and decodes the ring's notifications, see RingPacketParser */
+    private final RingPacketParser ringPacketParser = new RingPacketParser(this::saveRingPacket);
+    private static final Metrics.Histogram ringCallbackNs = Metrics.histogram("ring.callback_ns");
+    private static final Metrics.Counter ringSamples = Metrics.counter("ring.samples");
+    private final byte[] SavePacket = new byte[RING_RECORD_LENGTH];
     private static Notification mNotification;
     static NotificationManager notificationManager;
     private Handler handler;
@@ -191,6 +186,9 @@ public class ControlRing extends IntentService {
             logFunction.information("Ring","WakeLock is acquired");
         }
         //notificationManager.notify(2, mNotification);
+        Metrics.gauge("ring.frames", ringPacketParser::getFrames);
+        Metrics.gauge("ring.data_packets", ringPacketParser::getDataPackets);
+        Metrics.gauge("ring.malformed_frames", ringPacketParser::getMalformedFrames);
         super.onCreate();
     }
 
@@ -276,7 +274,7 @@ public class ControlRing extends IntentService {
                                 String LogMessageText;
                                 if (status == GattStatus.SUCCESS) {
                                     LogMessageText = "SUCCESS: writing ";
-                                    for (j = 0; j < value.length; j++)
+                                    for (int j = 0; j < value.length; j++)
                                         LogMessageText += value[j] + " ";
                                     LogMessageText += " to " + characteristic.getUuid();
                                     Log.d("RINGLOG", LogMessageText + "\n");
@@ -289,97 +287,19 @@ public class ControlRing extends IntentService {
                             @Override
                             public void onCharacteristicUpdate(@NotNull BluetoothPeripheral peripheral, @NotNull byte[] value, @NotNull BluetoothGattCharacteristic characteristic, @NotNull GattStatus status) {
                                 UUID characteristicUUID = characteristic.getUuid();
-                                BluetoothBytesParser parser = new BluetoothBytesParser(value);
 
                                 if (status != GattStatus.SUCCESS) return;
 
-                                String LogMessageText;
                                 if (characteristicUUID.equals(WAVE_API_CHARACTERISTIC_UUID)) {
-                                    /* data packets arrive in multiple parts; this code stitches them together */
-                                    /* maintains a growing buffer and searches for 0 (signifies end of COBS-encoded packet) */
-                                    for (b = 0; b < value.length; b++) {
-                                        WavePacket[WavePacketTotalBytes] = value[b];
-                                        WavePacketTotalBytes++;
-                                        if (WavePacketTotalBytes >= MAX_PACKET_LENGTH) { /* something went wrong during stitching/transmission; flush buffer and restart */
-                                            WavePacketTotalBytes = 0;
-                                            continue;
-                                        }
-                                        if (value[b] != 0)  /* waiting on end-of-packet byte (0 only happens at end of COBS-encoded packet) */
-                                            continue;
-                                        /* COBS decode packet */
-                                        int lastJump = 0;
-                                        byte jump = WavePacket[0];
-                                        for (i = 1; i < WavePacketTotalBytes - 1; i++) {
-                                            if (i == lastJump + jump) {
-                                                DecodedPacket[i - 1] = 0;
-                                                lastJump = i;
-                                                jump = WavePacket[i];
-                                            } else
-                                                DecodedPacket[i - 1] = WavePacket[i];
-                                        }
-                                        DecodedPacketTotalBytes = WavePacketTotalBytes - 2;
-                                        if (DecodedPacketTotalBytes != 109) {
-                                            Log.d("RINGSENSORLOG", "Unknown packet\n");
-                                        }
-                                        /* check if data stream packet (starts with 3 1 105 0, and is 109 total bytes) */
-                                        if (DecodedPacket[0] == 3 && DecodedPacket[1] == 1 &&
-                                                DecodedPacket[2] == 105 && DecodedPacket[3] == 0) {
-                                            /* Genki packet bytes are 0-3=header, 4-15=gyros, 16-27=accels, 28-39=mags, 40-55="raw pose" (quaternion),
-                                             ** 56-71="current pose" (quaternion), 72-83=Euler angles, 84-95=linear accel, 96="peak detected",
-                                             ** 97-100="peak velocity, 101-108=timestamp */
-                                            /* we pull out 72 bytes:  gyros, accels, magnetos, pose (current), linear accel, timestamp */
-                                            if(TotalDataReceived==0){
-                                                logFunction.information("Ring","First ring sensor value is received and TotalDataReceived = 0");
-                                            }
-                                            for (i = 0; i < 36; i++)    /* gyros, accels, mags */
-                                                SavePacket[i] = DecodedPacket[i + 4];
-                                            for (i = 36; i < 52; i++)   /* pose (current) */
-                                                SavePacket[i] = DecodedPacket[i + 20];
-                                            for (i = 52; i < 64; i++)   /* linear accel */
-                                                SavePacket[i] = DecodedPacket[i + 32];
-                                            for (i = 64; i < 72; i++)   /* timestamp */
-                                                SavePacket[i] = DecodedPacket[i + 37];
-
-                                            /* synchronize timestamp with phone */
-                                            ts = ByteBuffer.wrap(SavePacket, 64, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();    /* timestamp of current sensor reading */
-                                            ts /= 1000;   /* ring timestamp units are microsec; convert to millisec */
-                                            tsSystem = System.currentTimeMillis();
-                                            if (TotalDataReceived == 0) {
-                                                TimeOffset = System.currentTimeMillis() - ts;  /* adjust offset by first sensor reading timestamp */
-                                                System.out.println("Offset is done!!");
-                                            }
-                                            ts += TimeOffset;  /* add 1970-Jan-1 offset to synchronize */
-
-                                            /*if(TotalDataReceived !=0){
-                                                if(ts-previousts !=10){
-                                                    logFunction.debug("Ring", "Ring time difference between the current and the previous sensor recording is not 10ms.");
-                                                }
-                                            }*/
-                                            //previousts = ts;
-                                            Convert = (ByteBuffer) ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(ts).rewind();
-                                            Convert.get(SavePacket, 64, 8);
-
-                                            // Adding 8 extra bytes to save the timestamp which is used to analyse drift.
-                                            //ts = System.currentTimeMillis();
-                                            Convert = (ByteBuffer) ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(tsSystem).rewind();
-                                            Convert.get(SavePacket, 72, 8);
-                                            //Convert.get(SavePacket, 36, 8);
-
-                                            /* write data to file */
-                                            try {
-                                                //bufferedOutputStream.write(SavePacket, 0, 72);
-                                                bufferedOutputStream.write(SavePacket, 0, 80);
-
-                                            } catch (IOException e) {
-                                                logFunction.error("Ring_Fil", "Writing failed, showing error: " + e.toString());
-                                                e.printStackTrace();
-                                            }
-                                            //dataReceived = 1;
-                                            TotalDataReceived++;
-                                        }
-                                        WavePacketTotalBytes = 0;             // reset building new packet
-                                    }
-                                } else if (characteristicUUID.equals(WAVE_CCCD_UUID)) {
+                                    /* data packets arrive in multiple parts, the parser stitches and decodes them */
+                                    long start = System.nanoTime();
+                                    ringPacketParser.accept(value);
+                                    ringCallbackNs.recordSince(start);
+                                    return;
+                                }
+                                BluetoothBytesParser parser = new BluetoothBytesParser(value);
+                                String LogMessageText;
+                                if (characteristicUUID.equals(WAVE_CCCD_UUID)) {
                                     LogMessageText = "update CCCD " + value + " from " + characteristic.getUuid();
                                     Log.d("RINGLOG", LogMessageText + "\n");
                                 } else if (characteristicUUID.equals(CURRENT_TIME_CHARACTERISTIC_UUID)) {
@@ -440,6 +360,7 @@ public class ControlRing extends IntentService {
                                 if(!recordingStarted){
                                     TotalDataReceived = 0;
                                 }
+                                ringClock = new ClockSync();    /* the ring may have restarted its clock */
                                 recordingStarted = true;
 
 
@@ -449,11 +370,16 @@ public class ControlRing extends IntentService {
                                 logFunction.information("Ring_Fil","Ring file created.");
 
                                 try {
-                                    fileOutputStream = new FileOutputStream(fileName);
-                                    bufferedOutputStream = new BufferedOutputStream(fileOutputStream);
-                                    logFunction.information("Ring_Fil","Buffered output stream opened successfully for writing data.");
+                                    ringRecordWriter = new RingRecordWriter(new FileOutputStream(fileName), RING_RECORD_LENGTH);
+                                    ringRecordWriter.start();
+                                    RingRecordWriter writer = ringRecordWriter;
+                                    Metrics.gauge("ring.writer_depth", writer::getQueueDepth);
+                                    Metrics.gauge("ring.writer_dropped", writer::getDropped);
+                                    Metrics.gauge("ring.gaps", writer::getGaps);
+                                    Metrics.gauge("ring.missing_samples", writer::getMissingSamples);
+                                    logFunction.information("Ring_Fil","Ring file opened successfully for writing data.");
                                 } catch (FileNotFoundException e) {
-                                    logFunction.error("Ring_Fil","Buffered output stream did not opened, and reason: " + e.toString());
+                                    logFunction.error("Ring_Fil","Ring file did not open, and reason: " + e.toString());
                                     throw new RuntimeException(e);
                                 }
                             }
@@ -501,7 +427,7 @@ public class ControlRing extends IntentService {
                                             }*/
                                         }
                                     }).start();
-                                    WavePacketTotalBytes = 0;
+                                    ringPacketParser.reset();
                                 }
                                 /*if ((MainActivity.prev_ring_id_value > 0 &&
                                         peripheral.getAddress().equals(RingMACs[MainActivity.prev_ring_id_value]))) {
@@ -543,12 +469,20 @@ public class ControlRing extends IntentService {
                                     MainActivity.ringRecordingState = "false";
 
                                     //MainActivity.writeToLog("Closing the buffered output stream of ring sensor file.");
-                                    if (Objects.nonNull(bufferedOutputStream)) {
-                                        bufferedOutputStream.close();
-                                        logFunction.information("Ring_MT", "Closing the file output stream.");
+                                    if (Objects.nonNull(ringRecordWriter)) {
+                                        RingRecordWriter closing = ringRecordWriter;
+                                        ringRecordWriter = null;
+                                        removeWriterGauges();   /* the next recording registers its own writer */
+                                        try {
+                                            closing.close();    /* writes the records still queued */
+                                            logFunction.information("Ring_MT", "Closing the file output stream.");
+                                        } finally {
+                                            logFunction.information("Ring_MT", "Ring file: " + closing.statsString());
+                                        }
                                     }
-                                    //MainActivity.writeToLog("Closing the file output stream.");
-                                    fileOutputStream.close();
+                                    logFunction.information("Ring_MT", "Ring packets: " + ringPacketParser.statsString());
+                                    logFunction.information("Ring_MT", "Ring clock: " + ringClock.statsString());
+                                    ControlWatch.queueUpload(new File(getExternalFilesDir(null), ringSensorFile));
 
                                     /* Reason if the ring doesn't disconnect successfully:
 
@@ -637,6 +571,37 @@ public class ControlRing extends IntentService {
         return flags;
     }
 
+    /*
+    Writes one ring sample to the file: the 72 bytes we keep of the packet (gyros, accels, magnetos,
+    pose (current), linear accel, timestamp) with the timestamp moved to the phone's clock, and the
+    phone's time when the sample arrived (used to analyse drift).
+     */
+    private void saveRingPacket(byte[] packet) {
+        if(TotalDataReceived==0){
+            logFunction.information("Ring","First ring sensor value is received and TotalDataReceived = 0");
+        }
+        System.arraycopy(packet, 4, SavePacket, 0, 36);     /* gyros, accels, mags */
+        System.arraycopy(packet, 56, SavePacket, 36, 16);   /* pose (current) */
+        System.arraycopy(packet, 84, SavePacket, 52, 12);   /* linear accel */
+
+        /* synchronize timestamp with phone */
+        ts = RingPacketParser.getLongLE(packet, RingPacketParser.TIMESTAMP_OFFSET);    /* timestamp of current sensor reading */
+        ts /= 1000;   /* ring timestamp units are microsec; convert to millisec */
+        tsSystem = System.currentTimeMillis();
+        ts = ringClock.sync(ts, tsSystem);  /* onto the phone's clock (1970-Jan-1 based) */
+        RingPacketParser.putLongLE(SavePacket, 64, ts);
+        RingPacketParser.putLongLE(SavePacket, 72, tsSystem);
+
+        /* hand the record to the writer thread, the file is written there */
+        RingRecordWriter writer = ringRecordWriter;
+        if (writer != null && !writer.offer(SavePacket) && writer.getDropped() == 1) {
+            logFunction.error("Ring_Fil", "Ring record dropped, " + (writer.getError() != null
+                    ? "writing failed: " + writer.getError() : "the writer is behind: " + writer.statsString()));
+        }
+        TotalDataReceived++;
+        ringSamples.inc();
+    }
+
     //For increasing the text size of the toast message
     public void showToast(Context context, String message, int duration) {
         // Use the context to create LayoutInflater and show custom toast
@@ -727,10 +692,20 @@ public class ControlRing extends IntentService {
             logFunction.error("Ring", "Wakelock is released but the recording is ongoing");
             ControlWatch.sendDataItem("/phone_status", "state", "onStopDoze");
         }
-
+        removeWriterGauges();
+        Metrics.remove("ring.frames");
+        Metrics.remove("ring.data_packets");
+        Metrics.remove("ring.malformed_frames");
 
         super.onDestroy();
     }
 
+    private static void removeWriterGauges() {
+        Metrics.remove("ring.writer_depth");
+        Metrics.remove("ring.writer_dropped");
+        Metrics.remove("ring.gaps");
+        Metrics.remove("ring.missing_samples");
+    }
+
 
 }
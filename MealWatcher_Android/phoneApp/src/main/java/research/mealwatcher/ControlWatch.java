@@ -47,13 +47,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 
-import com.dropbox.core.DbxAuthInfo;
-import com.dropbox.core.DbxException;
 import com.dropbox.core.DbxRequestConfig;
-import com.dropbox.core.json.JsonReader;
+import com.dropbox.core.oauth.DbxCredential;
 import com.dropbox.core.v2.DbxClientV2;
-import com.dropbox.core.v2.files.FileMetadata;
-import com.dropbox.core.v2.files.WriteMode;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
@@ -73,26 +69,24 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Date;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
@@ -102,7 +96,6 @@ import java.util.zip.ZipInputStream;
 /*import androidx.test.espresso.web.util.concurrent.FutureCallback;*/
 import androidx.wear.remote.interactions.RemoteActivityHelper;
 
-import org.json.JSONObject;
 
 public class ControlWatch extends IntentService implements DataClient.OnDataChangedListener {
     private static boolean watchAppStatus; /*To ensure watch app is not restarted if it is already started.*/
@@ -129,14 +122,16 @@ public class ControlWatch extends IntentService implements DataClient.OnDataChan
     private static final long TIMEOUT_DURATION_MS = 5000;
 //    private static Handler main_ui_thread = new Handler(Looper.getMainLooper());
 
-    static private String dropBoxAccessToken = null;
+    private static DbxClientV2 dbxClient = null;    /* see getDbxClient() */
     static Thread uploadToDropboxThread;
     static private ConnectivityManager connectivityManager;
     static ChannelClient channelClient;
+    private ChannelClient.ChannelCallback channelCallback;  /* unregistered in onDestroy, see onCreate */
     static ChannelClient.Channel globalChannel;
     static String dropboxFolder;
     static String folderName;
     static int filesFailedUpload = 0;
+    private static boolean uploadQueueReconciled = false;   /* directory checked against the upload queue since the app started */
     static String uploadButton;
     static ExecutorService executor;
 
@@ -168,6 +163,21 @@ public class ControlWatch extends IntentService implements DataClient.OnDataChan
         remoteActivityHelper = new RemoteActivityHelper(this, Executors.newSingleThreadExecutor());
         dataClient = Wearable.getDataClient(this);
         dataClient.addListener(this);
+        // The watch streams its recording files over a channel (FileTransferReceiver).
+        channelClient = Wearable.getChannelClient(this);
+        channelCallback = new ChannelClient.ChannelCallback() {
+            @Override
+            public void onChannelOpened(@NonNull ChannelClient.Channel channel) {
+                if (channel.getPath().equals(FileTransferReceiver.CHANNEL_PATH)) {
+                    globalChannel = channel;
+                    if (executor == null || executor.isShutdown()) {
+                        executor = Executors.newCachedThreadPool();
+                    }
+                    executor.execute(() -> receiveFilesOverChannel(channel));
+                }
+            }
+        };
+        channelClient.registerChannelCallback(channelCallback);
 
         // Initially watch app is not on.
         watchAppStatus = false;
@@ -217,6 +227,17 @@ public class ControlWatch extends IntentService implements DataClient.OnDataChan
         super.onCreate();
     }
 
+    @Override
+    public void onDestroy() {
+        // MainActivity stops and starts this service: a callback left registered would get the next
+        // channel too, and two receivers would read the same stream
+        if (channelCallback != null) {
+            channelClient.unregisterChannelCallback(channelCallback);
+            channelCallback = null;
+        }
+        super.onDestroy();
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         //System.out.println("in handling intent");
@@ -380,6 +401,79 @@ public class ControlWatch extends IntentService implements DataClient.OnDataChan
         });
     }
 
+    /*
+    Receives the files the watch streams over the channel. Each file arrives as a .part file and is
+    renamed when complete, so a broken transfer continues where it stopped the next time the watch
+    opens the channel. The watch sends /data_transfer_ack afterwards, as for the asset upload.
+     */
+    private static void receiveFilesOverChannel(ChannelClient.Channel channel) {
+        FileTransferReceiver receiver = null;
+        try {
+            InputStream fromWatch = Tasks.await(channelClient.getInputStream(channel));
+            OutputStream toWatch = Tasks.await(channelClient.getOutputStream(channel));
+            receiver = new FileTransferReceiver(fromWatch, toWatch, directory, MainActivity.prev_pid_value + "-",
+                    new File(context.getFilesDir(), "transfer-state.properties"), (file, filesLeft) -> {
+                logFunction.information("Watch", "Got a file from the watch named: " + file.getName()
+                        + ", " + filesLeft + " more to come");
+                if (file.getName().endsWith(".mwz")) {
+                    decompressWatchFile(file);
+                } else {
+                    queueUpload(file);
+                }
+            });
+            receiver.receiveAll();
+            logFunction.information("Watch", "Channel transfer from the watch done, " + receiver.statsString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            logFunction.error("Watch", "Channel transfer from the watch stopped: " + e
+                    + (receiver != null ? ", " + receiver.statsString() : ""));
+        } finally {
+            channelClient.close(channel);
+        }
+    }
+
+    /* a finished file goes into the upload queue; a failure only costs the file its place until the next start */
+    static void queueUpload(File file) {
+        if (MainActivity.uploadQueue == null) {
+            return;     // couldn't be opened, the file is found when the app starts next time
+        }
+        try {
+            MainActivity.uploadQueue.add(file);
+        } catch (IOException e) {
+            logFunction.error("Dropbox", "Can't add " + file.getName() + " to the upload queue: " + e);
+        }
+    }
+
+    /*
+    The watch sends its recordings compressed (.mwz, see BlockDecoder). They are turned back into the
+    usual .data file right away, so the upload and the analysis scripts stay the same.
+    The .mwz file is only deleted if it was decoded, otherwise it is kept (and uploaded) as it is.
+    Either way the file that stays goes into the upload queue.
+     */
+    private static void decompressWatchFile(File compressed) {
+        String path = compressed.getPath();
+        File raw = new File(path.substring(0, path.length() - ".mwz".length()) + ".data");
+        try (InputStream in = new BufferedInputStream(new FileInputStream(compressed));
+             FileOutputStream out = new FileOutputStream(raw)) {
+            BlockDecoder decoder = new BlockDecoder(in);
+            long records = decoder.decodeToRaw(out);
+            logFunction.information("Watch", "Decoded " + compressed.getName() + ": " + records + " records in "
+                    + decoder.getBlocks() + " blocks, " + compressed.length() + " -> " + raw.length() + " bytes");
+            if (decoder.getCorruptBlocks() > 0 || decoder.isTruncated()) {
+                logFunction.error("Watch", compressed.getName() + " had " + decoder.getCorruptBlocks()
+                        + " corrupt blocks" + (decoder.isTruncated() ? " and was cut short" : ""));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            logFunction.error("Watch", "Can't decode " + compressed.getName() + ", keeping it compressed: " + e.getMessage());
+            raw.delete();
+            queueUpload(compressed);
+            return;
+        }
+        compressed.delete();
+        queueUpload(raw);
+    }
+
     /*
     Method to listen to the messages/data from the watch app. The messages include the record button status
     to sync between mobile and watch app and the watch application status. And data include the sensor
@@ -487,21 +581,27 @@ public class ControlWatch extends IntentService implements DataClient.OnDataChan
                             Task<DataClient.GetFdForAssetResponse> fileDescriptorForAsset = dataClient.getFdForAsset(asset);
                             //Waiting for the task to get completed.
                             DataClient.GetFdForAssetResponse getFdForAssetResponse = Tasks.await(fileDescriptorForAsset);
-                            try (InputStream assetInputStream = getFdForAssetResponse.getInputStream();
-                                 FileOutputStream fos = new FileOutputStream(file)) {
-                                byte[] buffer = new byte[1024];
-                                int bytesRead;
-                                while ((bytesRead = assetInputStream.read(buffer)) != -1) {
-                                    fos.write(buffer, 0, bytesRead);
-                                }
+                            // size and CRC32 come with the file from newer watch apps (see FileIngest)
+                            long fileSize = dataMap.getLong("fileSize", FileIngest.UNKNOWN);
+                            long crc32 = dataMap.containsKey("crc32")
+                                    ? dataMap.getInt("crc32") & 0xffffffffL : FileIngest.UNKNOWN;
+                            boolean stored = false;
+                            try {
+                                FileIngest.ingest(getFdForAssetResponse.getInputStream(), file, fileSize, crc32);
+                                stored = true;
                             } catch (Exception e) {
                                 e.printStackTrace();
-                                logFunction.error("Watch", "Got a file but can't write it in the phone storage.");
+                                logFunction.error("Watch", "Got a file but can't write it in the phone storage: " + e);
+                            }
+                            if (stored && fileName.endsWith(".mwz")) {
+                                decompressWatchFile(file);
+                            } else if (stored) {
+                                queueUpload(file);
                             }
 
                             //MainActivity.writeToLog("Sending msg to phone for sending another file");
                             sendDataItem("/another_recording_file", "send",
-                                    (fileNumber - 1) + " " + fileNameReceived);
+                                    (fileNumber - 1) + " " + fileNameReceived + (stored ? "" : " failed"));
 
                             //MainActivity.writeToLogSync("Send a message to the watch: 'Send another files' at: " + now.format(DateTimeFormatter.ofPattern("HH-mm-ss")));
 
@@ -704,27 +804,14 @@ public class ControlWatch extends IntentService implements DataClient.OnDataChan
     }*/
 
     private static void startUploading() {
+        if (MainActivity.uploadQueue == null) {
+            logFunction.error("Dropbox", "No upload queue, not uploading.");
+            return;
+        }
         //System.out.println("Starting the uploading");
         //MainActivity.writeToLog("Starting dropbox upload!");
-        // write out authentication file so we can attach it for dropbox upload
-        writeAuthFile(getAccessToken());
-
         String rootDirectoryPath = MainActivity.applicationContext.getExternalFilesDir(null).getPath();
-        String argAuthFile = rootDirectoryPath + "/authfile.json";
-        // read auth info file.
-        DbxAuthInfo authInfo = null;
-       // MainActivity.writeToLog("Reading auth file");
-        try {
-            authInfo = DbxAuthInfo.Reader.readFromFile(argAuthFile);
-        } catch (JsonReader.FileLoadException ex) {
-            ex.printStackTrace();
-        }
-
-       // MainActivity.writeToLog("Creating the DbxClient");
-        // Create a DbxClientV2, which is what you use to make dropbox API calls.
-        // Below client identifier which we give to DBXRequestConfig is the Dropbox-API app name.
-        DbxRequestConfig requestConfig = new DbxRequestConfig("CaloryChecker");
-        DbxClientV2 dbxClient = new DbxClientV2(requestConfig, authInfo.getAccessToken(), authInfo.getHost());
+        DbxClientV2 dbxClient = getDbxClient();
 
         // 0 to 5 characters contain the participant id.
         // Creating different folder for two locations
@@ -755,198 +842,105 @@ public class ControlWatch extends IntentService implements DataClient.OnDataChan
             e.printStackTrace();
             //logFunction.error("Dropbox", "Error: " + e.toString() + " creating directory for the participant");
         }
-        // get list of files and upload
-        File[] files = directory.listFiles();
-       // System.out.println("files len = " + files.length);
-
-        boolean filesExist = false;
-        if (files.length > 0) {
-            filesExist = true;
-//            MainActivity.textViewProgressMessage.setText("Uploading files...");
-        }
-        //System.out.println("filesExist = " + filesExist);
-
-        // MainActivity.fileCount = files.length - 1; // how many to upload (-1 to exclude auth file)
-        for (int i = 0; i < files.length; i++) {
-            if (files[i].getName().equals("authfile.json") || files[i].getName().endsWith(".txt")) {
-                continue;       // skip this file
-            }
-            if (MainActivity.ringRecordingState.equals("true") && files[i].getName().contains("ring.data")) {
-               // System.out.print("skipping the ring file.");
-                continue;      // skip uploading of ring file when upload starts at application start.
-            }
-            if (files[i].getName().equals(MainActivity.currentLogFileName)) {
-                System.out.println("skipping the current session log file");
-                //System.out.println("Log file name in the currentLogFile: " + files[i].getName());
-
-                continue;
-            }
-            if(files[i].getName().equals("ImagesFolder")){
-                continue;
-            }
-            System.out.println("File to upload: " +files[i].getName());
-            Log.d("DropBoxUpload", "File to upload: " +files[i].getName());
-
-            String localPath = rootDirectoryPath + "/" + files[i].getName();
-            //System.out.println("local path = " + localPath);
-            File localFile = new File(localPath);
-            //System.out.println("localFile = " + localFile.getName());
-
-            String dropboxPath = dropboxFolder + "/" + files[i].getName();
-
-            //System.out.println("dropbox path = " + dropboxPath);
-            //upload the file
-            FileMetadata returnMetadata = uploadToDropBox(dbxClient, localFile, dropboxPath);
-            if (Objects.nonNull(returnMetadata) && returnMetadata.getSize() == localFile.length()) {
-                //LocalDateTime now = LocalDateTime.now();
-                //System.out.println("File " + files[i].getName() + " uploaded successfully.");
-                logFunction.information("Dropbox", "File " + files[i].getName() + " uploaded successfully.");
-                //MainActivity.writeToLogTime("File " + files[i].getName() + " uploaded successfully at: " + now.format(DateTimeFormatter.ofPattern("HH-mm-ss")) );
-                // delete file from phone storage
-                /*if (!files[i].getName().endsWith(".jpg")) {
-                    localFile.delete();
-                }*/
-                if(MainActivity.newImageFolder.exists()){
-                    localFile.delete();
-                }else{
-                    if(!files[i].getName().endsWith(".jpg")){
-                        localFile.delete();
-                    }
-                }
-
-
-                // MainActivity.fileCount--;
-            } else {
-                filesFailedUpload++;
-            }
-            //MainActivity.textTop.setText(MainActivity.fileCount + "");
-            //MainActivity.textBottom.setText(filesFailedUpload + "");
-        }
-        //System.out.println("Files failed to upload = " + filesFailedUpload);
-        logFunction.information("Dropbox", "Files failed to upload = " + filesFailedUpload);
-
-        MainActivity.failedUpload = filesFailedUpload;
-        // cleanup -- delete the auth file
-        File authFile = new File(argAuthFile);
-        authFile.delete();
-    }
-
-    private static String getAccessToken() {
-        //MainActivity.writeToLog("Getting access token");
-        // If already fetched access token is not expired, then use the same access token.
-        if (Objects.nonNull(dropBoxAccessToken) && !isExpired(dropBoxAccessToken)) {
-            return dropBoxAccessToken;
-        }
-
-        //Move the app key, secret key, and refresh token in different file for making the code public.
-        String refreshToken = token.getRefreshToken();
-        String clientId = token.getClientId();
-        String clientSecret = token.getClientSecret();
-
-//        String command = "curl https://api.dropbox.com/oauth2/token -d refresh_token=" + refreshToken + " -d grant_type=refresh_token -d client_id=" + clientId + " -d client_secret=" + clientSecret;
-       // System.out.println("Getting the access token");
+        // files to upload come from the upload queue (see UploadQueue), the directory is only
+        // looked at once after the app starts, for files the queue doesn't know about
+        List<UploadEngine.Job> uploadJobs = new ArrayList<>();
         try {
-            URL url = new URL("https://api.dropbox.com/oauth2/token");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            connection.setRequestMethod("POST");
-
-            // Create the request data as a URL-encoded string
-            String requestData = encodeParameters(Map.of("refresh_token", refreshToken, "grant_type", "refresh_token", "client_id", clientId, "client_secret", clientSecret));
-            try (DataOutputStream outputStream = new DataOutputStream(connection.getOutputStream())) {
-                outputStream.writeBytes(requestData);
-                outputStream.flush();
+            if (!uploadQueueReconciled) {
+                Set<String> skip = new HashSet<>();
+                skip.add(MainActivity.currentLogFileName);
+                if (MainActivity.ringRecordingState.equals("true") && ControlRing.ringSensorFile != null) {
+                    skip.add(ControlRing.ringSensorFile);    // ring file still being recorded
+                }
+                MainActivity.uploadQueue.reconcile(skip);
+                uploadQueueReconciled = true;
             }
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                InputStream inputStream = connection.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    JSONObject jsonObject = new JSONObject(line);
-                    dropBoxAccessToken = jsonObject.getString("access_token");
+            for (String name : MainActivity.uploadQueue.take(System.currentTimeMillis(), uploadButton == "clicked")) {
+                File localFile = new File(rootDirectoryPath + "/" + name);
+                if (!localFile.exists()) {
+                    MainActivity.uploadQueue.remove(name);
+                    continue;
                 }
-                reader.close();
-            } else {
-              //  System.out.println("HTTP request failed with response code: " + responseCode);
-                logFunction.error("Dropbox","HTTP request failed with response code: " + responseCode);
+                System.out.println("File to upload: " + name);
+                Log.d("DropBoxUpload", "File to upload: " + name);
+                String dropboxPath = dropboxFolder + "/" + name;
+                uploadJobs.add(new UploadEngine.Job(localFile, dropboxPath));
             }
-
-            connection.disconnect();
-        } catch (Exception exception) {
-           // System.out.println("Got the exception");
-            logFunction.error("Dropbox", "Got exception " + exception);
-            exception.printStackTrace();
+        } catch (IOException e) {
+            logFunction.error("Dropbox", "Can't read the upload queue: " + e);
         }
 
-        //System.out.println("Access token = " + dropBoxAccessToken);
-        //MainActivity.writeToLog("Got the access token = " + dropBoxAccessToken);
-        return dropBoxAccessToken;
-    }
-
-    private static boolean isExpired(String dropBoxAccessToken) {
-        //MainActivity.writeToLog("Checking if dropbox access token is expired or not");
+        // upload the files, a few at a time and big ones in chunks (see UploadEngine)
         try {
-            URL url = new URL("https://api.dropboxapi.com/2/users/get_current_account");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + dropBoxAccessToken);
-
-            int responseCode = connection.getResponseCode();
-            // Response code 401(HTTP_UNAUTHORIZED) indicates that the "Access Token" is expired.
-            if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
-                return true;
+            UploadEngine uploadEngine = new UploadEngine(new DropboxUploadSessions(dbxClient),
+                    new File(context.getFilesDir(), "upload-sessions.properties"));
+            uploadEngine.uploadAll(uploadJobs, (localFile, error) -> {
+                try {
+                    if (error == null) {
+                        //LocalDateTime now = LocalDateTime.now();
+                        logFunction.information("Dropbox", "File " + localFile.getName() + " uploaded successfully.");
+                        MainActivity.uploadQueue.done(localFile.getName());
+                        // delete file from phone storage
+                        if(MainActivity.newImageFolder.exists()){
+                            localFile.delete();
+                        }else{
+                            if(!localFile.getName().endsWith(".jpg")){
+                                localFile.delete();
+                            }
+                        }
+                    } else {
+                        error.printStackTrace();
+                        logFunction.error("Dropbox", "Uploading " + localFile.getName() + " failed: " + error);
+                        MainActivity.uploadQueue.failed(localFile.getName(), System.currentTimeMillis());
+                    }
+                } catch (IOException e) {
+                    logFunction.error("Dropbox", "Can't write the upload queue: " + e);
+                }
+            });
+        } catch (IOException e) {
+            logFunction.error("Dropbox", "Can't read the upload sessions: " + e);
+            for (UploadEngine.Job job : uploadJobs) {
+                try {
+                    MainActivity.uploadQueue.failed(job.file.getName(), System.currentTimeMillis());
+                } catch (IOException queueError) {
+                    logFunction.error("Dropbox", "Can't write the upload queue: " + queueError);
+                }
             }
-        } catch (Exception exception) {
-            exception.printStackTrace();
-        }
-        return false;
-    }
-
-    private static String encodeParameters(Map<String, String> params) {
-       // MainActivity.writeToLog("Encoding parameters");
-        StringBuilder result = new StringBuilder();
-        for (Map.Entry<String, String> entry : params.entrySet()) {
-            if (result.length() > 0) {
-                result.append("&");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // the files not finished yet are still in flight; the next upload takes them again
+            for (UploadEngine.Job job : uploadJobs) {
+                try {
+                    MainActivity.uploadQueue.requeue(job.file.getName());
+                } catch (IOException queueError) {
+                    logFunction.error("Dropbox", "Can't write the upload queue: " + queueError);
+                }
             }
-            result.append(entry.getKey());
-            result.append("=");
-            result.append(entry.getValue());
         }
-        return result.toString();
-    }
-
+        filesFailedUpload = MainActivity.uploadQueue.remaining();
+        //System.out.println("Files failed to upload = " + filesFailedUpload);
+        logFunction.information("Dropbox", "Files failed to upload = " + filesFailedUpload);
 
-    private static void writeAuthFile(String accessToken) {
-       // MainActivity.writeToLog("Writing access token to auth file");
-        String rootDirectoryPath = MainActivity.applicationContext.getExternalFilesDir(null).getPath();
-        String argAuthFile = rootDirectoryPath + "/authfile.json";
-        try {
-            BufferedWriter writer = null;
-            writer = Files.newBufferedWriter(new File(argAuthFile).toPath());
-            writer.write("{\n" + "  \"access_token\" : \"" + accessToken + "\"\n" + "}");
-            writer.close();
-        } catch (IOException ex) {
-            logFunction.error("Dropbox", "Exception: " + ex.toString() + " writing access token to auth file");
-        }
+        MainActivity.failedUpload = filesFailedUpload;
     }
 
-    private static FileMetadata uploadToDropBox(DbxClientV2 dbxClient, File localFile, String dropboxPath) {
-       // MainActivity.writeToLog("Performing upload call on DbxClient");
-        FileMetadata metadata = null;
-        try (InputStream in = new FileInputStream(localFile)) {
-            metadata = dbxClient.files().uploadBuilder(dropboxPath)
-                    .withMode(WriteMode.ADD)
-                    .withClientModified(new Date(localFile.lastModified()))
-                    .uploadAndFinish(in);
-        } catch (DbxException | IOException ex) {
-            //logFunction.error("Dropbox", "Got exception in uploadToDropbox = " + ex);
-            //System.out.println("Exception in uploadToDropbox = ");
-            ex.printStackTrace();
+    /*
+    The Dropbox client is made once and kept for the whole time the app runs.
+    DbxCredential remembers when the access token expires (expires_in of the refresh answer), and the
+    client gets a new token with the refresh token a few minutes before that, or after a 401.
+    It starts without an access token, so the first upload call gets one.
+     */
+    private static synchronized DbxClientV2 getDbxClient() {
+        if (dbxClient == null) {
+            DbxCredential credential = new DbxCredential("", 0L, token.getRefreshToken(),
+                    token.getClientId(), token.getClientSecret());
+            // Below client identifier which we give to DBXRequestConfig is the Dropbox-API app name.
+            DbxRequestConfig requestConfig = new DbxRequestConfig("CaloryChecker");
+            dbxClient = new DbxClientV2(requestConfig, credential);
+            // older versions left the access token in the files directory
+            new File(MainActivity.applicationContext.getExternalFilesDir(null), "authfile.json").delete();
         }
-        return metadata;
+        return dbxClient;
     }
 
     static void displayNotification() {
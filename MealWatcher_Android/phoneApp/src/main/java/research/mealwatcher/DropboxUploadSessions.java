@@ -0,0 +1,109 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.UploadSessionAppendError;
+import com.dropbox.core.v2.files.UploadSessionAppendErrorException;
+import com.dropbox.core.v2.files.UploadSessionCursor;
+import com.dropbox.core.v2.files.UploadSessionFinishErrorException;
+import com.dropbox.core.v2.files.UploadSessionLookupError;
+import com.dropbox.core.v2.files.WriteMode;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Date;
+
+/* UploadSessions over the Dropbox SDK. */
+public class DropboxUploadSessions implements UploadSessions {
+    private final DbxClientV2 dbxClient;
+
+    public DropboxUploadSessions(DbxClientV2 dbxClient) {
+        this.dbxClient = dbxClient;
+    }
+
+    @Override
+    public String start(byte[] data, int length) throws IOException {
+        try {
+            return dbxClient.files().uploadSessionStart()
+                    .uploadAndFinish(new ByteArrayInputStream(data, 0, length)).getSessionId();
+        } catch (DbxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void append(String sessionId, long offset, byte[] data, int length) throws IOException {
+        try {
+            dbxClient.files().uploadSessionAppendV2(new UploadSessionCursor(sessionId, offset))
+                    .uploadAndFinish(new ByteArrayInputStream(data, 0, length));
+        } catch (UploadSessionAppendErrorException e) {
+            UploadSessionAppendError error = e.errorValue;
+            if (error.isIncorrectOffset()) {
+                throw new OffsetException(e.getMessage(), error.getIncorrectOffsetValue().getCorrectOffset());
+            }
+            if (error.isNotFound() || error.isClosed()) {
+                throw new OffsetException(e.getMessage(), -1);
+            }
+            throw new IOException(e);
+        } catch (DbxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public long finish(String sessionId, long offset, byte[] data, int length, String path, long clientModified)
+            throws IOException {
+        CommitInfo commit = CommitInfo.newBuilder(path)
+                .withMode(WriteMode.ADD)
+                .withClientModified(new Date(clientModified))
+                .build();
+        try {
+            return dbxClient.files().uploadSessionFinish(new UploadSessionCursor(sessionId, offset), commit)
+                    .uploadAndFinish(new ByteArrayInputStream(data, 0, length)).getSize();
+        } catch (UploadSessionFinishErrorException e) {
+            if (e.errorValue.isLookupFailed()) {
+                UploadSessionLookupError lookup = e.errorValue.getLookupFailedValue();
+                if (lookup.isIncorrectOffset()) {
+                    throw new OffsetException(e.getMessage(), lookup.getIncorrectOffsetValue().getCorrectOffset());
+                }
+                if (lookup.isNotFound() || lookup.isClosed()) {
+                    throw new OffsetException(e.getMessage(), -1);
+                }
+            }
+            throw new IOException(e);
+        } catch (DbxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public long upload(String path, byte[] data, int length, long clientModified) throws IOException {
+        try {
+            return dbxClient.files().uploadBuilder(path)
+                    .withMode(WriteMode.ADD)
+                    .withClientModified(new Date(clientModified))
+                    .uploadAndFinish(new ByteArrayInputStream(data, 0, length)).getSize();
+        } catch (DbxException e) {
+            throw new IOException(e);
+        }
+    }
+}
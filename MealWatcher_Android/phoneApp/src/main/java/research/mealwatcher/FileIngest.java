@@ -0,0 +1,96 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Stores a file the watch sent as an asset.
+ * The data goes from the asset's file descriptor into one direct buffer and from there to the
+ * file, checksummed on the way, so a big recording needs no heap buffers and is read only once.
+ * It is written to "name.part" and only renamed to its name once size and CRC32 match what the
+ * watch sent with it, so a broken copy never shows up with the files that get uploaded.
+ * *
+ * FileChannel.transferFrom isn't used: asset descriptors are usually pipes, and transferFrom
+ * from a pipe's FileChannel copies nothing (it goes by the channel's size, 0 for a pipe).
+ */
+public class FileIngest {
+    public static final long UNKNOWN = -1;     /* older watch apps don't send size and CRC32 */
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    /* one buffer per thread, the asset callbacks run on a thread pool */
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    /**
+     * Copies in to target and returns the number of bytes.  size and crc32 (as unsigned) are
+     * checked unless UNKNOWN; on a mismatch nothing is left behind and an IOException is thrown.
+     * in is closed.
+     */
+    public static long ingest(InputStream in, File target, long size, long crc32) throws IOException {
+        File part = new File(target.getPath() + ".part");
+        ByteBuffer buffer = buffers.get();
+        CRC32 crc = new CRC32();
+        long written = 0;
+        boolean ok = false;
+        try (ReadableByteChannel from = in instanceof FileInputStream
+                ? ((FileInputStream) in).getChannel() : Channels.newChannel(in);
+             FileChannel to = new FileOutputStream(part).getChannel()) {
+            while (true) {
+                buffer.clear();
+                if (from.read(buffer) < 0) {
+                    break;
+                }
+                buffer.flip();
+                buffer.mark();
+                crc.update(buffer);
+                buffer.reset();
+                while (buffer.hasRemaining()) {
+                    written += to.write(buffer);
+                }
+            }
+            if (size != UNKNOWN && written != size) {
+                throw new IOException(target.getName() + ": got " + written + " of " + size + " bytes");
+            }
+            if (crc32 != UNKNOWN && crc.getValue() != crc32) {
+                throw new IOException(target.getName() + ": CRC32 doesn't match");
+            }
+            to.force(false);
+            ok = true;
+        } finally {
+            if (!ok) {
+                part.delete();
+            }
+        }
+        if (target.exists() && !target.delete() || !part.renameTo(target)) {
+            part.delete();
+            throw new IOException("Can't rename " + part.getName() + " to " + target.getName());
+        }
+        return written;
+    }
+}
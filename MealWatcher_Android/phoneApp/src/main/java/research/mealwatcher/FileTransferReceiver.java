@@ -0,0 +1,435 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Phone side of the file transfer from the watch over a ChannelClient channel.
+ * See FileTransferSender in the watch app for the messages.
+ * *
+ * For each file in the watch's manifest the phone answers where to start:
+ * *	-1		the file was received before (same name, size and CRC32), the watch can delete it
+ * *	offset	bytes already received into "name.part" by an earlier, interrupted transfer
+ * *	0		a new file
+ * *
+ * Chunks are only written after their CRC32 matched.  The .part file is synced to storage before
+ * its offset is saved in stateFile and acknowledged, so bytes the phone has are never sent again.
+ * Acknowledgements are batched: an ACK every ackEvery chunks of a file, and the pending ACKs and
+ * DONEs whenever nothing more is waiting from the watch (the watch is waiting for them then).
+ * When all of a file has arrived its CRC32 is checked, the .part file is renamed to the final name
+ * and handed to the listener.  If the CRC32 doesn't match, the file changed on the watch after its
+ * manifest was made: sending the same bytes again can't fix that, so the .part file is dropped and
+ * the watch is told with FAILED to list the file again next time.  Received files are remembered
+ * for RECEIVED_DAYS.
+ */
+public class FileTransferReceiver {
+    public static final String CHANNEL_PATH = "/recording_transfer";
+    static final byte MANIFEST = 'M', CHUNK = 'C', END = 'E', BYE = 'B';
+    static final byte HAVE = 'H', ACK = 'A', NACK = 'N', DONE = 'D', FAILED = 'F';
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_FILES = 10000;
+    private static final long RECEIVED_DAYS = 30;
+    private static final Metrics.Counter bytesReceivedMetric = Metrics.counter("phone.transfer_bytes_received");
+    private static final Metrics.Counter badChunksMetric = Metrics.counter("phone.transfer_bad_chunks");
+
+    public interface Listener {
+        /* called on the receiving thread once a file is complete under its final name */
+        void onFileReceived(File file, int filesLeft);
+    }
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final File directory;
+    private final String prefix;
+    private final File stateFile;
+    private final Properties state = new Properties();
+    private final Listener listener;
+    private final CRC32 crc = new CRC32();
+
+    /* the current manifest */
+    private int ackEvery;
+    private byte[] chunk;
+    private String[] key;
+    private long[] size;
+    private int[] fileCrc;
+    private long[] offset;              /* bytes received of each file */
+    private int[] unacked;              /* chunks received since the last ACK */
+    private boolean[] resending;        /* sent a NACK, dropping chunks until the watch goes back */
+    private boolean[] done;
+    private RandomAccessFile[] part;
+    private final List<Integer> pendingDone = new ArrayList<>();
+    private int remaining;
+
+    /* statistics */
+    private long bytesReceived, bytesResumed, badChunks;
+    private int filesReceived, filesAlreadyHere, filesFailed;
+
+    /**
+     * Files are stored in directory as prefix + the watch's file name.  stateFile keeps the resume
+     * offsets and should not be in directory, since everything there is uploaded to Dropbox.
+     */
+    public FileTransferReceiver(InputStream fromWatch, OutputStream toWatch, File directory, String prefix,
+                                File stateFile, Listener listener) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(fromWatch, 64 * 1024));
+        this.out = new DataOutputStream(new BufferedOutputStream(toWatch));
+        this.directory = directory;
+        this.prefix = prefix;
+        this.stateFile = stateFile;
+        this.listener = listener;
+        if (stateFile.exists()) {
+            try (InputStream stateIn = new FileInputStream(stateFile)) {
+                state.load(stateIn);
+            }
+        }
+    }
+
+    /* Receives the files of the watch's manifest. Returns the number of files received. */
+    public int receiveAll() throws IOException {
+        try {
+            readManifest();
+            while (true) {
+                if (in.available() == 0) {
+                    // the watch has nothing more on the way, so it's waiting for these
+                    sendPending();
+                }
+                byte type = in.readByte();
+                if (type == CHUNK) {
+                    receiveChunk();
+                } else if (type == END) {
+                    int i = index(in.readInt());
+                    if (!done[i] && offset[i] == size[i]) {
+                        complete(i);
+                    }
+                    // otherwise chunks after a NACK are still on the way, the watch sends END again after them
+                } else if (type == BYE) {
+                    sendPending();
+                    return filesReceived;
+                } else {
+                    throw new IOException("Unexpected message " + type + " from the watch");
+                }
+            }
+        } finally {
+            closeParts();
+        }
+    }
+
+    private void readManifest() throws IOException {
+        if (in.readByte() != MANIFEST) {
+            throw new IOException("Expected the file list from the watch");
+        }
+        int chunkSize = in.readInt();
+        ackEvery = in.readInt();
+        int count = in.readInt();
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || ackEvery <= 0 || count < 0 || count > MAX_FILES) {
+            throw new IOException("Bad file list from the watch");
+        }
+        chunk = new byte[chunkSize];
+        key = new String[count];
+        size = new long[count];
+        fileCrc = new int[count];
+        offset = new long[count];
+        unacked = new int[count];
+        resending = new boolean[count];
+        done = new boolean[count];
+        part = new RandomAccessFile[count];
+        remaining = count;
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            size[i] = in.readLong();
+            fileCrc[i] = in.readInt();
+            if (name.contains("/") || size[i] < 0) {
+                throw new IOException("Bad file in the list from the watch: " + name);
+            }
+            key[i] = prefix + name;
+        }
+
+        out.writeByte(HAVE);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            if (alreadyReceived(i)) {
+                done[i] = true;
+                remaining--;
+                filesAlreadyHere++;
+                out.writeLong(-1);
+                continue;
+            }
+            File partFile = new File(directory, key[i] + ".part");
+            offset[i] = Math.min(savedOffset(i), partFile.length());
+            bytesResumed += offset[i];
+            out.writeLong(offset[i]);
+        }
+        out.flush();
+    }
+
+    private void receiveChunk() throws IOException {
+        int i = index(in.readInt());
+        long chunkOffset = in.readLong();
+        int length = in.readInt();
+        int chunkCrc = in.readInt();
+        if (length <= 0 || length > chunk.length) {
+            throw new IOException("Bad chunk length " + length + " in " + key[i]);
+        }
+        in.readFully(chunk, 0, length);
+        if (done[i]) {
+            return;
+        }
+        if (chunkOffset != offset[i]) {
+            if (!resending[i] && chunkOffset > offset[i]) {
+                nack(i);    /* missing data, can't write past it */
+            }
+            return;         /* old chunk from before a NACK */
+        }
+        crc.reset();
+        crc.update(chunk, 0, length);
+        if ((int) crc.getValue() != chunkCrc) {
+            badChunks++;
+            badChunksMetric.inc();
+            if (!resending[i]) {
+                nack(i);
+            }
+            return;
+        }
+        resending[i] = false;
+        RandomAccessFile file = part(i);
+        file.write(chunk, 0, length);
+        offset[i] += length;
+        bytesReceived += length;
+        bytesReceivedMetric.add(length);
+        if (++unacked[i] >= ackEvery) {
+            acknowledge(i);
+        }
+    }
+
+    /* all bytes are here: check the whole file and rename it */
+    private void complete(int i) throws IOException {
+        RandomAccessFile file = part(i);
+        file.getFD().sync();
+        file.close();
+        part[i] = null;
+        File partFile = new File(directory, key[i] + ".part");
+        if (checksum(partFile) != fileCrc[i]) {
+            // chunks were all fine, so the file changed on the watch: give up on it for this manifest
+            partFile.delete();
+            done[i] = true;
+            remaining--;
+            filesFailed++;
+            state.remove("part." + key[i]);
+            saveState();
+            out.writeByte(FAILED);
+            out.writeInt(i);
+            out.flush();
+            return;
+        }
+        File target = new File(directory, key[i]);
+        if (target.exists() && !target.delete() || !partFile.renameTo(target)) {
+            throw new IOException("Can't rename " + partFile.getName() + " to " + target.getName());
+        }
+        done[i] = true;
+        remaining--;
+        filesReceived++;
+        state.remove("part." + key[i]);
+        state.setProperty("received." + key[i], size[i] + " " + fileCrc[i] + " " + System.currentTimeMillis());
+        saveState();
+        pendingDone.add(i);
+        listener.onFileReceived(target, remaining);
+    }
+
+    private RandomAccessFile part(int i) throws IOException {
+        if (part[i] == null) {
+            part[i] = new RandomAccessFile(new File(directory, key[i] + ".part"), "rw");
+            part[i].setLength(offset[i]);   /* drop anything written after the last saved offset */
+            part[i].seek(offset[i]);
+        }
+        return part[i];
+    }
+
+    /* syncs the data to storage before telling the watch it doesn't need to send it again */
+    private void acknowledge(int i) throws IOException {
+        saveOffset(i);
+        out.writeByte(ACK);
+        out.writeInt(i);
+        out.writeLong(offset[i]);
+    }
+
+    private void saveOffset(int i) throws IOException {
+        part(i).getFD().sync();
+        state.setProperty("part." + key[i], size[i] + " " + fileCrc[i] + " " + offset[i]);
+        saveState();
+        unacked[i] = 0;
+    }
+
+    /* the ACKs of files with unacknowledged chunks and the DONEs, in one write */
+    private void sendPending() throws IOException {
+        for (int i = 0; i < key.length; i++) {
+            if (!done[i] && unacked[i] > 0) {
+                acknowledge(i);
+            }
+        }
+        if (!pendingDone.isEmpty()) {
+            out.writeByte(DONE);
+            out.writeInt(pendingDone.size());
+            for (int i : pendingDone) {
+                out.writeInt(i);
+            }
+            pendingDone.clear();
+        }
+        out.flush();
+    }
+
+    private void nack(int i) throws IOException {
+        resending[i] = true;
+        out.writeByte(NACK);
+        out.writeInt(i);
+        out.writeLong(offset[i]);
+        out.flush();
+    }
+
+    /* link is gone or the transfer failed: keep the chunks that did arrive for the next try */
+    private void closeParts() {
+        if (part == null) {
+            return;
+        }
+        for (int i = 0; i < part.length; i++) {
+            if (part[i] != null) {
+                try {
+                    if (unacked[i] > 0) {
+                        saveOffset(i);
+                    }
+                    part[i].close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                part[i] = null;
+            }
+        }
+    }
+
+    private int index(int i) throws IOException {
+        if (i < 0 || i >= key.length) {
+            throw new IOException("Watch sent file " + i + " of " + key.length);
+        }
+        return i;
+    }
+
+    /* received in an earlier transfer, or the same file is already in the directory */
+    private boolean alreadyReceived(int i) throws IOException {
+        String value = state.getProperty("received." + key[i]);
+        if (value != null) {
+            String[] parts = value.split(" ");
+            if (parts.length == 3 && parts[0].equals(Long.toString(size[i])) && parts[1].equals(Integer.toString(fileCrc[i]))) {
+                return true;
+            }
+        }
+        File target = new File(directory, key[i]);
+        return target.isFile() && target.length() == size[i] && checksum(target) == fileCrc[i];
+    }
+
+    private long savedOffset(int i) {
+        String value = state.getProperty("part." + key[i]);
+        if (value == null) {
+            return 0;
+        }
+        String[] parts = value.split(" ");
+        try {
+            return parts[0].equals(Long.toString(size[i])) && parts[1].equals(Integer.toString(fileCrc[i]))
+                    ? Long.parseLong(parts[2]) : 0;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+
+    private static int checksum(File file) throws IOException {
+        CRC32 whole = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream fileIn = new FileInputStream(file)) {
+            int n;
+            while ((n = fileIn.read(buffer)) > 0) {
+                whole.update(buffer, 0, n);
+            }
+        }
+        return (int) whole.getValue();
+    }
+
+    /*
+    Written to a temporary file and renamed, so a crash never leaves half a state file.
+    Files received more than RECEIVED_DAYS ago are forgotten, the watch deletes them long before that.
+     */
+    private void saveState() throws IOException {
+        long oldest = System.currentTimeMillis() - RECEIVED_DAYS * 24 * 60 * 60 * 1000;
+        for (String name : state.stringPropertyNames()) {
+            if (name.startsWith("received.")) {
+                String[] parts = state.getProperty(name).split(" ");
+                try {
+                    if (Long.parseLong(parts[parts.length - 1]) < oldest) {
+                        state.remove(name);
+                    }
+                } catch (NumberFormatException e) {
+                    state.remove(name);
+                }
+            }
+        }
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (OutputStream stateOut = new FileOutputStream(tmp)) {
+            state.store(stateOut, "files received from the watch");
+        }
+        if (!tmp.renameTo(stateFile)) {
+            throw new IOException("Can't write " + stateFile);
+        }
+    }
+
+    public String statsString() {
+        return "files=" + filesReceived + " alreadyHere=" + filesAlreadyHere + " failed=" + filesFailed
+                + " received=" + bytesReceived + " resumed=" + bytesResumed + " badChunks=" + badChunks;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getBytesResumed() {
+        return bytesResumed;
+    }
+
+    public long getBadChunks() {
+        return badChunks;
+    }
+
+    public int getFilesAlreadyHere() {
+        return filesAlreadyHere;
+    }
+
+    public int getFilesFailed() {
+        return filesFailed;
+    }
+}
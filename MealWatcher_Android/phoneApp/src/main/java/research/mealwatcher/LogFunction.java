@@ -24,14 +24,11 @@ import android.content.Context;
 import android.os.Environment;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 
 public class LogFunction {
     public File logFile;
-    static FileOutputStream fos;
+    static final AsyncLog log = new AsyncLog();
     public String logFileName;
 
     public static Context applicationContext;
@@ -53,55 +50,28 @@ public class LogFunction {
         this.applicationContext = applicationContext;
     }
 
+    /* the lines are written by a background thread (see AsyncLog), these calls only queue them */
     public void information(String sourceLevels, String content){
-
-        LocalDateTime now = LocalDateTime.now();
-        String time = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss-SSS"));
-        String text = time + "," + "I" + "," + sourceLevels + "," + content;
-        try {
-            fos.write(text.getBytes());
-            fos.write("\n".getBytes());
-            fos.flush();
-        } catch (Exception exception) {
-            exception.printStackTrace();
-        }
-
+        log.log(AsyncLog.INFO, sourceLevels, content);
     }
 
     public void error(String sourceLevels, String content){
-
-        LocalDateTime now = LocalDateTime.now();
-        String time = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss-SSS"));
-        String text = time + "," + "E" + "," + sourceLevels + "," + content;
-        try {
-            fos.write(text.getBytes());
-            fos.write("\n".getBytes());
-            fos.flush();
-        } catch (Exception exception) {
-            exception.printStackTrace();
-        }
-
+        log.log(AsyncLog.ERROR, sourceLevels, content);
     }
-    public void debug(String sourceLevels, String content){
 
-        LocalDateTime now = LocalDateTime.now();
-        String time = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss-SSS"));
-        String text = time + "," + "D" + "," + sourceLevels + "," + content;
-        try {
-            fos.write(text.getBytes());
-            fos.write("\n".getBytes());
-            fos.flush();
-        } catch (Exception exception) {
-            exception.printStackTrace();
-        }
+    public void debug(String sourceLevels, String content){
+        log.log(AsyncLog.DEBUG, sourceLevels, content);
+    }
 
+    /* messages below level (AsyncLog.DEBUG, INFO or ERROR) are not logged */
+    public static void setMinLevel(char level){
+        log.setMinLevel(level);
     }
 
 
     public void openFile(){
         try {
-            fos = new FileOutputStream(logFile, true);
-            fos.flush(); // Ensuring data is written out immediately
+            log.open(logFile);
         } catch (Exception exception) {
             exception.printStackTrace();
             error("File", "Output stream for log file is not opened");
@@ -110,7 +80,7 @@ public class LogFunction {
     }
     public void closeFile(){
         try {
-            fos.close();
+            log.close();    // writes what is still queued first
         } catch (IOException e) {
             e.printStackTrace();
 
@@ -130,32 +100,8 @@ public class LogFunction {
         }
     }
 
+    /* files not uploaded yet, counted by the upload queue (see UploadQueue) */
     public int failedToUpload() {
-
-        // get list of files and upload
-        int filesFailedUpload = 0;
-        File[] files = applicationContext.getExternalFilesDir(null).listFiles();
-
-        boolean filesExist = false;
-        if (files.length > 0) {
-            filesExist = true;
-        }
-
-        for (int i = 0; i < files.length; i++) {
-            if (files[i].getName().equals("authfile.json") || files[i].getName().endsWith(".txt")) {
-                continue;       // skip this file
-            }
-            if(files[i].getName().equals("ImagesFolder")){
-                continue;
-            }if(files[i].getName().endsWith(".log")){
-                continue;
-            }
-
-            else {
-                //System.out.println("File in the failed section: " + files[i].getName());
-                filesFailedUpload++; // let user know if any uploads fail
-            }
-        }
-        return filesFailedUpload;
+        return MainActivity.uploadQueue != null ? MainActivity.uploadQueue.remaining() : 0;
     }
 }
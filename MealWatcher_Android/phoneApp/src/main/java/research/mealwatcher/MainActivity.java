@@ -88,6 +88,8 @@ import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.recoveryrecord.surveyandroid.SurveyLoader;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -120,6 +122,7 @@ public class MainActivity extends AppCompatActivity {
     static TextView filesRemaining;
 
     static int failedUpload;
+    static UploadQueue uploadQueue;     /* files still to go to Dropbox */
     static View.OnClickListener pictureButtonListener;      /* callback for "camera" button in home activity*/
     static View.OnClickListener takePictureButtonListener;  /* callback for "take picture" button */
     static View.OnClickListener watchRecordButtonOnClickListener;  /* callback for click event of record button */
@@ -374,6 +377,7 @@ public class MainActivity extends AppCompatActivity {
         recordingHandler = new Handler();
 
         init();        /* create button callback functions */
+        SurveyLoader.prefetch(getApplicationContext(), Survey.QUESTIONS_FILE);    /* so the survey opens at once after the meal */
 
         //Initializing all the layout component
         launchWatchApp = (Button) findViewById(R.id.launchWatchApp);
@@ -1240,6 +1244,7 @@ public class MainActivity extends AppCompatActivity {
                         output = new FileOutputStream(takenPicture);
                         output.write(bytes);
                         output.close();
+                        ControlWatch.queueUpload(takenPicture);
 
                         output = new FileOutputStream(takenImage);
                         output.write(bytes);
@@ -1323,6 +1328,13 @@ public class MainActivity extends AppCompatActivity {
         prev_MAC_address = sharedPreferences.getString("prev_ring_mac", "0");
         //prev_watch_wrist = sharedPreferences.getString("prev_watch_id_value", "0");
         failedUpload = sharedPreferences.getInt("failed_upload", 0);
+        try {
+            uploadQueue = new UploadQueue(applicationContext.getExternalFilesDir(null),
+                    new File(applicationContext.getFilesDir(), "upload-queue.journal"));
+            failedUpload = Math.max(failedUpload, uploadQueue.remaining());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
         LocalDateTime now = LocalDateTime.now();
         logFileName = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"))+"-phone.log";
@@ -1332,6 +1344,9 @@ public class MainActivity extends AppCompatActivity {
         logFile = new File(applicationContext.getExternalFilesDir(null), currentLogFileName);
         logFunction.setLogFile(logFile);
         logFunction.openFile();
+        Metrics.gauge("upload.pending", () -> uploadQueue != null ? uploadQueue.remaining() : 0);
+        LogFunction metricsLog = logFunction;    /* not the activity, the reporter outlives it */
+        Metrics.startReporting(Metrics.DEFAULT_PERIOD_MS, line -> metricsLog.information("Metrics", line));
         //int versionCode = BuildConfig.VERSION_CODE;
         String versionName = BuildConfig.VERSION_NAME;
         String manufacturer = Build.MANUFACTURER;
@@ -1845,6 +1860,7 @@ public class MainActivity extends AppCompatActivity {
         stopService(ringServiceIntent);
         unregisterReceiver(batteryLevelReceiver);
         logFunction.closeFile();
+        ControlWatch.queueUpload(logFunction.logFile);
 
 
         /*if(timer != null){
@@ -0,0 +1,165 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+/**
+ * Takes the bytes of the Genki Wave ring's BLE notifications and gives back whole packets.
+ * A packet is COBS encoded and ends with a 0 byte, and one packet usually comes in several
+ * notifications, so bytes are collected in frame until the 0 arrives.  The frame is then decoded
+ * into packet: the first byte and every code byte after it tell how far the next 0 of the packet
+ * is (codes are unsigned, 255 means 254 bytes without a 0 after them), and the codes have to end
+ * exactly at the closing 0.  Frames that don't are counted as malformed and dropped, as are frames
+ * too long for the buffer.
+ * *
+ * Data packets (header 3 1 105 0) have to be DATA_PACKET_LENGTH bytes:
+ * *	0-3 header, 4-15 gyros, 16-27 accels, 28-39 mags, 40-55 "raw pose" (quaternion),
+ * *	56-71 "current pose" (quaternion), 72-83 Euler angles, 84-95 linear accel, 96 "peak detected",
+ * *	97-100 peak velocity, 101-108 timestamp (microseconds, little endian)
+ * Nothing is allocated per notification or packet; the listener gets the parser's own buffer.
+ */
+public class RingPacketParser {
+    public static final int MAX_FRAME_LENGTH = 256;
+    public static final int DATA_PACKET_LENGTH = 109;
+    public static final int TIMESTAMP_OFFSET = 101;
+
+    public interface Listener {
+        /* packet holds DATA_PACKET_LENGTH bytes, only until the call returns */
+        void onDataPacket(byte[] packet);
+    }
+
+    private final Listener listener;
+    private final byte[] frame = new byte[MAX_FRAME_LENGTH];
+    private final byte[] packet = new byte[MAX_FRAME_LENGTH];
+    private int frameLength;
+    private boolean overflow;   /* dropping bytes until the end of a frame that got too long */
+
+    /* statistics */
+    private long frames, dataPackets, otherPackets, malformedFrames;
+
+    public RingPacketParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /* drops a partly received frame, e.g. after connecting again */
+    public void reset() {
+        frameLength = 0;
+        overflow = false;
+    }
+
+    /* the bytes of one notification */
+    public void accept(byte[] value) {
+        accept(value, 0, value.length);
+    }
+
+    public void accept(byte[] value, int offset, int length) {
+        for (int k = offset; k < offset + length; k++) {
+            byte v = value[k];
+            if (v != 0) {
+                if (frameLength < MAX_FRAME_LENGTH) {
+                    frame[frameLength++] = v;
+                } else {
+                    overflow = true;
+                }
+                continue;
+            }
+            // end of a frame
+            if (overflow) {
+                malformedFrames++;
+            } else if (frameLength > 0) {
+                frameDone();
+            }
+            frameLength = 0;
+            overflow = false;
+        }
+    }
+
+    private void frameDone() {
+        frames++;
+        int packetLength = decode();
+        if (packetLength < 0) {
+            malformedFrames++;
+            return;
+        }
+        if (packetLength >= 4 && packet[0] == 3 && packet[1] == 1 && packet[2] == 105 && packet[3] == 0) {
+            if (packetLength != DATA_PACKET_LENGTH) {
+                malformedFrames++;
+                return;
+            }
+            dataPackets++;
+            listener.onDataPacket(packet);
+        } else {
+            otherPackets++;
+        }
+    }
+
+    /* COBS decodes frame into packet, returns the length or -1 if the codes don't add up */
+    private int decode() {
+        int length = 0;
+        int k = 0;
+        while (k < frameLength) {
+            int code = frame[k] & 0xFF;
+            int end = k + code;
+            if (end > frameLength) {
+                return -1;      /* code jumps past the end of the frame */
+            }
+            for (k++; k < end; k++) {
+                packet[length++] = frame[k];
+            }
+            if (code != 0xFF && end < frameLength) {
+                packet[length++] = 0;
+            }
+        }
+        return length;
+    }
+
+    public static long getLongLE(byte[] buffer, int offset) {
+        long value = 0;
+        for (int k = 7; k >= 0; k--) {
+            value = (value << 8) | (buffer[offset + k] & 0xFF);
+        }
+        return value;
+    }
+
+    public static void putLongLE(byte[] buffer, int offset, long value) {
+        for (int k = 0; k < 8; k++) {
+            buffer[offset + k] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getDataPackets() {
+        return dataPackets;
+    }
+
+    public long getOtherPackets() {
+        return otherPackets;
+    }
+
+    public long getMalformedFrames() {
+        return malformedFrames;
+    }
+
+    public String statsString() {
+        return "frames=" + frames + " data=" + dataPackets + " other=" + otherPackets + " malformed=" + malformedFrames;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes ring records to the ring file on its own thread, so the BLE callback only copies the
+ * record into a slot and returns.  The slots are one preallocated array used as a ring: the
+ * callback (the only producer) fills the slot at tail, the writer thread (the only consumer)
+ * writes from head, and both only ever move their own counter forward, so no lock is needed.
+ * *
+ * The writer writes straight out of the slot array, a whole batch in one write (two when it wraps
+ * around the end): as soon as batchRecords are waiting, or when the oldest waiting record has
+ * waited flushIntervalMs.  If the writer falls so far behind that all slots are full, new
+ * records are dropped and counted instead of blocking the callback.
+ * *
+ * The record timestamps (ring clock moved to the phone's, at TIMESTAMP_OFFSET) are checked as
+ * the records come in: a step of more than 1.5 sample periods is a gap in what the ring sent,
+ * counted separately from the records dropped here.
+ */
+public class RingRecordWriter implements Closeable {
+    public static final int DEFAULT_CAPACITY = 8192;        /* records, over 80 s at 100 Hz */
+    public static final int DEFAULT_BATCH = 256;            /* records per write */
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public static final long SAMPLE_PERIOD_MS = 10;         /* the ring sends at 100 Hz */
+    static final int TIMESTAMP_OFFSET = 64;
+
+    private final OutputStream out;
+    private final int recordLength;
+    private final int capacity;
+    private final int batchRecords;
+    private final long flushIntervalNanos;
+    private final byte[] slots;
+    private final AtomicLong head = new AtomicLong();   /* next record to write, moved by the writer */
+    private final AtomicLong tail = new AtomicLong();   /* next slot to fill, moved by the callback */
+    private final Thread writer;
+    private volatile boolean closing;
+    private volatile IOException error;
+
+    /* statistics, each written by one thread only */
+    private volatile long written, dropped, gaps, missingSamples, batches;
+    private volatile int maxDepth;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    public RingRecordWriter(OutputStream out, int recordLength) {
+        this(out, recordLength, DEFAULT_CAPACITY, DEFAULT_BATCH, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    public RingRecordWriter(OutputStream out, int recordLength, int capacity, int batchRecords, long flushIntervalMs) {
+        if (recordLength < TIMESTAMP_OFFSET + 8 || batchRecords <= 0 || capacity < batchRecords) {
+            throw new IllegalArgumentException("records must hold the timestamp and capacity must be at least one batch");
+        }
+        this.out = out;
+        this.recordLength = recordLength;
+        this.capacity = capacity;
+        this.batchRecords = batchRecords;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        slots = new byte[capacity * recordLength];
+        writer = new Thread(this::writeLoop, "RingRecordWriter");
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Called on the BLE callback thread with one record of recordLength bytes.  Returns false if
+     * the record was dropped because all slots are full or writing has failed.
+     */
+    public boolean offer(byte[] record) {
+        long timestamp = RingPacketParser.getLongLE(record, TIMESTAMP_OFFSET);
+        if (lastTimestamp != Long.MIN_VALUE && timestamp - lastTimestamp > SAMPLE_PERIOD_MS * 3 / 2) {
+            gaps++;
+            missingSamples += (timestamp - lastTimestamp + SAMPLE_PERIOD_MS / 2) / SAMPLE_PERIOD_MS - 1;
+        }
+        lastTimestamp = timestamp;
+
+        long t = tail.get();
+        int depth = (int) (t - head.get());
+        if (depth >= capacity || error != null || closing) {
+            dropped++;
+            return false;
+        }
+        System.arraycopy(record, 0, slots, (int) (t % capacity) * recordLength, recordLength);
+        tail.lazySet(t + 1);
+        depth++;
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        if (depth == batchRecords) {
+            LockSupport.unpark(writer);    /* once per batch, not per record */
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        long oldestSince = 0;   /* when the writer first saw records waiting */
+        try {
+            while (true) {
+                long h = head.get();
+                int waiting = (int) (tail.get() - h);
+                long now = System.nanoTime();
+                if (waiting == 0) {
+                    if (closing) {
+                        break;
+                    }
+                    oldestSince = 0;
+                    LockSupport.parkNanos(this, flushIntervalNanos);
+                    continue;
+                }
+                if (oldestSince == 0) {
+                    oldestSince = now;
+                }
+                if (waiting < batchRecords && now - oldestSince < flushIntervalNanos && !closing) {
+                    LockSupport.parkNanos(this, flushIntervalNanos - (now - oldestSince));
+                    continue;
+                }
+                int first = (int) (h % capacity);
+                int n = Math.min(waiting, capacity - first);    /* up to the end of the slots */
+                out.write(slots, first * recordLength, n * recordLength);
+                if (n < waiting) {
+                    out.write(slots, 0, (waiting - n) * recordLength);
+                }
+                out.flush();
+                head.lazySet(h + waiting);
+                written += waiting;
+                batches++;
+                oldestSince = 0;
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /* writes what is waiting, then closes the stream; throws if any write failed */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        if (writer.isAlive()) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        out.close();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public int getQueueDepth() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getGaps() {
+        return gaps;
+    }
+
+    public long getMissingSamples() {
+        return missingSamples;
+    }
+
+    public IOException getError() {
+        return error;
+    }
+
+    public String statsString() {
+        return "written=" + written + " batches=" + batches + " depth=" + getQueueDepth() + " maxDepth=" + maxDepth
+                + " dropped=" + dropped + " gaps=" + gaps + " missingSamples=" + missingSamples
+                + (error != null ? " error=" + error : "");
+    }
+}
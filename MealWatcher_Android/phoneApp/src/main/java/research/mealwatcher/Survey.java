@@ -27,16 +27,13 @@ import androidx.appcompat.app.AlertDialog;
 
 import com.recoveryrecord.surveyandroid.Answer;
 import com.recoveryrecord.surveyandroid.DefaultSubmitSurveyHandler;
+import com.recoveryrecord.surveyandroid.StreamingAnswerProvider;
+import com.recoveryrecord.surveyandroid.StreamingSubmitSurveyHandler;
 import com.recoveryrecord.surveyandroid.SubmitSurveyHandler;
 import com.recoveryrecord.surveyandroid.SurveyActivity;
 import com.recoveryrecord.surveyandroid.condition.CustomConditionHandler;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -45,6 +42,7 @@ import java.util.Map;
 
 public class Survey extends SurveyActivity
         implements CustomConditionHandler {
+    static final String QUESTIONS_FILE = "SurveyQuestions.json";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -58,7 +56,7 @@ public class Survey extends SurveyActivity
 
     @Override
     protected String getJsonFilename() {
-        return "SurveyQuestions.json";
+        return QUESTIONS_FILE;
     }
 
     @Override
@@ -88,7 +86,7 @@ public class Survey extends SurveyActivity
 
     @Override
     public void onBackPressed() {
-        if (!getOnSurveyStateChangedListener().scrollBackOneQuestion()) {
+        if (!isSurveyLoaded() || !getOnSurveyStateChangedListener().scrollBackOneQuestion()) {
             new AlertDialog.Builder(this)
                     .setTitle(com.recoveryrecord.surveyandroid.R.string.close_survey)
                     .setMessage(com.recoveryrecord.surveyandroid.R.string.are_you_sure_you_want_to_close)
@@ -109,44 +107,49 @@ public class Survey extends SurveyActivity
 
     @Override
     public SubmitSurveyHandler getSubmitSurveyHandler() {
-        return new DefaultSubmitSurveyHandler(this) {
-            @Override
-            public void submit(String url, String jsonQuestionAnswerData) {
-                MainActivity.takeSurvey.setChecked(true);
-                /*
-                Here local indicates that answers should be stored in local file system of the phone.
-                 */
-                if(url.equals("local")) {
-                    File directory = getExternalFilesDir(null);
-                    String filePrefix = null;
-                    if(prev_pid_value.length()<5){
-                        filePrefix   = "00000".substring(MainActivity.prev_pid_value.length()) + MainActivity.prev_pid_value + "-"; // This will ensure that the folder name is four digit based on the PID value
-                    }else{
-                        filePrefix = prev_pid_value + "-";
-                    }
-                    LocalDateTime now = LocalDateTime.now();
-                    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
-                    filePrefix += now.format(formatter) + "-survey";
-
-                    JSONObject json = null;
-                    String path = directory.toString() + "/" + filePrefix + ".json";
-                    try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
-                        json = new JSONObject(jsonQuestionAnswerData);
-                        writer.write(json.toString(4));
-
-                        // Uploading to dropbox at the end of the survey.
-                        Thread thread = ControlWatch.uploadToDropboxThread;
-                        if (thread.getState() == Thread.State.NEW) {
-                            thread.start();
-                        } else if (thread.getState() == Thread.State.TERMINATED) {
-                            ControlWatch.uploadToDropboxThread = new Thread(new ControlWatch.DropboxUploadRunnable());
-                            ControlWatch.uploadToDropboxThread.start();
-                        }
-                    } catch (JSONException | IOException e) {
-                        throw new RuntimeException(e);
+        return new LocalSubmitSurveyHandler();
+    }
+
+    private class LocalSubmitSurveyHandler extends DefaultSubmitSurveyHandler implements StreamingSubmitSurveyHandler {
+        LocalSubmitSurveyHandler() {
+            super(Survey.this);
+        }
+
+        @Override
+        public void submit(String url, StreamingAnswerProvider answerProvider) {
+            MainActivity.takeSurvey.setChecked(true);
+            /*
+            Here local indicates that answers should be stored in local file system of the phone.
+             */
+            if(url.equals("local")) {
+                File directory = getExternalFilesDir(null);
+                String filePrefix = null;
+                if(prev_pid_value.length()<5){
+                    filePrefix   = "00000".substring(MainActivity.prev_pid_value.length()) + MainActivity.prev_pid_value + "-"; // This will ensure that the folder name is four digit based on the PID value
+                }else{
+                    filePrefix = prev_pid_value + "-";
+                }
+                LocalDateTime now = LocalDateTime.now();
+                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+                filePrefix += now.format(formatter) + "-survey";
+
+                File file = new File(directory, filePrefix + ".json");
+                try {
+                    answerProvider.writeAnswersJson(file);     /* streamed straight into the file */
+                    ControlWatch.queueUpload(file);
+
+                    // Uploading to dropbox at the end of the survey.
+                    Thread thread = ControlWatch.uploadToDropboxThread;
+                    if (thread.getState() == Thread.State.NEW) {
+                        thread.start();
+                    } else if (thread.getState() == Thread.State.TERMINATED) {
+                        ControlWatch.uploadToDropboxThread = new Thread(new ControlWatch.DropboxUploadRunnable());
+                        ControlWatch.uploadToDropboxThread.start();
                     }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
                 }
             }
-        };
+        }
     }
 }
@@ -0,0 +1,292 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads files to Dropbox on a few worker threads.
+ * Files up to chunkSize go in one call.  Bigger files go through an upload session one chunk at a
+ * time, and the session id and the offset the server has are saved in stateFile after each chunk:
+ * a failed chunk is tried again by itself, and an upload that was interrupted (no network, app
+ * killed) continues at the saved offset the next time instead of starting the file over.
+ * Memory stays at one chunk buffer per worker.
+ */
+public class UploadEngine {
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_WORKERS = 3;
+    static final int ATTEMPTS = 3;              /* per call, for network errors */
+    static final int MAX_OFFSET_FIXES = 10;     /* per file, the server told us a different offset */
+    private static final Metrics.Histogram callMs = Metrics.histogram("upload.call_ms");    /* one Dropbox request */
+    private static final Metrics.Histogram fileMs = Metrics.histogram("upload.file_ms");
+    private static final Metrics.Counter uploadedBytes = Metrics.counter("upload.bytes");
+    private static final Metrics.Counter uploadedFiles = Metrics.counter("upload.files");
+    private static final Metrics.Counter failedFiles = Metrics.counter("upload.failures");
+    private static final Metrics.Counter retries = Metrics.counter("upload.retries");
+    long retryDelayMs = 2000;                   /* times the attempt number */
+
+    public static class Job {
+        final File file;
+        final String dropboxPath;
+
+        public Job(File file, String dropboxPath) {
+            this.file = file;
+            this.dropboxPath = dropboxPath;
+        }
+    }
+
+    public interface Listener {
+        /* error is null if the file was uploaded */
+        void onUploaded(File file, IOException error);
+    }
+
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    private final UploadSessions sessions;
+    private final File stateFile;
+    private final Properties state = new Properties();
+    private final int chunkSize;
+    private final int workers;
+
+    public UploadEngine(UploadSessions sessions, File stateFile) throws IOException {
+        this(sessions, stateFile, DEFAULT_CHUNK_SIZE, DEFAULT_WORKERS);
+    }
+
+    public UploadEngine(UploadSessions sessions, File stateFile, int chunkSize, int workers) throws IOException {
+        if (chunkSize <= 0 || workers <= 0) {
+            throw new IllegalArgumentException("chunkSize and workers must be > 0");
+        }
+        this.sessions = sessions;
+        this.stateFile = stateFile;
+        this.chunkSize = chunkSize;
+        this.workers = workers;
+        if (stateFile.exists()) {
+            try (InputStream stateIn = new FileInputStream(stateFile)) {
+                state.load(stateIn);
+            }
+        }
+    }
+
+    /**
+     * Uploads all jobs and returns the number that failed.  listener is called on this thread,
+     * in the order of jobs, as the uploads finish.
+     */
+    public int uploadAll(List<Job> jobs, Listener listener) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, jobs.size())));
+        List<Future<?>> results = new ArrayList<>();
+        for (Job job : jobs) {
+            results.add(pool.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    upload(job);
+                } catch (IOException | RuntimeException e) {
+                    failedFiles.inc();
+                    throw e;
+                }
+                fileMs.record((System.nanoTime() - start) / 1000000);
+                uploadedFiles.inc();
+                uploadedBytes.add(job.file.length());
+                return null;
+            }));
+        }
+        pool.shutdown();
+        int failed = 0;
+        try {
+            for (int i = 0; i < jobs.size(); i++) {
+                IOException error = null;
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+                if (error != null) {
+                    failed++;
+                }
+                listener.onUploaded(jobs.get(i).file, error);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return failed;
+    }
+
+    void upload(Job job) throws IOException {
+        File file = job.file;
+        long size = file.length();
+        long modified = file.lastModified();
+        byte[] chunk = new byte[(int) Math.min(chunkSize, size)];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (size <= chunkSize) {
+                in.readFully(chunk);
+                checkSize(job, size, attempt(() -> sessions.upload(job.dropboxPath, chunk, chunk.length, modified)));
+                return;
+            }
+
+            String sessionId = null;
+            long offset = 0;
+            String[] saved = savedSession(job.dropboxPath);
+            if (saved != null && saved[2].equals(Long.toString(size)) && saved[3].equals(Long.toString(modified))) {
+                sessionId = saved[0];
+                offset = Long.parseLong(saved[1]);
+            }
+            int offsetFixes = 0;
+            boolean restarted = false;
+            while (true) {
+                try {
+                    if (sessionId == null) {
+                        int length = read(in, 0, chunk);
+                        sessionId = attempt(() -> sessions.start(chunk, length));
+                        offset = length;
+                        saveSession(job.dropboxPath, sessionId, offset, size, modified);
+                    }
+                    while (size - offset > chunkSize) {
+                        int length = read(in, offset, chunk);
+                        String id = sessionId;
+                        long at = offset;
+                        attempt(() -> {
+                            sessions.append(id, at, chunk, length);
+                            return null;
+                        });
+                        offset += length;
+                        saveSession(job.dropboxPath, sessionId, offset, size, modified);
+                    }
+                    int length = read(in, offset, chunk);
+                    String id = sessionId;
+                    long at = offset;
+                    long committed = attempt(() -> sessions.finish(id, at, chunk, length, job.dropboxPath, modified));
+                    clearSession(job.dropboxPath);
+                    checkSize(job, size, committed);
+                    return;
+                } catch (UploadSessions.OffsetException e) {
+                    if (e.correctOffset >= 0 && e.correctOffset <= size && ++offsetFixes <= MAX_OFFSET_FIXES) {
+                        // usually a chunk that arrived although its answer got lost
+                        offset = e.correctOffset;
+                        saveSession(job.dropboxPath, sessionId, offset, size, modified);
+                    } else if (e.correctOffset < 0 && !restarted) {
+                        // the session expired (they last a week) or was closed: start the file over
+                        restarted = true;
+                        sessionId = null;
+                        offset = 0;
+                        clearSession(job.dropboxPath);
+                    } else {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /* a call with a few more tries on network errors; a wrong offset is handled by the caller */
+    private <T> T attempt(Call<T> call) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return timed(call);
+            } catch (UploadSessions.OffsetException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= ATTEMPTS) {
+                    throw e;
+                }
+                retries.inc();
+                try {
+                    Thread.sleep(retryDelayMs * attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static <T> T timed(Call<T> call) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            callMs.record((System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    private static int read(RandomAccessFile in, long offset, byte[] chunk) throws IOException {
+        int length = (int) Math.min(chunk.length, in.length() - offset);
+        in.seek(offset);
+        in.readFully(chunk, 0, length);
+        return length;
+    }
+
+    private static void checkSize(Job job, long size, long committed) throws IOException {
+        if (committed != size) {
+            throw new IOException(job.file.getName() + ": Dropbox has " + committed + " of " + size + " bytes");
+        }
+    }
+
+    /* sessionId offset size lastModified */
+    private synchronized String[] savedSession(String dropboxPath) {
+        String value = state.getProperty(dropboxPath);
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(" ");
+        try {
+            Long.parseLong(parts[1]);
+            return parts.length == 4 ? parts : null;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private synchronized void saveSession(String dropboxPath, String sessionId, long offset, long size, long modified)
+            throws IOException {
+        state.setProperty(dropboxPath, sessionId + " " + offset + " " + size + " " + modified);
+        saveState();
+    }
+
+    private synchronized void clearSession(String dropboxPath) throws IOException {
+        if (state.remove(dropboxPath) != null) {
+            saveState();
+        }
+    }
+
+    /* written to a temporary file and renamed, so a crash never leaves half a state file */
+    private void saveState() throws IOException {
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (OutputStream stateOut = new FileOutputStream(tmp)) {
+            state.store(stateOut, "Dropbox upload sessions in progress");
+        }
+        if (!tmp.renameTo(stateFile)) {
+            throw new IOException("Can't write " + stateFile);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The files in the app's directory that still have to go to Dropbox.
+ * Files are added when they are finished (watch file received, ring recording stopped, survey
+ * saved, ...) instead of being found by listing the directory, so the number of files to upload is
+ * a counter.  Every change is a line appended to the journal file:
+ * *	A name priority						added, pending
+ * *	S name								in flight
+ * *	D name								done
+ * *	F name attempts nextAttemptMillis	failed, to be tried again after a backoff
+ * *	P name								pending again, the upload was stopped before it ended
+ * *	R name								removed, the file is gone
+ * On opening, the journal is read back; files that were in flight when the app died are pending
+ * again.  A half written last line is ignored.  Whenever the journal has grown to more than twice
+ * what it was rewritten to last time (plus 100 lines), it is rewritten without the old lines; done
+ * entries whose file is still here are kept, so the rewrite happens less often as they pile up.
+ */
+public class UploadQueue {
+    public enum State { PENDING, IN_FLIGHT, DONE, FAILED }
+
+    public static final int PRIORITY_LOG = 0;
+    public static final int PRIORITY_DATA = 1;
+    public static final int PRIORITY_SURVEY = 2;    /* small and needed first: surveys and meal pictures */
+    static final long BASE_BACKOFF_MS = 60 * 1000;
+    static final long MAX_BACKOFF_MS = 6 * 60 * 60 * 1000;
+
+    public static class Entry {
+        public final String name;
+        public final int priority;
+        State state = State.PENDING;
+        int attempts;
+        long nextAttemptAt;
+
+        Entry(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    private final File directory;
+    private final File journal;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private int pending, inFlight, failed;
+    private int journalLines;
+    private int compactedLines;     /* lines written by the last compaction, see compactIfLong */
+    private int compactions;
+
+    public UploadQueue(File directory, File journal) throws IOException {
+        this.directory = directory;
+        this.journal = journal;
+        if (journal.exists()) {
+            replay();
+        }
+        compactedLines = liveLines();
+        compactIfLong();
+    }
+
+    /* the upload rules for names, the same for every place that adds files */
+    public static boolean isUploadFile(File file) {
+        String name = file.getName();
+        return file.isFile() && !name.equals("authfile.json") && !name.endsWith(".txt")
+                && !name.endsWith(".part") && !name.endsWith(".tmp");
+    }
+
+    public static int priorityOf(String name) {
+        if (name.endsWith(".log")) {
+            return PRIORITY_LOG;
+        }
+        if (name.endsWith(".json") || name.endsWith(".jpg")) {
+            return PRIORITY_SURVEY;
+        }
+        return PRIORITY_DATA;
+    }
+
+    /* adds a finished file; a file already waiting keeps its place */
+    public synchronized void add(File file) throws IOException {
+        String name = file.getName();
+        Entry entry = entries.get(name);
+        if (entry != null && entry.state != State.DONE) {
+            return;
+        }
+        append("A\t" + name + "\t" + priorityOf(name));
+    }
+
+    /**
+     * The files to upload now, highest priority first, and marks them in flight.
+     * Failed files wait for their backoff unless force (the upload button).
+     */
+    public synchronized List<String> take(long now, boolean force) throws IOException {
+        List<Entry> ready = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.PENDING
+                    || entry.state == State.FAILED && (force || entry.nextAttemptAt <= now)) {
+                ready.add(entry);
+            }
+        }
+        ready.sort((a, b) -> b.priority - a.priority);     /* stable, so oldest first within a priority */
+        StringBuilder lines = new StringBuilder();
+        List<String> names = new ArrayList<>();
+        for (Entry entry : ready) {
+            lines.append(lines.length() > 0 ? "\n" : "").append("S\t").append(entry.name);
+            names.add(entry.name);
+        }
+        if (!names.isEmpty()) {
+            append(lines.toString());
+        }
+        return names;
+    }
+
+    public synchronized void done(String name) throws IOException {
+        if (entries.containsKey(name)) {
+            append("D\t" + name);
+        }
+    }
+
+    public synchronized void failed(String name, long now) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            int attempts = entry.attempts + 1;
+            long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempts - 1, 20));
+            append("F\t" + name + "\t" + attempts + "\t" + (now + backoff));
+        }
+    }
+
+    /* a file taken but not uploaded, e.g. the upload was interrupted, goes back to pending */
+    public synchronized void requeue(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry != null && entry.state == State.IN_FLIGHT) {
+            append("P\t" + name);
+        }
+    }
+
+    public synchronized void remove(String name) throws IOException {
+        if (entries.containsKey(name)) {
+            append("R\t" + name);
+        }
+    }
+
+    /**
+     * Brings the queue in line with the directory: adds upload files it doesn't know (from an
+     * older app version, or a crash between writing a file and adding it) and removes entries
+     * whose file is gone.  Meant for once after the app starts, not for counting.
+     */
+    public synchronized void reconcile(Set<String> skip) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (isUploadFile(file) && !skip.contains(file.getName()) && !entries.containsKey(file.getName())) {
+                add(file);
+            }
+        }
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (entry.state != State.DONE && !new File(directory, entry.name).exists()) {
+                remove(entry.name);
+            }
+        }
+    }
+
+    /* files not uploaded yet: pending, in flight and failed */
+    public synchronized int remaining() {
+        return pending + inFlight + failed;
+    }
+
+    public synchronized int count(State state) {
+        switch (state) {
+            case PENDING: return pending;
+            case IN_FLIGHT: return inFlight;
+            case FAILED: return failed;
+            default: return entries.size() - pending - inFlight - failed;
+        }
+    }
+
+    public synchronized Entry get(String name) {
+        return entries.get(name);
+    }
+
+    private void apply(String line) {
+        String[] parts = line.split("\t");
+        if (parts.length < 2) {
+            return;
+        }
+        String name = parts[1];
+        Entry entry = entries.get(name);
+        try {
+            switch (parts[0]) {
+                case "A":
+                    int priority = Integer.parseInt(parts[2]);
+                    if (entry != null) {
+                        setState(entry, null);
+                        entries.remove(name);
+                    }
+                    entry = new Entry(name, priority);
+                    entries.put(name, entry);
+                    pending++;
+                    break;
+                case "S":
+                    if (entry != null) {
+                        setState(entry, State.IN_FLIGHT);
+                    }
+                    break;
+                case "D":
+                    if (entry != null) {
+                        setState(entry, State.DONE);
+                    }
+                    break;
+                case "F":
+                    if (entry != null) {
+                        entry.attempts = Integer.parseInt(parts[2]);
+                        entry.nextAttemptAt = Long.parseLong(parts[3]);
+                        setState(entry, State.FAILED);
+                    }
+                    break;
+                case "P":
+                    if (entry != null) {
+                        setState(entry, State.PENDING);
+                    }
+                    break;
+                case "R":
+                    if (entry != null) {
+                        setState(entry, null);
+                        entries.remove(name);
+                    }
+                    break;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // half written line from a crash
+        }
+    }
+
+    /* moves entry to state (null: out of the queue) and keeps the counters */
+    private void setState(Entry entry, State state) {
+        switch (entry.state) {
+            case PENDING: pending--; break;
+            case IN_FLIGHT: inFlight--; break;
+            case FAILED: failed--; break;
+        }
+        if (state == null) {
+            return;
+        }
+        entry.state = state;
+        switch (state) {
+            case PENDING: pending++; break;
+            case IN_FLIGHT: inFlight++; break;
+            case FAILED: failed++; break;
+        }
+    }
+
+    private void replay() throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                apply(line);
+                journalLines++;
+            }
+        }
+        // the app died while these were uploading, they go again
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.IN_FLIGHT) {
+                setState(entry, State.PENDING);
+            }
+        }
+        // a crash in the middle of a line: start the next one on a new line
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            if (file.length() > 0) {
+                file.seek(file.length() - 1);
+                if (file.read() != '\n') {
+                    file.write('\n');
+                }
+            }
+        }
+    }
+
+    /* writes lines to the journal and to storage, then applies them */
+    private void append(String lines) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            out.write((lines + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        for (String line : lines.split("\n")) {
+            apply(line);
+            journalLines++;
+        }
+        compactIfLong();
+    }
+
+    /*
+    Measured against the last compaction and not the queue, which doesn't count the done entries a
+    compaction keeps: with enough of those every append would rewrite the whole journal.
+     */
+    private void compactIfLong() throws IOException {
+        if (journalLines > 2 * compactedLines + 100) {
+            compact();
+        }
+    }
+
+    /* at most the lines compact() writes for the entries */
+    private int liveLines() {
+        int lines = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.DONE) {
+                lines += 2;
+            } else if (entry.attempts > 0) {
+                lines += entry.state == State.FAILED ? 2 : 3;
+            } else {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /* the journal again with one line per entry; done entries only while their file is still here */
+    private void compact() throws IOException {
+        File tmp = new File(journal.getPath() + ".tmp");
+        int lines = 0;
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            for (Entry entry : new ArrayList<>(entries.values())) {
+                if (entry.state == State.DONE && !new File(directory, entry.name).exists()) {
+                    entries.remove(entry.name);
+                    continue;
+                }
+                writer.write("A\t" + entry.name + "\t" + entry.priority + "\n");
+                lines++;
+                if (entry.state == State.DONE) {
+                    writer.write("D\t" + entry.name + "\n");
+                    lines++;
+                } else if (entry.attempts > 0) {
+                    writer.write("F\t" + entry.name + "\t" + entry.attempts + "\t" + entry.nextAttemptAt + "\n");
+                    lines++;
+                    if (entry.state != State.FAILED) {     /* tried before, waiting or uploading again */
+                        writer.write("P\t" + entry.name + "\n");
+                        lines++;
+                    }
+                }
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(journal)) {
+            throw new IOException("Can't write " + journal);
+        }
+        journalLines = lines;
+        compactedLines = lines;
+        compactions++;
+    }
+
+    int getCompactions() {
+        return compactions;
+    }
+}
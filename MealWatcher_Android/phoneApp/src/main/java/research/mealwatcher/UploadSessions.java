@@ -0,0 +1,53 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.IOException;
+
+/**
+ * The upload session calls of the Dropbox API, as used by UploadEngine:
+ * *	upload_session/start	first chunk, returns the session id
+ * *	upload_session/append	more chunks at an offset
+ * *	upload_session/finish	last chunk, commits the file
+ * *	upload					a small file in one call
+ * DropboxUploadSessions implements them with the Dropbox SDK.
+ */
+public interface UploadSessions {
+
+    String start(byte[] data, int length) throws IOException;
+
+    void append(String sessionId, long offset, byte[] data, int length) throws IOException;
+
+    /* returns the size of the committed file */
+    long finish(String sessionId, long offset, byte[] data, int length, String path, long clientModified)
+            throws IOException;
+
+    long upload(String path, byte[] data, int length, long clientModified) throws IOException;
+
+    /* the session is not at the offset of the call; correctOffset is -1 if the session is gone */
+    class OffsetException extends IOException {
+        private static final long serialVersionUID = 1L;
+        public final long correctOffset;
+
+        public OffsetException(String message, long correctOffset) {
+            super(message);
+            this.correctOffset = correctOffset;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes a file written by the watch's BlockEncoder with steps {0.01, 0 (lossless)} and 3 records
+ * per block: 4 records, so one full block and one block with a single record.
+ */
+public class BlockDecoderTest {
+    private static final byte[] GOLDEN = {
+            (byte) 0x4D, (byte) 0x57, (byte) 0x5A, (byte) 0x01, (byte) 0x02, (byte) 0x7B, (byte) 0x14, (byte) 0xAE,
+            (byte) 0x47, (byte) 0xE1, (byte) 0x7A, (byte) 0x84, (byte) 0x3F, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x00, (byte) 0x1B,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xD0, (byte) 0x0F, (byte) 0x14, (byte) 0x00, (byte) 0xA6,
+            (byte) 0x1F, (byte) 0x14, (byte) 0x02, (byte) 0x02, (byte) 0xC8, (byte) 0x01, (byte) 0x03, (byte) 0x2C,
+            (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0xF8, (byte) 0x03, (byte) 0x20, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xFF, (byte) 0xC9, (byte) 0x4F,
+            (byte) 0xE1, (byte) 0xC5, (byte) 0x01, (byte) 0x00, (byte) 0x0F, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x8C, (byte) 0x10, (byte) 0x00, (byte) 0xE2, (byte) 0x1F, (byte) 0x00, (byte) 0xAB, (byte) 0x02,
+            (byte) 0x00, (byte) 0x80, (byte) 0x80, (byte) 0xC0, (byte) 0x82, (byte) 0x04, (byte) 0x00, (byte) 0x78,
+            (byte) 0x43, (byte) 0x33, (byte) 0x12};
+    private static final float[][] VALUES = {{1.00f, 0.5f}, {1.02f, 0.5f}, {0.99f, -2.0f}, {-1.5f, 3.25f}};
+    private static final long[] TIMESTAMPS = {1000, 1010, 1020, 1030};
+    private static final long[] SYSTEM_TIMES = {2003, 2013, 2024, 2033};
+    private static final int SECOND_BLOCK = 58;     /* offset of the second block in GOLDEN */
+
+    private final List<float[]> readings = new ArrayList<>();
+    private final List<Long> times = new ArrayList<>();
+
+    private BlockDecoder decode(byte[] file) throws IOException {
+        BlockDecoder decoder = new BlockDecoder(new ByteArrayInputStream(file));
+        decoder.decode((sensor_reading, timestamp, timeStampSystem) -> {
+            readings.add(sensor_reading.clone());
+            times.add(timestamp);
+            times.add(timeStampSystem);
+        });
+        return decoder;
+    }
+
+    @Test
+    public void decodesGoldenFile() throws IOException {
+        BlockDecoder decoder = decode(GOLDEN);
+        assertEquals(2, decoder.getChannels());
+        assertEquals(4, decoder.getRecords());
+        assertEquals(2, decoder.getBlocks());
+        assertEquals(0, decoder.getCorruptBlocks());
+        assertFalse(decoder.isTruncated());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(VALUES[i][0], readings.get(i)[0], 0.005f);     /* quantized to 0.01 */
+            assertEquals(VALUES[i][1], readings.get(i)[1], 0.0f);       /* lossless */
+            assertEquals(TIMESTAMPS[i], (long) times.get(2 * i));
+            assertEquals(SYSTEM_TIMES[i], (long) times.get(2 * i + 1));
+        }
+    }
+
+    @Test
+    public void corruptBlock_isSkipped() throws IOException {
+        byte[] file = GOLDEN.clone();
+        file[40] ^= 0x10;   /* inside the payload of the first block */
+        BlockDecoder decoder = decode(file);
+        assertEquals(1, decoder.getCorruptBlocks());
+        assertEquals(1, decoder.getRecords());
+        assertEquals(TIMESTAMPS[3], (long) times.get(0));
+        assertEquals(VALUES[3][1], readings.get(0)[1], 0.0f);
+    }
+
+    @Test
+    public void truncatedFile_keepsCompleteBlocks() throws IOException {
+        BlockDecoder decoder = decode(Arrays.copyOf(GOLDEN, GOLDEN.length - 2));
+        assertTrue(decoder.isTruncated());
+        assertEquals(3, decoder.getRecords());
+        assertEquals(0, decoder.getCorruptBlocks());
+
+        readings.clear();
+        decoder = decode(Arrays.copyOf(GOLDEN, SECOND_BLOCK));
+        assertFalse(decoder.isTruncated());
+        assertEquals(3, decoder.getRecords());
+    }
+
+    @Test(expected = IOException.class)
+    public void notCompressedFile_isRejected() throws IOException {
+        new BlockDecoder(new ByteArrayInputStream(new byte[80]));
+    }
+
+    @Test
+    public void decodeToRaw_writesDataRecords() throws IOException {
+        // 16 channels like the watch file, every value lossless
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(new byte[]{'M', 'W', 'Z', 1, 16});
+        file.write(new byte[16 * 8]);
+        // one record; channels 1..15 are a 0 varint and a 0 width byte each, so the payload is 12 + 15 * 2
+        byte[] block = Arrays.copyOf(new byte[]{1, 0, 42, 0, 0, 0,
+                (byte) 0xD0, 0x0F, 0,       /* timestamp 1000 */
+                (byte) 0xA6, 0x1F, 0,       /* system time 2003 */
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0xFC, 0x03, 0}, 6 + 42 + 4);    /* channel 0: 1.0f */
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, 6 + 42);
+        ByteBuffer.wrap(block, 48, 4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) crc.getValue());
+        file.write(block);
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        long records = new BlockDecoder(new ByteArrayInputStream(file.toByteArray())).decodeToRaw(raw);
+        assertEquals(1, records);
+        assertEquals(BlockDecoder.RECORD_SIZE, raw.size());
+        ByteBuffer record = ByteBuffer.wrap(raw.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(1.0f, record.getFloat(0), 0.0f);
+        assertEquals(0.0f, record.getFloat(4), 0.0f);
+        assertEquals(1000, record.getLong(64));
+        assertEquals(2003, record.getLong(72));
+    }
+}
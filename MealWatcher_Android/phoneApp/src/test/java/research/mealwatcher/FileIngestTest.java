@@ -0,0 +1,82 @@
+package research.mealwatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class FileIngestTest {
+    private File directory;
+    private File target;
+    private byte[] content;
+    private long crc32;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ingest").toFile();
+        target = new File(directory, "P1-a.mwz");
+        // more than one buffer, so the copy loops
+        content = new byte[FileIngest.BUFFER_SIZE * 2 + 123];
+        new Random(4).nextBytes(content);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        crc32 = crc.getValue();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void copiesFromFileDescriptor() throws IOException {
+        File source = new File(directory, "asset");
+        Files.write(source.toPath(), content);
+        assertEquals(content.length, FileIngest.ingest(new FileInputStream(source), target, content.length, crc32));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertFalse(new File(directory, "P1-a.mwz.part").exists());
+    }
+
+    @Test
+    public void copiesFromOtherStreams_withoutChecks() throws IOException {
+        FileIngest.ingest(new ByteArrayInputStream(content), target, FileIngest.UNKNOWN, FileIngest.UNKNOWN);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void wrongCrc_leavesNothing() throws IOException {
+        content[1000] ^= 1;
+        try {
+            FileIngest.ingest(new ByteArrayInputStream(content), target, content.length, crc32);
+            fail("the copy doesn't match");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void shortCopy_keepsOldFile() throws IOException {
+        Files.write(target.toPath(), new byte[]{1, 2, 3});
+        try {
+            FileIngest.ingest(new ByteArrayInputStream(content, 0, 5000), target, content.length, crc32);
+            fail("the copy is short");
+        } catch (IOException e) {
+            // expected
+        }
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(target.toPath()));
+        assertEquals(1, directory.listFiles().length);
+    }
+}
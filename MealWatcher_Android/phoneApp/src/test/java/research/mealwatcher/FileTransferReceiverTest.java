@@ -0,0 +1,231 @@
+package research.mealwatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays the watch side of the channel transfer (see FileTransferSender in the watch app)
+ * and checks what the receiver answers and stores.
+ */
+public class FileTransferReceiverTest {
+    private static final int CHUNK = 1000;
+
+    private File directory;
+    private File stateFile;
+    private final List<String> received = new ArrayList<>();
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("transfer").toFile();
+        stateFile = new File(directory.getParentFile(), directory.getName() + ".properties");
+        content = new byte[4500];
+        new Random(1).nextBytes(content);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+        stateFile.delete();
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /* messages from the watch */
+    private static class Watch {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        /* names and contents of the files, alternating */
+        Watch manifest(int ackEvery, Object... files) throws IOException {
+            out.writeByte('M');
+            out.writeInt(CHUNK);
+            out.writeInt(ackEvery);
+            out.writeInt(files.length / 2);
+            for (int i = 0; i < files.length; i += 2) {
+                byte[] data = (byte[]) files[i + 1];
+                out.writeUTF((String) files[i]);
+                out.writeLong(data.length);
+                out.writeInt(crc(data));
+            }
+            return this;
+        }
+
+        Watch chunk(int file, byte[] content, int offset, boolean corrupt) throws IOException {
+            int length = Math.min(CHUNK, content.length - offset);
+            CRC32 crc = new CRC32();
+            crc.update(content, offset, length);
+            out.writeByte('C');
+            out.writeInt(file);
+            out.writeLong(offset);
+            out.writeInt(length);
+            out.writeInt((int) crc.getValue() ^ (corrupt ? 1 : 0));
+            out.write(content, offset, length);
+            return this;
+        }
+
+        Watch all(int file, byte[] content, int from) throws IOException {
+            for (int offset = from; offset < content.length; offset += CHUNK) {
+                chunk(file, content, offset, false);
+            }
+            return end(file);
+        }
+
+        Watch end(int file) throws IOException {
+            out.writeByte('E');
+            out.writeInt(file);
+            return this;
+        }
+
+        Watch bye() throws IOException {
+            out.writeByte('B');
+            return this;
+        }
+    }
+
+    /* runs the receiver on the watch messages and returns its answers as "H0,0 A0:2000 D0,1 ..." */
+    private String receive(Watch watch) throws IOException {
+        ByteArrayOutputStream answers = new ByteArrayOutputStream();
+        FileTransferReceiver receiver = new FileTransferReceiver(new ByteArrayInputStream(watch.bytes.toByteArray()),
+                answers, directory, "P1-", stateFile, (file, filesLeft) -> received.add(file.getName() + " " + filesLeft));
+        try {
+            receiver.receiveAll();
+        } catch (EOFException e) {
+            // watch went away
+        }
+        StringBuilder sb = new StringBuilder();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(answers.toByteArray()));
+        while (in.available() > 0) {
+            char type = (char) in.readByte();
+            sb.append(sb.length() > 0 ? " " : "").append(type);
+            if (type == 'H') {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    sb.append(i > 0 ? "," : "").append(in.readLong());
+                }
+            } else if (type == 'D') {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    sb.append(i > 0 ? "," : "").append(in.readInt());
+                }
+            } else if (type == 'F') {
+                sb.append(in.readInt());
+            } else {
+                sb.append(in.readInt()).append(':').append(in.readLong());
+            }
+        }
+        return sb.toString();
+    }
+
+    private byte[] stored(String name) throws IOException {
+        return Files.readAllBytes(new File(directory, name).toPath());
+    }
+
+    @Test
+    public void receivesFiles_andRenamesWhenComplete() throws IOException {
+        byte[] small = Arrays.copyOf(content, 1500);
+        Watch watch = new Watch().manifest(2, "a.mwz", content, "b.mwz", small)
+                .all(0, content, 0).all(1, small, 0).bye();
+
+        // the watch sent everything without waiting, so the DONEs go out together at the end
+        assertEquals("H0,0 A0:2000 A0:4000 A1:1500 D0,1", receive(watch));
+        assertArrayEquals(content, stored("P1-a.mwz"));
+        assertArrayEquals(small, stored("P1-b.mwz"));
+        assertFalse(new File(directory, "P1-a.mwz.part").exists());
+        assertEquals(Arrays.asList("P1-a.mwz 1", "P1-b.mwz 0"), received);
+    }
+
+    @Test
+    public void badChunk_isAskedForAgain() throws IOException {
+        Watch watch = new Watch().manifest(10, "a.mwz", content)
+                .chunk(0, content, 0, false)
+                .chunk(0, content, 1000, true)      /* bad CRC */
+                .chunk(0, content, 2000, false)     /* already on the way, dropped */
+                .all(0, content, 1000)              /* sent again after the NACK */
+                .bye();
+
+        assertEquals("H0 N0:1000 D0", receive(watch));
+        assertArrayEquals(content, stored("P1-a.mwz"));
+    }
+
+    @Test
+    public void endBeforeResentChunks_waitsForThem() throws IOException {
+        Watch watch = new Watch().manifest(10, "a.mwz", content);
+        for (int offset = 0; offset < content.length; offset += CHUNK) {
+            watch.chunk(0, content, offset, offset == 3000);
+        }
+        watch.end(0).all(0, content, 3000).bye();
+
+        assertEquals("H0 N0:3000 D0", receive(watch));
+        assertArrayEquals(content, stored("P1-a.mwz"));
+    }
+
+    @Test
+    public void brokenTransfer_resumesAtReceivedOffset() throws IOException {
+        // the link breaks in the middle of the third chunk
+        Watch first = new Watch().manifest(10, "a.mwz", content).chunk(0, content, 0, false).chunk(0, content, 1000, false);
+        first.out.write(new byte[]{'C', 0, 0});
+        receive(first);
+        assertTrue(received.isEmpty());
+        assertEquals(2000, new File(directory, "P1-a.mwz.part").length());
+
+        assertTrue(receive(new Watch().manifest(10, "a.mwz", content).all(0, content, 2000).bye()).startsWith("H2000 "));
+        assertArrayEquals(content, stored("P1-a.mwz"));
+        assertEquals(Arrays.asList("P1-a.mwz 0"), received);
+    }
+
+    @Test
+    public void receivedFile_isSkippedNextTime() throws IOException {
+        receive(new Watch().manifest(10, "a.mwz", content).all(0, content, 0).bye());
+        // decoded and deleted on the phone since, the state file still knows it
+        new File(directory, "P1-a.mwz").delete();
+        assertEquals("H-1,0", receive(new Watch().manifest(10, "a.mwz", content, "b.mwz", new byte[10])));
+    }
+
+    @Test
+    public void changedFile_startsOver() throws IOException {
+        receive(new Watch().manifest(1, "a.mwz", content).chunk(0, content, 0, false));
+        assertTrue(receive(new Watch().manifest(1, "a.mwz", Arrays.copyOf(content, 10))).startsWith("H0"));
+    }
+
+    @Test
+    public void fileChangedOnTheWatch_failsUntilTheNextManifest() throws IOException {
+        // the manifest CRC is of other bytes than were sent: sending them again would never match
+        byte[] changed = content.clone();
+        changed[10] ^= 1;
+        Watch watch = new Watch().manifest(10, "b.mwz", changed, "c.mwz", content)
+                .all(0, content, 0).all(1, content, 0).bye();
+        assertEquals("H0,0 F0 D1", receive(watch));
+        assertFalse(new File(directory, "P1-b.mwz").exists());
+        assertFalse(new File(directory, "P1-b.mwz.part").exists());
+        assertEquals(Arrays.asList("P1-c.mwz 0"), received);
+
+        // listed again with the CRC of what the watch has now
+        assertEquals("H0 D0", receive(new Watch().manifest(10, "b.mwz", content).all(0, content, 0).bye()));
+        assertArrayEquals(content, stored("P1-b.mwz"));
+    }
+}
@@ -0,0 +1,125 @@
+package research.mealwatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the Dropbox upload endpoints, so UploadEngine can be tested offline.
+ * Keeps sessions and committed files in memory and answers like the API does: a call at the
+ * wrong offset gets the session's offset back, an unknown or finished session gets -1.
+ * Faults can be set up for the next calls.
+ */
+class LocalUploadServer implements UploadSessions {
+    final Map<String, byte[]> files = new HashMap<>();
+    private final Map<String, ByteArrayOutputStream> sessions = new HashMap<>();
+    private int nextSession = 1;
+
+    /* faults */
+    int failCalls;          /* the next calls fail without doing anything */
+    int loseAnswers;        /* the next appends are done but their answer is lost */
+    int failAfterCalls = -1;    /* from then on every call fails, -1 never */
+
+    /* statistics */
+    int calls, starts, appends;
+    long bytesReceived;
+    private int active;
+    int maxActive;
+
+    private synchronized void call() throws IOException {
+        calls++;
+        if (failAfterCalls >= 0 && calls > failAfterCalls) {
+            throw new IOException("network is down");
+        }
+        if (failCalls > 0) {
+            failCalls--;
+            throw new IOException("connection reset");
+        }
+    }
+
+    /* keeps the call busy for a moment so parallel uploads overlap */
+    private void work(int length) {
+        synchronized (this) {
+            maxActive = Math.max(maxActive, ++active);
+            bytesReceived += length;
+        }
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            active--;
+        }
+    }
+
+    private synchronized ByteArrayOutputStream session(String sessionId, long offset) throws IOException {
+        ByteArrayOutputStream session = sessions.get(sessionId);
+        if (session == null) {
+            throw new OffsetException("not_found", -1);
+        }
+        if (session.size() != offset) {
+            throw new OffsetException("incorrect_offset", session.size());
+        }
+        return session;
+    }
+
+    @Override
+    public String start(byte[] data, int length) throws IOException {
+        call();
+        work(length);
+        synchronized (this) {
+            starts++;
+            ByteArrayOutputStream session = new ByteArrayOutputStream();
+            session.write(data, 0, length);
+            String sessionId = "session" + nextSession++;
+            sessions.put(sessionId, session);
+            return sessionId;
+        }
+    }
+
+    @Override
+    public void append(String sessionId, long offset, byte[] data, int length) throws IOException {
+        call();
+        work(length);
+        synchronized (this) {
+            session(sessionId, offset).write(data, 0, length);
+            appends++;
+            if (loseAnswers > 0) {
+                loseAnswers--;
+                throw new IOException("read timed out");
+            }
+        }
+    }
+
+    @Override
+    public long finish(String sessionId, long offset, byte[] data, int length, String path, long clientModified)
+            throws IOException {
+        call();
+        work(length);
+        synchronized (this) {
+            ByteArrayOutputStream session = session(sessionId, offset);
+            session.write(data, 0, length);
+            sessions.remove(sessionId);
+            files.put(path, session.toByteArray());
+            return session.size();
+        }
+    }
+
+    @Override
+    public long upload(String path, byte[] data, int length, long clientModified) throws IOException {
+        call();
+        work(length);
+        synchronized (this) {
+            byte[] file = new byte[length];
+            System.arraycopy(data, 0, file, 0, length);
+            files.put(path, file);
+            return length;
+        }
+    }
+
+    synchronized void expireSessions() {
+        sessions.clear();
+    }
+}
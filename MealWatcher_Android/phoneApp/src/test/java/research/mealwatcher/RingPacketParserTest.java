@@ -0,0 +1,173 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RingPacketParserTest {
+    private static final int NOTIFICATION = 20;     /* bytes per BLE notification with the default MTU */
+
+    private final List<byte[]> packets = new ArrayList<>();
+    private final RingPacketParser parser = new RingPacketParser(packet ->
+            packets.add(Arrays.copyOf(packet, RingPacketParser.DATA_PACKET_LENGTH)));
+
+    private static byte[] dataPacket(Random random, long timestampMicros) {
+        byte[] packet = new byte[RingPacketParser.DATA_PACKET_LENGTH];
+        random.nextBytes(packet);
+        for (int k = 4; k < packet.length; k += 7) {
+            packet[k] = 0;      /* zeros to encode */
+        }
+        packet[0] = 3;
+        packet[1] = 1;
+        packet[2] = 105;
+        packet[3] = 0;
+        RingPacketParser.putLongLE(packet, RingPacketParser.TIMESTAMP_OFFSET, timestampMicros);
+        return packet;
+    }
+
+    /* COBS with the closing 0, as the ring sends it */
+    static byte[] cobs(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block = new byte[255];
+        int length = 1;
+        for (byte v : data) {
+            if (v == 0) {
+                block[0] = (byte) length;
+                out.write(block, 0, length);
+                length = 1;
+            } else {
+                block[length++] = v;
+                if (length == 255) {
+                    block[0] = (byte) 255;
+                    out.write(block, 0, length);
+                    length = 1;
+                }
+            }
+        }
+        block[0] = (byte) length;
+        out.write(block, 0, length);
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    /* the stream cut into notifications */
+    private void send(byte[] stream) {
+        for (int k = 0; k < stream.length; k += NOTIFICATION) {
+            parser.accept(stream, k, Math.min(NOTIFICATION, stream.length - k));
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void packetsSplitOverNotifications_areDecoded() {
+        Random random = new Random(5);
+        List<byte[]> sent = new ArrayList<>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int n = 0; n < 50; n++) {
+            byte[] packet = dataPacket(random, 1_000_000L + n * 10_000);
+            sent.add(packet);
+            byte[] encoded = cobs(packet);
+            stream.write(encoded, 0, encoded.length);
+        }
+        send(stream.toByteArray());
+
+        assertEquals(50, packets.size());
+        for (int n = 0; n < 50; n++) {
+            assertArrayEquals(sent.get(n), packets.get(n));
+        }
+        assertEquals(1_000_000L + 49 * 10_000, RingPacketParser.getLongLE(packets.get(49), RingPacketParser.TIMESTAMP_OFFSET));
+        assertEquals(0, parser.getMalformedFrames());
+    }
+
+    @Test
+    public void badFrames_areCountedAndSkipped() {
+        Random random = new Random(6);
+        byte[] good = dataPacket(random, 42);
+        byte[] badJump = cobs(good);
+        badJump[0] = (byte) 254;                    /* first code points past the end of the frame */
+        byte[] tooShort = cobs(Arrays.copyOf(good, 100));
+        byte[] tooLong = new byte[300];
+        Arrays.fill(tooLong, (byte) 7);
+        tooLong[299] = 0;
+        byte[] other = cobs(new byte[]{2, 1, 0, 0, 5});
+
+        send(concat(badJump, tooShort, tooLong, other, cobs(good)));
+        assertEquals(1, packets.size());
+        assertArrayEquals(good, packets.get(0));
+        assertEquals(3, parser.getMalformedFrames());
+        assertEquals(1, parser.getOtherPackets());
+    }
+
+    @Test
+    public void longRunWithoutZeros_isDecoded() {
+        // 254 bytes without a 0 need the 255 code; the frame then fills the buffer exactly
+        byte[] packet = new byte[254];
+        Arrays.fill(packet, (byte) 9);
+        byte[] encoded = cobs(packet);
+        assertEquals(RingPacketParser.MAX_FRAME_LENGTH + 1, encoded.length);
+        send(encoded);
+        assertEquals(1, parser.getOtherPackets());
+        assertEquals(0, parser.getMalformedFrames());
+    }
+
+    @Test
+    public void partOfFrame_isDroppedOnReset() {
+        byte[] encoded = cobs(dataPacket(new Random(7), 1));
+        parser.accept(encoded, 0, 30);
+        parser.reset();
+        send(encoded);
+        assertEquals(1, packets.size());
+        assertEquals(0, parser.getMalformedFrames());
+    }
+
+    @Test
+    public void longs_areLittleEndian() {
+        byte[] buffer = new byte[10];
+        RingPacketParser.putLongLE(buffer, 1, 0x0102030405060708L);
+        assertEquals(8, buffer[1]);
+        assertEquals(1, buffer[8]);
+        assertEquals(0x0102030405060708L, RingPacketParser.getLongLE(buffer, 1));
+        RingPacketParser.putLongLE(buffer, 2, -5);
+        assertEquals(-5, RingPacketParser.getLongLE(buffer, 2));
+    }
+
+    @Test
+    public void noAllocationPerPacket() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;     // can't measure on this JVM
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long[] sum = new long[1];
+        RingPacketParser counting = new RingPacketParser(packet -> sum[0] += packet[5]);
+        byte[] stream = cobs(dataPacket(new Random(8), 1));
+        for (int warmup = 0; warmup < 20000; warmup++) {
+            counting.accept(stream, 0, stream.length);
+        }
+        long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int n = 0; n < 100000; n++) {
+            for (int k = 0; k < stream.length; k += NOTIFICATION) {
+                counting.accept(stream, k, Math.min(NOTIFICATION, stream.length - k));
+            }
+        }
+        long allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertEquals(120000, counting.getDataPackets());
+        // two 8 byte ByteBuffers per packet used to be about 10 MB here
+        assertTrue("allocated " + allocated + " bytes", allocated < 100000);
+    }
+}
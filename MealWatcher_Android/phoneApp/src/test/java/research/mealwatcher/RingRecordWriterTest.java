@@ -0,0 +1,172 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingRecordWriterTest {
+    private static final int LENGTH = 80;     /* ControlRing.RING_RECORD_LENGTH */
+
+    private final byte[] record = new byte[LENGTH];
+
+    /* record n: n in the first 4 bytes, timestamp start + 10 ms * n */
+    private byte[] record(int n, long timestamp) {
+        record[0] = (byte) n;
+        record[1] = (byte) (n >> 8);
+        record[2] = (byte) (n >> 16);
+        record[3] = (byte) (n >> 24);
+        RingPacketParser.putLongLE(record, RingRecordWriter.TIMESTAMP_OFFSET, timestamp);
+        return record;
+    }
+
+    private static void assertRecords(byte[] file, int count) {
+        assertEquals(count * LENGTH, file.length);
+        for (int n = 0; n < count; n++) {
+            int k = n * LENGTH;
+            assertEquals(n, (file[k] & 0xff) | (file[k + 1] & 0xff) << 8 | (file[k + 2] & 0xff) << 16 | file[k + 3] << 24);
+        }
+    }
+
+    /* counts the writes and can hold the writer until released */
+    private static class SlowStream extends OutputStream {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CountDownLatch release;
+        volatile int writes;
+        boolean closed;
+
+        SlowStream(boolean blocked) {
+            release = new CountDownLatch(blocked ? 1 : 0);
+        }
+
+        @Override
+        public void write(int b) {
+            throw new AssertionError("records are written in batches");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            synchronized (bytes) {
+                bytes.write(b, off, len);
+            }
+            writes++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        byte[] bytes() {
+            synchronized (bytes) {
+                return bytes.toByteArray();
+            }
+        }
+    }
+
+    @Test
+    public void writesAllRecordsInOrder_inBatches() throws IOException {
+        SlowStream out = new SlowStream(false);
+        RingRecordWriter writer = new RingRecordWriter(out, LENGTH, 64, 16, 60000);
+        writer.start();
+        for (int n = 0; n < 1000; n++) {
+            assertTrue(writer.offer(record(n, 1000 + 10L * n)));
+            if (n % 50 == 0) {
+                Thread.yield();
+            }
+        }
+        writer.close();
+
+        assertRecords(out.bytes(), 1000);
+        assertTrue(out.closed);
+        assertEquals(1000, writer.getWritten());
+        assertEquals(0, writer.getDropped());
+        assertEquals(0, writer.getGaps());
+        assertTrue("writes: " + out.writes, out.writes < 1000 / 4);
+    }
+
+    @Test
+    public void fewRecords_areWrittenAfterFlushInterval() throws Exception {
+        SlowStream out = new SlowStream(false);
+        RingRecordWriter writer = new RingRecordWriter(out, LENGTH, 64, 16, 50);
+        writer.start();
+        for (int n = 0; n < 3; n++) {
+            writer.offer(record(n, 10L * n));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getWritten() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, writer.getWritten());
+        assertRecords(out.bytes(), 3);
+        assertEquals(0, writer.getQueueDepth());
+        writer.close();
+    }
+
+    @Test
+    public void fullQueue_dropsInsteadOfBlocking() throws Exception {
+        SlowStream out = new SlowStream(true);
+        RingRecordWriter writer = new RingRecordWriter(out, LENGTH, 32, 8, 60000);
+        writer.start();
+        long start = System.nanoTime();
+        int accepted = 0;
+        for (int n = 0; n < 100; n++) {
+            if (writer.offer(record(accepted, 10L * n))) {
+                accepted++;
+            }
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        /* the writer is stuck in its first batch, so at most capacity more are taken */
+        assertTrue(accepted >= 32 && accepted <= 32 + 32);
+        assertEquals(100 - accepted, writer.getDropped());
+        assertEquals(32, writer.getMaxQueueDepth());
+
+        out.release.countDown();
+        writer.close();
+        assertRecords(out.bytes(), accepted);
+        assertEquals(0, writer.getGaps());  /* dropped here, not missing from the ring */
+    }
+
+    @Test
+    public void timestampJumps_areCountedAsGaps() throws IOException {
+        RingRecordWriter writer = new RingRecordWriter(new SlowStream(false), LENGTH, 64, 16, 60000);
+        writer.start();
+        long[] timestamps = {0, 10, 20, 31, 60, 70, 120, 129};     /* 40 and 50 missing, then 80 to 110 */
+        for (int n = 0; n < timestamps.length; n++) {
+            writer.offer(record(n, 5000 + timestamps[n]));
+        }
+        writer.close();
+        assertEquals(2, writer.getGaps());
+        assertEquals(6, writer.getMissingSamples());
+    }
+
+    @Test
+    public void writeError_isThrownOnClose() {
+        RingRecordWriter writer = new RingRecordWriter(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        }, LENGTH, 64, 1, 60000);
+        writer.start();
+        writer.offer(record(0, 0));
+        try {
+            writer.close();
+            fail("the write failed");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        assertFalse(writer.offer(record(1, 10)));
+        assertTrue(writer.statsString().contains("error="));
+    }
+}
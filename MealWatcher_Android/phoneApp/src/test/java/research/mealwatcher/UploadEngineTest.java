@@ -0,0 +1,161 @@
+package research.mealwatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UploadEngineTest {
+    private static final int CHUNK = 1000;
+
+    private File directory;
+    private File stateFile;
+    private LocalUploadServer server;
+    private final List<String> uploaded = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("upload").toFile();
+        stateFile = new File(directory.getParentFile(), directory.getName() + ".properties");
+        server = new LocalUploadServer();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+        stateFile.delete();
+    }
+
+    private File file(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private UploadEngine engine(int workers) throws IOException {
+        UploadEngine engine = new UploadEngine(server, stateFile, CHUNK, workers);
+        engine.retryDelayMs = 0;
+        return engine;
+    }
+
+    private int uploadAll(UploadEngine engine, File... files) throws InterruptedException {
+        List<UploadEngine.Job> jobs = new ArrayList<>();
+        for (File file : files) {
+            jobs.add(new UploadEngine.Job(file, "/WATCH/" + file.getName()));
+        }
+        return engine.uploadAll(jobs, (file, error) -> uploaded.add(file.getName() + (error == null ? "" : " failed")));
+    }
+
+    private void assertOnServer(File file) throws IOException {
+        assertArrayEquals(Files.readAllBytes(file.toPath()), server.files.get("/WATCH/" + file.getName()));
+    }
+
+    @Test
+    public void smallFile_isOneCall() throws Exception {
+        File file = file("a.log", 700);
+        assertEquals(0, uploadAll(engine(2), file));
+        assertOnServer(file);
+        assertEquals(1, server.calls);
+        assertEquals(Arrays.asList("a.log"), uploaded);
+    }
+
+    @Test
+    public void bigFile_goesInChunks() throws Exception {
+        File file = file("a.data", 4500);
+        assertEquals(0, uploadAll(engine(2), file));
+        assertOnServer(file);
+        assertEquals(1, server.starts);
+        assertEquals(3, server.appends);     /* start 1000, append 3 x 1000, finish 500 */
+        assertFalse(stateFile.exists() && new String(Files.readAllBytes(stateFile.toPath())).contains("a.data"));
+    }
+
+    @Test
+    public void filesGoInParallel_inJobOrder() throws Exception {
+        File[] files = new File[6];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = file("f" + i + ".data", 2500 + i);
+        }
+        assertEquals(0, uploadAll(engine(3), files));
+        for (File file : files) {
+            assertOnServer(file);
+        }
+        assertTrue(server.maxActive > 1);
+        assertTrue(server.maxActive <= 3);
+        assertEquals(Arrays.asList("f0.data", "f1.data", "f2.data", "f3.data", "f4.data", "f5.data"), uploaded);
+    }
+
+    @Test
+    public void failedCall_isTriedAgainAlone() throws Exception {
+        File file = file("a.data", 4500);
+        server.failCalls = UploadEngine.ATTEMPTS - 1;
+        assertEquals(0, uploadAll(engine(1), file));
+        assertOnServer(file);
+        assertEquals(4500, server.bytesReceived);
+    }
+
+    @Test
+    public void lostAnswer_goesOnAtServerOffset() throws Exception {
+        File file = file("a.data", 4500);
+        server.loseAnswers = 1;     /* the first append is stored but its answer is lost */
+        assertEquals(0, uploadAll(engine(1), file));
+        assertOnServer(file);
+        // the retry is told the right offset, only the chunk of the lost answer went twice
+        assertEquals(4500 + CHUNK, server.bytesReceived);
+    }
+
+    @Test
+    public void interruptedUpload_resumesAtSavedOffset() throws Exception {
+        File file = file("a.data", 4500);
+        server.failAfterCalls = 3;  /* start and two appends, then the network is gone */
+        assertEquals(1, uploadAll(engine(1), file));
+        assertEquals(Arrays.asList("a.data failed"), uploaded);
+        assertTrue(new String(Files.readAllBytes(stateFile.toPath())).contains(" 3000 4500 "));
+
+        server.failAfterCalls = -1;
+        long before = server.bytesReceived;
+        assertEquals(0, uploadAll(engine(1), file));
+        assertOnServer(file);
+        assertEquals(1500, server.bytesReceived - before);
+        assertEquals(1, server.starts);
+    }
+
+    @Test
+    public void expiredSession_startsOver() throws Exception {
+        File file = file("a.data", 4500);
+        server.failAfterCalls = 2;
+        uploadAll(engine(1), file);
+        server.expireSessions();
+
+        server.failAfterCalls = -1;
+        assertEquals(0, uploadAll(engine(1), file));
+        assertOnServer(file);
+        assertEquals(2, server.starts);
+    }
+
+    @Test
+    public void changedFile_doesNotResume() throws Exception {
+        File file = file("a.data", 4500);
+        server.failAfterCalls = 2;
+        uploadAll(engine(1), file);
+
+        Files.write(file.toPath(), new byte[5000]);
+        server.failAfterCalls = -1;
+        assertEquals(0, uploadAll(engine(1), file));
+        assertOnServer(file);
+        assertEquals(2, server.starts);
+    }
+}
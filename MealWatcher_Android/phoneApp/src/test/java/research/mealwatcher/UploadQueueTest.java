@@ -0,0 +1,192 @@
+package research.mealwatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UploadQueueTest {
+    private File directory;
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("queue").toFile();
+        journal = new File(directory.getParentFile(), directory.getName() + ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+        journal.delete();
+        new File(journal.getPath() + ".tmp").delete();
+    }
+
+    private File file(String name) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), new byte[]{1});
+        return file;
+    }
+
+    @Test
+    public void takesHighestPriorityFirst_andCounts() throws IOException {
+        UploadQueue queue = new UploadQueue(directory, journal);
+        queue.add(file("1-phone.log"));
+        queue.add(file("1-watch.data"));
+        queue.add(file("1-survey.json"));
+        queue.add(file("1-ring.data"));
+        assertEquals(4, queue.remaining());
+
+        assertEquals(Arrays.asList("1-survey.json", "1-watch.data", "1-ring.data", "1-phone.log"), queue.take(0, false));
+        assertEquals(4, queue.count(UploadQueue.State.IN_FLIGHT));
+        queue.done("1-survey.json");
+        queue.failed("1-phone.log", 0);
+        assertEquals(3, queue.remaining());
+        assertEquals(1, queue.count(UploadQueue.State.FAILED));
+        assertEquals(1, queue.count(UploadQueue.State.DONE));
+    }
+
+    @Test
+    public void failedFile_waitsForBackoff() throws IOException {
+        UploadQueue queue = new UploadQueue(directory, journal);
+        queue.add(file("a.data"));
+        queue.take(0, false);
+        queue.failed("a.data", 1000);
+        assertEquals(Collections.emptyList(), queue.take(1000, false));
+        assertEquals(Arrays.asList("a.data"), queue.take(1000 + UploadQueue.BASE_BACKOFF_MS, false));
+
+        queue.failed("a.data", 5000);     /* second failure: twice as long */
+        assertEquals(Collections.emptyList(), queue.take(5000 + UploadQueue.BASE_BACKOFF_MS, false));
+        assertEquals(Arrays.asList("a.data"), queue.take(5000, true));     /* upload button */
+        assertEquals(2, queue.get("a.data").getAttempts());
+    }
+
+    @Test
+    public void crash_inFlightFilesArePendingAgain() throws IOException {
+        UploadQueue queue = new UploadQueue(directory, journal);
+        queue.add(file("a.data"));
+        queue.add(file("b.data"));
+        queue.add(file("c.data"));
+        queue.take(0, false);
+        queue.done("a.data");
+        queue.failed("b.data", 0);
+        // the app dies while c.data is uploading, and in the middle of writing a line
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            out.write("D\tc.da".getBytes());
+        }
+
+        UploadQueue reopened = new UploadQueue(directory, journal);
+        assertEquals(2, reopened.remaining());
+        assertEquals(UploadQueue.State.DONE, reopened.get("a.data").getState());
+        assertEquals(UploadQueue.State.FAILED, reopened.get("b.data").getState());
+        assertEquals(UploadQueue.State.PENDING, reopened.get("c.data").getState());
+        reopened.add(file("d.data"));
+        assertEquals(3, new UploadQueue(directory, journal).remaining());
+    }
+
+    @Test
+    public void requeue_putsInFlightFilesBack() throws IOException {
+        UploadQueue queue = new UploadQueue(directory, journal);
+        queue.add(file("a.data"));
+        queue.add(file("b.data"));
+        queue.take(0, false);
+        queue.failed("a.data", 0);
+        queue.take(0, true);
+        queue.done("b.data");
+        // the upload thread is interrupted while a.data goes again
+        queue.requeue("a.data");
+        queue.requeue("b.data");     /* finished, stays done */
+        assertEquals(UploadQueue.State.PENDING, queue.get("a.data").getState());
+        assertEquals(UploadQueue.State.DONE, queue.get("b.data").getState());
+        assertEquals(0, queue.count(UploadQueue.State.IN_FLIGHT));
+
+        UploadQueue reopened = new UploadQueue(directory, journal);
+        assertEquals(UploadQueue.State.PENDING, reopened.get("a.data").getState());
+        assertEquals(1, reopened.get("a.data").getAttempts());
+        assertEquals(Arrays.asList("a.data"), reopened.take(0, false));
+    }
+
+    @Test
+    public void reconcile_findsUnknownFiles_andDropsMissingOnes() throws IOException {
+        UploadQueue queue = new UploadQueue(directory, journal);
+        queue.add(file("gone.data"));
+        new File(directory, "gone.data").delete();
+        file("old.data");
+        file("current.log");
+        file("notes.txt");
+        file("x.mwz.part");
+        file("authfile.json");
+        new File(directory, "ImagesFolder").mkdir();
+
+        queue.reconcile(Collections.singleton("current.log"));
+        assertEquals(Arrays.asList("old.data"), queue.take(0, false));
+        assertNull(queue.get("gone.data"));
+        new File(directory, "ImagesFolder").delete();
+    }
+
+    @Test
+    public void journal_isCompactedWhileInUse() throws IOException {
+        UploadQueue queue = new UploadQueue(directory, journal);
+        queue.add(file("retried.data"));
+        queue.take(0, false);
+        queue.failed("retried.data", 0);
+        for (int i = 0; i < 1000; i++) {
+            File file = file(i + ".data");
+            queue.add(file);
+            queue.take(0, false);
+            queue.done(file.getName());
+            file.delete();
+            /* compacted to at most 4 lines: retried.data and a done file that wasn't deleted yet */
+            assertTrue(Files.readAllLines(journal.toPath()).size() <= 2 * 4 + 101);
+        }
+        queue.add(file("kept.jpg"));
+        queue.take(0, false);
+        queue.done("kept.jpg");         /* uploaded but still here, must not be added again */
+        queue.add(file("last.data"));
+
+        UploadQueue reopened = new UploadQueue(directory, journal);
+        assertEquals(2, reopened.remaining());
+        assertEquals(1, reopened.get("retried.data").getAttempts());
+        reopened.reconcile(Collections.emptySet());
+        List<String> take = reopened.take(0, true);
+        assertEquals(Arrays.asList("retried.data", "last.data"), take);
+    }
+
+    @Test
+    public void keptDoneFiles_dontMakeEveryAppendCompact() throws IOException {
+        UploadQueue queue = new UploadQueue(directory, journal);
+        for (int i = 0; i < 300; i++) {
+            queue.add(file(i + ".jpg"));    /* uploaded but kept, there is no picture folder */
+        }
+        queue.take(0, false);
+        for (int i = 0; i < 300; i++) {
+            queue.done(i + ".jpg");
+        }
+        int compactions = queue.getCompactions();
+        for (int i = 0; i < 100; i++) {
+            File file = file(i + ".data");
+            queue.add(file);
+            queue.take(0, false);
+            queue.done(file.getName());
+            file.delete();
+        }
+        assertTrue(queue.getCompactions() - compactions <= 1);
+        assertTrue(Files.readAllLines(journal.toPath()).size() <= 2 * 600 + 102);
+
+        UploadQueue reopened = new UploadQueue(directory, journal);
+        reopened.reconcile(Collections.emptySet());
+        assertEquals(0, reopened.remaining());
+    }
+}
@@ -0,0 +1,358 @@
+package com.recoveryrecord.surveyandroid;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Append-only record of everything entered in a survey, so the answers survive the process being
+// killed.  Every change to a QuestionState is one small record, flushed to the file at once: a
+// write into the OS, which keeps it even if the app dies.  When the survey opens again, open
+// replays the records into the new QuestionStates.  A record cut off by the kill is dropped.
+public class AnswerJournal implements Closeable {
+    public static final long DEFAULT_MAX_AGE_MS = 4 * 60 * 60 * 1000L;     /* older answers are from an earlier meal */
+    static final byte START = 'T', STRING = 'S', LIST = 'L', ADD = 'A', REMOVE = 'R', ANSWER = 'N', OPTIONS = 'O';
+    private static final byte NONE = 0, ANSWER_STRING = 1, ANSWER_LIST = 2, ANSWER_MAP = 3;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Where the replayed records go, SurveyState.getStateFor
+    public interface StateSource {
+        QuestionState getStateFor(String questionId);
+    }
+
+    private final File mFile;
+    private final DataOutputStream mOut;
+    private final long mStartMillis;
+    private final int mReplayed;
+    private IOException mError;
+
+    private AnswerJournal(File file, DataOutputStream out, long startMillis, int replayed) {
+        mFile = file;
+        mOut = out;
+        mStartMillis = startMillis;
+        mReplayed = replayed;
+    }
+
+    // Replays file into states, unless it's older than maxAgeMs, and opens it to add to.
+    public static AnswerJournal open(File file, StateSource states, long nowMillis, long maxAgeMs) throws IOException {
+        byte[] journal = readAll(file);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+        long startMillis = -1;
+        int replayed = 0;
+        int length = 0;     /* bytes up to the end of the last whole record */
+        try {
+            if (in.readByte() == START) {
+                startMillis = in.readLong();
+                length = journal.length - in.available();
+            }
+            if (startMillis >= 0 && nowMillis - startMillis <= maxAgeMs) {
+                while (in.available() > 0) {
+                    replay(in, states);
+                    replayed++;
+                    length = journal.length - in.available();
+                }
+            }
+        } catch (EOFException e) {
+            // the last record was cut off
+        }
+
+        boolean fresh = startMillis < 0 || nowMillis - startMillis > maxAgeMs;
+        if (fresh) {
+            startMillis = nowMillis;
+            replayed = 0;
+            length = 0;
+        }
+        if (length < journal.length) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 4096));
+        AnswerJournal answerJournal = new AnswerJournal(file, out, startMillis, replayed);
+        if (fresh) {
+            out.writeByte(START);
+            out.writeLong(startMillis);
+            out.flush();
+        }
+        return answerJournal;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        if (!file.exists()) {
+            return new byte[0];
+        }
+        byte[] journal = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < journal.length) {
+                int read = in.read(journal, n, journal.length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+            return n == journal.length ? journal : Arrays.copyOf(journal, n);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void replay(DataInputStream in, StateSource states) throws IOException {
+        byte type = in.readByte();
+        String questionId = readString(in);
+        // read the whole record first, so a cut off record changes nothing
+        switch (type) {
+            case STRING: {
+                String key = readString(in);
+                String value = readString(in);
+                states.getStateFor(questionId).put(key, value);
+                break;
+            }
+            case LIST: {
+                String key = readString(in);
+                ArrayList<String> list = readList(in);
+                states.getStateFor(questionId).put(key, list);
+                break;
+            }
+            case ADD: {
+                String key = readString(in);
+                String value = readString(in);
+                states.getStateFor(questionId).addStringToList(key, value);
+                break;
+            }
+            case REMOVE: {
+                String key = readString(in);
+                String value = readString(in);
+                states.getStateFor(questionId).removeStringFromList(key, value);
+                break;
+            }
+            case ANSWER: {
+                Answer answer = readAnswer(in);
+                states.getStateFor(questionId).setAnswer(answer);
+                break;
+            }
+            case OPTIONS: {
+                ArrayList<String> options = readList(in);
+                states.getStateFor(questionId).setOptions(options);
+                break;
+            }
+            default:
+                throw new EOFException("Unknown record " + type);    /* garbage, treated like a cut off record */
+        }
+    }
+
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    // Records replayed by open
+    public int getReplayed() {
+        return mReplayed;
+    }
+
+    // The first write error; the journal stops writing after it
+    public IOException getError() {
+        return mError;
+    }
+
+    void put(String questionId, String key, String value) {
+        try {
+            begin(STRING, questionId);
+            writeString(key);
+            writeString(value);
+            mOut.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    void putList(String questionId, String key, ArrayList<String> list) {
+        try {
+            begin(LIST, questionId);
+            writeString(key);
+            writeList(list);
+            mOut.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    void addToList(String questionId, String key, String value) {
+        try {
+            begin(ADD, questionId);
+            writeString(key);
+            writeString(value);
+            mOut.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    void removeFromList(String questionId, String key, String value) {
+        try {
+            begin(REMOVE, questionId);
+            writeString(key);
+            writeString(value);
+            mOut.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    void answer(String questionId, Answer answer) {
+        try {
+            begin(ANSWER, questionId);
+            writeAnswer(answer);
+            mOut.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    void options(String questionId, ArrayList<String> options) {
+        try {
+            begin(OPTIONS, questionId);
+            writeList(options);
+            mOut.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    // Closes the journal and deletes it, once the survey is submitted or closed.
+    public void discard() throws IOException {
+        close();
+        if (mFile.exists() && !mFile.delete()) {
+            throw new IOException("Can't delete " + mFile);
+        }
+    }
+
+    private void begin(byte type, String questionId) throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+        mOut.writeByte(type);
+        writeString(questionId);
+    }
+
+    private void failed(IOException e) {
+        if (mError == null) {
+            mError = e;
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            mOut.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+    }
+
+    private void writeList(ArrayList<String> list) throws IOException {
+        if (list == null) {
+            mOut.writeInt(-1);
+            return;
+        }
+        mOut.writeInt(list.size());
+        for (String value : list) {
+            writeString(value);
+        }
+    }
+
+    private void writeAnswer(Answer answer) throws IOException {
+        if (answer == null) {
+            mOut.writeByte(NONE);
+        } else if (answer.isString()) {
+            mOut.writeByte(ANSWER_STRING);
+            writeString(answer.getValue());
+        } else if (answer.isList()) {
+            mOut.writeByte(ANSWER_LIST);
+            writeList(answer.getValueList());
+        } else {
+            mOut.writeByte(ANSWER_MAP);
+            mOut.writeInt(answer.getValueMap().size());
+            for (Map.Entry<String, Answer> value : answer.getValueMap().entrySet()) {
+                writeString(value.getKey());
+                writeAnswer(value.getValue());
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static ArrayList<String> readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        if (size > in.available()) {
+            throw new EOFException();
+        }
+        ArrayList<String> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readString(in));
+        }
+        return list;
+    }
+
+    private static Answer readAnswer(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case NONE:
+                return null;
+            case ANSWER_STRING:
+                return new Answer(readString(in));
+            case ANSWER_LIST:
+                return new Answer(readList(in));
+            case ANSWER_MAP: {
+                int size = in.readInt();
+                if (size < 0 || size > in.available()) {
+                    throw new EOFException();
+                }
+                HashMap<String, Answer> valueMap = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    String key = readString(in);
+                    valueMap.put(key, readAnswer(in));
+                }
+                return new Answer(valueMap);
+            }
+            default:
+                throw new EOFException("Unknown answer");
+        }
+    }
+}
@@ -12,6 +12,7 @@ public class QuestionState {
     private Answer mAnswer;
     private ArrayList<String> options;
     private OnQuestionStateChangedListener mListener;
+    private AnswerJournal mJournal;
 
     QuestionState(String questionId, OnQuestionStateChangedListener listener) {
         mQuestionStringData = new HashMap<>();
@@ -26,6 +27,9 @@ public class QuestionState {
             throw new IllegalArgumentException("The QuestionId cannot be updated!");
         }
         mQuestionStringData.put(key, value);
+        if (mJournal != null) {
+            mJournal.put(id(), key, value);
+        }
         if (mListener != null) {
             mListener.questionStateChanged(this);
         }
@@ -33,10 +37,16 @@ public class QuestionState {
 
     public void put(String key, boolean value) {
         mQuestionStringData.put(key, String.valueOf(value));
+        if (mJournal != null) {
+            mJournal.put(id(), key, String.valueOf(value));
+        }
     }
 
     public void put(String key, ArrayList<String> value) {
         mQuestionStringListData.put(key, value);
+        if (mJournal != null) {
+            mJournal.putList(id(), key, value);
+        }
     }
 
     public void addStringToList(String key, String value) {
@@ -47,12 +57,18 @@ public class QuestionState {
             newList.add(value);
             mQuestionStringListData.put(key, newList);
         }
+        if (mJournal != null) {
+            mJournal.addToList(id(), key, value);
+        }
     }
 
     public void removeStringFromList(String key, String value) {
         if (mQuestionStringListData.containsKey(key)) {
             mQuestionStringListData.get(key).remove(value);
         }
+        if (mJournal != null) {
+            mJournal.removeFromList(id(), key, value);
+        }
     }
 
     private boolean containsKey(String key) {
@@ -61,6 +77,9 @@ public class QuestionState {
 
     public void setAnswer(Answer answer) {
         mAnswer = answer;
+        if (mJournal != null) {
+            mJournal.answer(id(), answer);
+        }
         if (mListener != null) {
             mListener.questionAnswered(this);
         }
@@ -68,6 +87,14 @@ public class QuestionState {
 
     public void setOptions(ArrayList<String> options) {
         this.options = options;
+        if (mJournal != null) {
+            mJournal.options(id(), options);
+        }
+    }
+
+    // Records every change from now on, see AnswerJournal.
+    void setJournal(AnswerJournal journal) {
+        mJournal = journal;
     }
 
     public ArrayList<String> getOptions() {
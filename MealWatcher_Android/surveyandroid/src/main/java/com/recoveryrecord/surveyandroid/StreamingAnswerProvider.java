@@ -0,0 +1,10 @@
+package com.recoveryrecord.surveyandroid;
+
+import java.io.File;
+import java.io.IOException;
+
+// An AnswerProvider that can write the answers straight into a file instead of building one string
+// with all of them.  SurveyState is one.
+public interface StreamingAnswerProvider extends AnswerProvider {
+    void writeAnswersJson(File file) throws IOException;
+}
@@ -0,0 +1,8 @@
+package com.recoveryrecord.surveyandroid;
+
+// A SubmitSurveyHandler that is given the answers instead of one string with all of them, so it
+// can stream them where they go, e.g. with StreamingAnswerProvider.writeAnswersJson.  Used when
+// the survey's AnswerProvider is a StreamingAnswerProvider, otherwise submit(url, json) is.
+public interface StreamingSubmitSurveyHandler extends SubmitSurveyHandler {
+    void submit(String url, StreamingAnswerProvider answerProvider);
+}
@@ -2,6 +2,8 @@ package com.recoveryrecord.surveyandroid;
 
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
@@ -20,8 +22,7 @@ import com.recoveryrecord.surveyandroid.validation.DefaultValidator;
 import com.recoveryrecord.surveyandroid.validation.FailedValidationListener;
 import com.recoveryrecord.surveyandroid.validation.Validator;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.File;
 
 public abstract class SurveyActivity extends AppCompatActivity implements FailedValidationListener {
     private static final String TAG = SurveyActivity.class.getSimpleName();
@@ -30,27 +31,38 @@ public abstract class SurveyActivity extends AppCompatActivity implements Failed
     public static final String SURVEY_TITLE_EXTRA = "survey_title";
 
     private SurveyState mState;
-    static String surveyStartTime;
+    static long surveyStartMillis;
     private OnSurveyStateChangedListener mOnSurveyStateChangedListener;
     private RecyclerView mRecyclerView;
+    private boolean mStarted;
+    private boolean mDestroyed;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(getLayoutResId());
         setTitle(getSurveyTitle());
-
-        SurveyQuestions surveyQuestions = createSurveyQuestions();
-        Log.d(TAG, "Questions = " + surveyQuestions);
-
-        mState = createSurveyState(surveyQuestions);
-        setupRecyclerView();
-
-        LocalDateTime now = null;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            now = LocalDateTime.now();
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
-            surveyStartTime = now.format(formatter);
+        surveyStartMillis = System.currentTimeMillis();     /* or when the restored answers were started */
+
+        if (SurveyLoader.isLoaded(getJsonFilename())) {
+            onSurveyQuestionsCreated(createSurveyQuestions());
+        } else {
+            // Parse on the loader thread and show the questions once they are there
+            final Handler handler = new Handler(Looper.getMainLooper());
+            SurveyLoader.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    final SurveyQuestions surveyQuestions = createSurveyQuestions();
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mDestroyed) {
+                                onSurveyQuestionsCreated(surveyQuestions);
+                            }
+                        }
+                    });
+                }
+            });
         }
     }
 
@@ -76,10 +88,25 @@ public abstract class SurveyActivity extends AppCompatActivity implements Failed
                 }).show();
     }
 
+    private void onSurveyQuestionsCreated(SurveyQuestions surveyQuestions) {
+        Log.d(TAG, "Questions = " + surveyQuestions);
+        mState = createSurveyState(surveyQuestions);
+        setupRecyclerView();
+        if (mStarted) {
+            mState.addOnSurveyStateChangedListener(getOnSurveyStateChangedListener());
+        }
+    }
+
+    // False until the questions are parsed, see createSurveyQuestions.
+    protected boolean isSurveyLoaded() {
+        return mState != null;
+    }
+
     protected @LayoutRes int getLayoutResId() {
         return R.layout.activity_survey;
     }
 
+    // Called on the SurveyLoader thread unless the questions were already parsed.
     protected SurveyQuestions createSurveyQuestions() {
         return SurveyQuestions.load(this, getJsonFilename());
     }
@@ -93,11 +120,28 @@ public abstract class SurveyActivity extends AppCompatActivity implements Failed
     }
 
     protected SurveyState createSurveyState(SurveyQuestions surveyQuestions) {
-        return new SurveyState(surveyQuestions)
+        SurveyState state = new SurveyState(surveyQuestions)
                 .setValidator(getValidator())
                 .setCustomConditionHandler(getCustomConditionHandler())
-                .setSubmitSurveyHandler(getSubmitSurveyHandler())
-                .initFilter();
+                .setSubmitSurveyHandler(getSubmitSurveyHandler());
+        File journalFile = getAnswerJournalFile();
+        if (journalFile != null) {
+            state.setAnswerJournal(journalFile);
+            if (state.getAnswerJournal() != null) {
+                surveyStartMillis = state.getAnswerJournal().getStartMillis();
+            }
+        }
+        return state.initFilter();
+    }
+
+    // Where the answers are kept until the survey is submitted, so they are back if Android kills
+    // the app in between.  Subclasses can return null to not keep them.
+    protected File getAnswerJournalFile() {
+        String jsonFilename = getJsonFilename();
+        if (jsonFilename == null) {
+            return null;
+        }
+        return new File(getFilesDir(), jsonFilename.replace('/', '_') + ".journal");
     }
 
     private int getDisplayHeightPixels() {
@@ -109,13 +153,28 @@ public abstract class SurveyActivity extends AppCompatActivity implements Failed
     @Override
     protected void onStart() {
         super.onStart();
-        mState.addOnSurveyStateChangedListener(getOnSurveyStateChangedListener());
+        mStarted = true;
+        if (mState != null) {
+            mState.addOnSurveyStateChangedListener(getOnSurveyStateChangedListener());
+        }
     }
 
     @Override
     protected void onStop() {
         super.onStop();
-        mState.removeOnSurveyStateChangedListener(getOnSurveyStateChangedListener());
+        mStarted = false;
+        if (mState != null) {
+            mState.removeOnSurveyStateChangedListener(getOnSurveyStateChangedListener());
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+        if (mState != null) {
+            mState.closeAnswerJournal(isFinishing());   /* the survey was closed or submitted */
+        }
+        super.onDestroy();
     }
 
     protected String getSurveyTitle() {
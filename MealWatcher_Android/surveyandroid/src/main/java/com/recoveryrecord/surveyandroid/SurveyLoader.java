@@ -0,0 +1,110 @@
+package com.recoveryrecord.surveyandroid;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.recoveryrecord.surveyandroid.question.Question;
+import com.recoveryrecord.surveyandroid.question.QuestionsWrapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+// Parses survey json files on a background thread and keeps the parsed questions for the life of
+// the process, so only the first survey pays for Jackson.  The questions are never changed while a
+// survey runs (answers live in SurveyState), so every launch can share them.
+public class SurveyLoader {
+    private static final String TAG = SurveyLoader.class.getSimpleName();
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SurveyLoader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final Map<String, FutureTask<QuestionsWrapper>> sDefinitions = new HashMap<>();
+
+    // Starts parsing jsonFileName in the background if it isn't parsed yet. Call it early, e.g. when
+    // the app starts, and the survey opens without waiting.
+    public static void prefetch(Context context, String jsonFileName) {
+        sExecutor.execute(definition(context, jsonFileName));
+    }
+
+    // Runs work on the loader thread.
+    public static Executor executor() {
+        return sExecutor;
+    }
+
+    public static boolean isLoaded(String jsonFileName) {
+        synchronized (sDefinitions) {
+            FutureTask<QuestionsWrapper> definition = sDefinitions.get(jsonFileName);
+            return definition != null && definition.isDone();
+        }
+    }
+
+    // Returns the questions of jsonFileName, parsing them on this thread if no one has started yet
+    // and waiting if the loader thread is at it.
+    public static SurveyQuestions get(Context context, String jsonFileName) {
+        FutureTask<QuestionsWrapper> definition = definition(context, jsonFileName);
+        definition.run();   /* does nothing if it ran or is running */
+        QuestionsWrapper wrapper = null;
+        try {
+            wrapper = definition.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error while parsing " + jsonFileName, e.getCause());
+            forget(jsonFileName, definition);  /* try again next time */
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (wrapper == null) {
+            return new SurveyQuestions(context, new ArrayList<Question>(), null);
+        }
+        return new SurveyQuestions(context, wrapper.questions, wrapper.submit);
+    }
+
+    // Drops all parsed questions, e.g. after the json files were replaced.
+    public static void clear() {
+        synchronized (sDefinitions) {
+            sDefinitions.clear();
+        }
+    }
+
+    private static FutureTask<QuestionsWrapper> definition(Context context, final String jsonFileName) {
+        synchronized (sDefinitions) {
+            FutureTask<QuestionsWrapper> definition = sDefinitions.get(jsonFileName);
+            if (definition == null) {
+                // The application context, so a survey activity isn't kept alive by the cache
+                final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+                definition = new FutureTask<>(new Callable<QuestionsWrapper>() {
+                    @Override
+                    public QuestionsWrapper call() throws Exception {
+                        long start = System.nanoTime();
+                        QuestionsWrapper wrapper = SurveyQuestions.readAsset(appContext, jsonFileName);
+                        SurveyQuestions.compileConditions(wrapper.questions);
+                        Log.d(TAG, "Parsed " + jsonFileName + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+                        return wrapper;
+                    }
+                });
+                sDefinitions.put(jsonFileName, definition);
+            }
+            return definition;
+        }
+    }
+
+    private static void forget(String jsonFileName, FutureTask<QuestionsWrapper> definition) {
+        synchronized (sDefinitions) {
+            if (sDefinitions.get(jsonFileName) == definition) {
+                sDefinitions.remove(jsonFileName);
+            }
+        }
+    }
+}
@@ -22,25 +22,23 @@ public class SurveyQuestions {
     private ArrayList<Question> mQuestions;
     private SubmitData mSubmitData;
 
+    // One mapper for all surveys: building one and its deserializers is most of the cost of a parse.
+    private static final ObjectMapper sMapper = new ObjectMapper()
+            .enable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    // Parsed once per process, see SurveyLoader.
     public static SurveyQuestions load(Context context, String jsonFileName) {
-        return createSurveyQuestionsFromFile(context, jsonFileName);
+        return SurveyLoader.get(context, jsonFileName);
     }
 
     public static SurveyQuestions createSurveyQuestionsFromFile(Context context, String jsonFileName) {
         ArrayList<Question> questions = new ArrayList<>();
         SubmitData submitData = null;
-        AssetManager assetManager = context.getAssets();
-        ObjectMapper mapper = new ObjectMapper()
-                .enable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
-                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
         try {
-            InputStream inputStream = assetManager.open(jsonFileName);
-            QuestionsWrapper wrapper = mapper.readValue(inputStream, new TypeReference<QuestionsWrapper>(){});
-            if (wrapper.questions != null) {
-                questions = wrapper.questions;
-            }
+            QuestionsWrapper wrapper = readAsset(context, jsonFileName);
+            questions = wrapper.questions;
             submitData = wrapper.submit;
-            inputStream.close();
         } catch (IOException ioe) {
             Log.e(TAG, "Error while parsing " + jsonFileName, ioe);
         }
@@ -50,11 +48,8 @@ public class SurveyQuestions {
     public static SurveyQuestions createSurveyQuestionsFromJsonString(Context context, String jsonString) {
         ArrayList<Question> questions = new ArrayList<>();
         SubmitData submitData = null;
-        ObjectMapper mapper = new ObjectMapper()
-                .enable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
-                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
         try {
-            QuestionsWrapper wrapper = mapper.readValue(jsonString, new TypeReference<QuestionsWrapper>(){});
+            QuestionsWrapper wrapper = sMapper.readValue(jsonString, new TypeReference<QuestionsWrapper>(){});
             if (wrapper.questions != null) {
                 questions = wrapper.questions;
             }
@@ -65,10 +60,39 @@ public class SurveyQuestions {
         return new SurveyQuestions(context, questions, submitData);
     }
 
+    static QuestionsWrapper readAsset(Context context, String jsonFileName) throws IOException {
+        AssetManager assetManager = context.getAssets();
+        InputStream inputStream = assetManager.open(jsonFileName);
+        QuestionsWrapper wrapper;
+        try {
+            wrapper = sMapper.readValue(inputStream, new TypeReference<QuestionsWrapper>(){});
+        } finally {
+            inputStream.close();
+        }
+        if (wrapper.questions == null) {
+            wrapper.questions = new ArrayList<>();
+        }
+        return wrapper;
+    }
+
     public SurveyQuestions(Context context, ArrayList<Question> questions, SubmitData submitData) {
         mContext = context;
         mQuestions = questions;
         mSubmitData = submitData;
+        compileConditions(questions);
+    }
+
+    // Compiles every showIf now, so answering a question only evaluates the compiled trees.
+    static void compileConditions(ArrayList<Question> questions) {
+        if (questions == null) {
+            return;
+        }
+        for (Question question : questions) {
+            if (question.showIf != null) {
+                question.showIf.compiled();
+            }
+            compileConditions(question.subQuestions);
+        }
     }
 
     public Question getQuestionFor(int position) {
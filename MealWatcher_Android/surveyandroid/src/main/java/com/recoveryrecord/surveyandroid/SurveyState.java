@@ -1,11 +1,12 @@
 package com.recoveryrecord.surveyandroid;
 
-import android.os.Build;
 import android.util.Log;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.recoveryrecord.surveyandroid.condition.ConditionEvaluator;
 import com.recoveryrecord.surveyandroid.condition.CustomConditionHandler;
 import com.recoveryrecord.surveyandroid.condition.FilteredQuestions;
@@ -15,23 +16,24 @@ import com.recoveryrecord.surveyandroid.question.Question;
 import com.recoveryrecord.surveyandroid.question.QuestionsWrapper.SubmitData;
 import com.recoveryrecord.surveyandroid.validation.Validator;
 
-import org.json.JSONArray;
-
-import java.time.LocalDateTime;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
 
 // Tracks the current state of our survey.
-public class SurveyState implements OnQuestionStateChangedListener, AnswerProvider {
+public class SurveyState implements OnQuestionStateChangedListener, StreamingAnswerProvider, AnswerJournal.StateSource {
     private static final String TAG = SurveyState.class.getSimpleName();
 
     private SurveyQuestions mSurveyQuestions;
@@ -45,9 +47,11 @@ public class SurveyState implements OnQuestionStateChangedListener, AnswerProvid
 
     private int mVisibleQuestionCount = 1;
     private boolean mIsSubmitButtonShown = false;
+    private AnswerJournal mAnswerJournal;
+    private boolean mRestoring;
 
-    private ObjectMapper mObjectMapper;
-    static String surveyEndTime;
+    static final String TIME_FORMAT = "yyyy-MM-dd-HH-mm-ss";
+    private static final JsonFactory sJsonFactory = new JsonFactory();
 
     public SurveyState(SurveyQuestions surveyQuestions) {
         mSurveyQuestions = surveyQuestions;
@@ -82,6 +86,51 @@ public class SurveyState implements OnQuestionStateChangedListener, AnswerProvid
         return mSubmitSurveyHandler;
     }
 
+    // Restores the answers kept in file, if the survey was killed before it was finished, and records
+    // every answer there from now on.  Call it before initFilter.
+    public SurveyState setAnswerJournal(File file) {
+        mRestoring = true;
+        try {
+            mAnswerJournal = AnswerJournal.open(file, this, System.currentTimeMillis(), AnswerJournal.DEFAULT_MAX_AGE_MS);
+            Log.d(TAG, "Restored " + mAnswerJournal.getReplayed() + " changes from " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Error while opening " + file, e);
+        } finally {
+            mRestoring = false;
+        }
+        for (QuestionState questionState : mQuestionStateMap.values()) {
+            questionState.setJournal(mAnswerJournal);
+        }
+        return this;
+    }
+
+    public AnswerJournal getAnswerJournal() {
+        return mAnswerJournal;
+    }
+
+    // Closes the journal, and deletes it if the survey is over.
+    public void closeAnswerJournal(boolean discard) {
+        if (mAnswerJournal == null) {
+            return;
+        }
+        for (QuestionState questionState : mQuestionStateMap.values()) {
+            questionState.setJournal(null);
+        }
+        if (mAnswerJournal.getError() != null) {
+            Log.e(TAG, "Answers stopped being saved", mAnswerJournal.getError());
+        }
+        try {
+            if (discard) {
+                mAnswerJournal.discard();
+            } else {
+                mAnswerJournal.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error while closing the answer journal", e);
+        }
+        mAnswerJournal = null;
+    }
+
     public Integer getVisibleQuestionCount() {
         return mVisibleQuestionCount;
     }
@@ -138,6 +187,7 @@ public class SurveyState implements OnQuestionStateChangedListener, AnswerProvid
                 return null;
             }
         });
+        showAnsweredQuestions();    /* the questions answered before a restart */
         return this;
     }
 
@@ -164,6 +214,7 @@ public class SurveyState implements OnQuestionStateChangedListener, AnswerProvid
             return mQuestionStateMap.get(questionId);
         } else {
             QuestionState questionState = new QuestionState(questionId, this);
+            questionState.setJournal(mAnswerJournal);
             mQuestionStateMap.put(questionId, questionState);
             return questionState;
         }
@@ -172,6 +223,9 @@ public class SurveyState implements OnQuestionStateChangedListener, AnswerProvid
     @Override
     public void questionStateChanged(QuestionState newQuestionState) {
         mQuestionStateMap.put(newQuestionState.id(), newQuestionState);
+        if (mRestoring) {
+            return;
+        }
         for (OnQuestionStateChangedListener listener : mQuestionStateChangedListeners) {
             listener.questionStateChanged(newQuestionState);
         }
@@ -180,15 +234,23 @@ public class SurveyState implements OnQuestionStateChangedListener, AnswerProvid
     @Override
     public void questionAnswered(QuestionState newQuestionState) {
         mQuestionStateMap.put(newQuestionState.id(), newQuestionState);
+        if (mRestoring) {
+            return;     /* initFilter looks at all answers at once */
+        }
         mFilteredQuestions.questionAnswered(newQuestionState);
+        showAnsweredQuestions();
+        for (OnQuestionStateChangedListener listener : mQuestionStateChangedListeners) {
+            listener.questionAnswered(newQuestionState);
+        }
+    }
+
+    // Shows questions until the first one not answered, or the submit button.
+    private void showAnsweredQuestions() {
         Question lastQuestion = getQuestionFor(mVisibleQuestionCount - 1);
         while (!isSubmitButtonShown() && lastQuestion != null && isAnswered(lastQuestion)) {
             increaseVisibleQuestionCount();
             lastQuestion = getQuestionFor(mVisibleQuestionCount - 1);
         }
-        for (OnQuestionStateChangedListener listener : mQuestionStateChangedListeners) {
-            listener.questionAnswered(newQuestionState);
-        }
     }
 
     public boolean isAnswered(Question question) {
@@ -209,90 +271,103 @@ public class SurveyState implements OnQuestionStateChangedListener, AnswerProvid
 
     @Override
     public String allAnswersJson() {
-        ObjectNode topNode = getObjectMapper().createObjectNode();
-        ArrayNode surveyResults = getObjectMapper().createArrayNode();
-
-        for (String questionId : mQuestionStateMap.keySet()) {
-            ObjectNode questionNode = getObjectMapper().createObjectNode();
-            ObjectNode questionValue = getObjectMapper().createObjectNode();
-
-            questionValue.put("Title", questionId);
-            questionValue = putAnswer(questionValue, "Answer", answerFor(questionId));
-            ArrayList<String> options = optionsFor(questionId);
-            if (!options.isEmpty()) {
-                questionValue.put("Options", getObjectMapper().valueToTree(options));
-            }
-
-            questionNode.set("Question", questionValue);
-            surveyResults.add(questionNode);
-        }
-        topNode.set("SurveyResult", surveyResults);
-
-        ObjectNode metadata = getObjectMapper().createObjectNode();
-        metadata.put("start-time", SurveyActivity.surveyStartTime);
-        DateTimeFormatter formatter = null;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            LocalDateTime now = LocalDateTime.now();
-            formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
-            surveyEndTime = now.format(formatter);
-        }
-
-        String startTime_[] = SurveyActivity.surveyStartTime.substring(11).split("-");
-        String endTime_[] = surveyEndTime.substring(11).split("-");
-        String startTime = String.join(":", startTime_);
-        String endTime = String.join(":", endTime_);
-        // Parse the strings into LocalTime objects
-        LocalTime localTime1 = null, localTime2 = null;
-        long secondsElapsed = 0, minutesElapsed = 0, hoursElapsed = 0;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            localTime1 = LocalTime.parse(startTime);
-            localTime2 = LocalTime.parse(endTime);
-            // Calculate the difference between the times
-            secondsElapsed = ChronoUnit.SECONDS.between(localTime1, localTime2);
+        StringWriter json = new StringWriter();
+        try {
+            JsonGenerator generator = sJsonFactory.createGenerator(json);
+            writeAnswers(generator);
+            generator.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error while writing answers", e);   /* a StringWriter doesn't throw */
         }
-
-        hoursElapsed = secondsElapsed / 3600;
-        minutesElapsed = (secondsElapsed % 3600) / 60;
-
-        metadata.put("elapsed-time-sec", secondsElapsed);
-        secondsElapsed = secondsElapsed % 60;
-
-        metadata.put("end-time", surveyEndTime);
-        metadata.put("elapsed-time-readable", hoursElapsed + "h " + minutesElapsed + "m "
-                + secondsElapsed + "s ");
-
-        topNode.set("Metadata", metadata);
-        return topNode.toString();
+        return json.toString();
     }
 
-    private ObjectMapper getObjectMapper() {
-        if (mObjectMapper == null) {
-            mObjectMapper = new ObjectMapper();
+    // Streams the answers into file, indented for reading.  They go to a temporary file first
+    // which then replaces file, so file is never left half written.
+    @Override
+    public void writeAnswersJson(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean written = false;
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                JsonGenerator generator = sJsonFactory.createGenerator(new BufferedOutputStream(out), JsonEncoding.UTF8);
+                DefaultIndenter indenter = new DefaultIndenter("    ", "\n");
+                generator.setPrettyPrinter(new DefaultPrettyPrinter()
+                        .withObjectIndenter(indenter)
+                        .withArrayIndenter(indenter));
+                writeAnswers(generator);
+                generator.close();  /* flushes the buffer */
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't write " + file);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmp.delete();   /* don't leave a half written file behind */
+            }
         }
-        return mObjectMapper;
     }
 
-    private ObjectNode putAnswer(ObjectNode objectNode, String key, Answer answer) {
+    private void writeAnswers(JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("SurveyResult");
+        for (String questionId : mQuestionStateMap.keySet()) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("Question");
+            generator.writeStringField("Title", questionId);
+            writeAnswer(generator, "Answer", answerFor(questionId));
+            ArrayList<String> options = optionsFor(questionId);
+            if (!options.isEmpty()) {
+                generator.writeArrayFieldStart("Options");
+                for (String option : options) {
+                    generator.writeString(option);
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+
+        // Elapsed time from the clock readings, so a survey over midnight doesn't come out negative
+        long endMillis = System.currentTimeMillis();
+        long secondsElapsed = Math.max(0, (endMillis - SurveyActivity.surveyStartMillis) / 1000);
+        SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT, Locale.US);
+        generator.writeObjectFieldStart("Metadata");
+        generator.writeStringField("start-time", format.format(new Date(SurveyActivity.surveyStartMillis)));
+        generator.writeNumberField("elapsed-time-sec", secondsElapsed);
+        generator.writeStringField("end-time", format.format(new Date(endMillis)));
+        generator.writeStringField("elapsed-time-readable", secondsElapsed / 3600 + "h " + (secondsElapsed % 3600) / 60 + "m "
+                + secondsElapsed % 60 + "s ");
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private void writeAnswer(JsonGenerator generator, String key, Answer answer) throws IOException {
         if (answer == null) {
             Log.e(TAG, "Answer is null for key: " + key);
-            return objectNode;
+            return;
         }
         if (answer.isString()) {
-            objectNode.put(key, answer.getValue());
+            generator.writeStringField(key, answer.getValue());
         } else if (answer.isList()) {
-            ArrayList<String> answersList = answer.getValueList();
-            ArrayNode answerListNode = objectNode.putArray(key);
-            for (String answerStr : answersList) {
-                answerListNode.add(answerStr);
+            generator.writeArrayFieldStart(key);
+            for (String answerStr : answer.getValueList()) {
+                generator.writeString(answerStr);
             }
+            generator.writeEndArray();
         } else {
-            for (String valueKey : answer.getValueMap().keySet()) {
-                ObjectNode valueObject = getObjectMapper().createObjectNode();
-                valueObject = putAnswer(valueObject, valueKey, answer.getValueMap().get(valueKey));
-                objectNode.set(key, valueObject);
+            generator.writeObjectFieldStart(key);
+            for (Map.Entry<String, Answer> value : answer.getValueMap().entrySet()) {
+                writeAnswer(generator, value.getKey(), value.getValue());
             }
+            generator.writeEndObject();
         }
-        return objectNode;
     }
 
     public SubmitData getSubmitData() {
@@ -0,0 +1,215 @@
+package com.recoveryrecord.surveyandroid.condition;
+
+import com.recoveryrecord.surveyandroid.Answer;
+import com.recoveryrecord.surveyandroid.AnswerProvider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A showIf condition turned into a tree of predicates once, when the survey is loaded, so that
+ * evaluating it again after every answer is a walk over the tree: operations are enums instead
+ * of strings, and numbers in the condition are parsed only here.  Only a numeric comparison still
+ * parses the answer, which can change.  The results are the same as the condition's own rules
+ * (see ConditionEvaluator); a malformed condition (unknown operation, value that isn't a number
+ * for a comparison) is never met.
+ */
+public abstract class CompiledCondition {
+
+    public abstract boolean isMet(AnswerProvider answerProvider, CustomConditionHandler customConditionHandler);
+
+    public static CompiledCondition compile(Condition condition) {
+        if (condition == null) {
+            return ALWAYS;
+        } else if (condition instanceof SimpleCondition) {
+            return compileSimple((SimpleCondition) condition);
+        } else if (condition instanceof DecisionCondition) {
+            return compileDecision((DecisionCondition) condition);
+        } else if (condition instanceof CustomCondition) {
+            CustomCondition custom = (CustomCondition) condition;
+            return new Custom(custom.ids == null ? new String[0] : custom.ids.toArray(new String[0]), custom.extra);
+        }
+        return NEVER;
+    }
+
+    enum Operation {
+        EQUALS("equals", false),
+        NOT_EQUALS("not equals", true),
+        GREATER_THAN("greater than", false),
+        GREATER_THAN_OR_EQUAL_TO("greater than or equal to", false),
+        LESS_THAN("less than", false),
+        LESS_THAN_OR_EQUAL_TO("less than or equal to", false),
+        CONTAINS("contains", false),
+        NOT_CONTAINS("not contains", true);
+
+        final String text;
+        final boolean metWithoutAnswer;
+
+        Operation(String text, boolean metWithoutAnswer) {
+            this.text = text;
+            this.metWithoutAnswer = metWithoutAnswer;
+        }
+
+        boolean isComparison() {
+            return this == GREATER_THAN || this == GREATER_THAN_OR_EQUAL_TO || this == LESS_THAN || this == LESS_THAN_OR_EQUAL_TO;
+        }
+
+        static Operation of(String text) {
+            for (Operation operation : values()) {
+                if (operation.text.equals(text)) {
+                    return operation;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final CompiledCondition ALWAYS = new CompiledCondition() {
+        @Override
+        public boolean isMet(AnswerProvider answerProvider, CustomConditionHandler customConditionHandler) {
+            return true;
+        }
+    };
+
+    static final CompiledCondition NEVER = new CompiledCondition() {
+        @Override
+        public boolean isMet(AnswerProvider answerProvider, CustomConditionHandler customConditionHandler) {
+            return false;
+        }
+    };
+
+    private static CompiledCondition compileSimple(SimpleCondition condition) {
+        Operation operation = Operation.of(condition.operation);
+        if (operation == null) {
+            return NEVER;
+        }
+        double number = 0;
+        if (operation.isComparison()) {
+            if (condition.value == null || condition.value.isEmpty()) {
+                return NEVER;
+            }
+            try {
+                number = Double.parseDouble(condition.value);
+            } catch (NumberFormatException nfe) {
+                return NEVER;
+            }
+        }
+        return new Simple(condition.id, condition.subid, operation, condition.value, number);
+    }
+
+    private static CompiledCondition compileDecision(DecisionCondition condition) {
+        boolean and = "and".equals(condition.operation);
+        if (!and && !"or".equals(condition.operation)) {
+            return NEVER;
+        }
+        List<CompiledCondition> subconditions = new ArrayList<>();
+        if (condition.subconditions != null) {
+            for (Condition subcondition : condition.subconditions) {
+                subconditions.add(compile(subcondition));
+            }
+        }
+        return new Decision(and, subconditions.toArray(new CompiledCondition[0]));
+    }
+
+    private static final class Simple extends CompiledCondition {
+        private final String id;
+        private final String subid;
+        private final Operation operation;
+        private final String value;
+        private final double number;    /* value parsed, for the comparisons */
+
+        Simple(String id, String subid, Operation operation, String value, double number) {
+            this.id = id;
+            this.subid = subid;
+            this.operation = operation;
+            this.value = value;
+            this.number = number;
+        }
+
+        @Override
+        public boolean isMet(AnswerProvider answerProvider, CustomConditionHandler customConditionHandler) {
+            Answer answer = answerProvider.answerFor(id);
+            if (subid != null && answer != null) {
+                answer = answer.getValueMap() == null ? null : answer.getValueMap().get(subid);
+            }
+            if (answer == null) {
+                return operation.metWithoutAnswer;
+            }
+            switch (operation) {
+                case EQUALS:
+                    return value != null && value.equals(answer.getValue());
+                case NOT_EQUALS:
+                    return value == null || !value.equals(answer.getValue());
+                case CONTAINS:
+                    return answer.getValueList() != null && answer.getValueList().contains(value);
+                case NOT_CONTAINS:
+                    return answer.getValueList() != null && !answer.getValueList().contains(value);
+            }
+            String text = answer.getValue();
+            if (text == null || text.isEmpty()) {
+                return false;
+            }
+            int compared;
+            try {
+                compared = Double.compare(Double.parseDouble(text), number);
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+            switch (operation) {
+                case GREATER_THAN:
+                    return compared > 0;
+                case GREATER_THAN_OR_EQUAL_TO:
+                    return compared >= 0;
+                case LESS_THAN:
+                    return compared < 0;
+                default:
+                    return compared <= 0;
+            }
+        }
+    }
+
+    private static final class Decision extends CompiledCondition {
+        private final boolean and;
+        private final CompiledCondition[] subconditions;
+
+        Decision(boolean and, CompiledCondition[] subconditions) {
+            this.and = and;
+            this.subconditions = subconditions;
+        }
+
+        @Override
+        public boolean isMet(AnswerProvider answerProvider, CustomConditionHandler customConditionHandler) {
+            for (CompiledCondition subcondition : subconditions) {
+                if (subcondition.isMet(answerProvider, customConditionHandler) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+    }
+
+    private static final class Custom extends CompiledCondition {
+        private final String[] ids;
+        private final HashMap<String, String> extra;
+
+        Custom(String[] ids, HashMap<String, String> extra) {
+            this.ids = ids;
+            this.extra = extra;
+        }
+
+        @Override
+        public boolean isMet(AnswerProvider answerProvider, CustomConditionHandler customConditionHandler) {
+            if (customConditionHandler == null) {
+                throw new IllegalStateException("CustomConditionHandler must be set!");
+            }
+            // the handler takes a map, so this one still allocates
+            Map<String, Answer> answerMap = new HashMap<>();
+            for (String questionId : ids) {
+                answerMap.put(questionId, answerProvider.answerFor(questionId));
+            }
+            return customConditionHandler.isConditionMet(answerMap, extra);
+        }
+    }
+}
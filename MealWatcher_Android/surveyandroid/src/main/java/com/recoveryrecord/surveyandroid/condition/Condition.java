@@ -22,4 +22,14 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 })
 public abstract class Condition {
     public String operation;
+
+    private CompiledCondition mCompiled;
+
+    // Compiled on first use; SurveyQuestions compiles every showIf when the survey is loaded.
+    public CompiledCondition compiled() {
+        if (mCompiled == null) {
+            mCompiled = CompiledCondition.compile(this);
+        }
+        return mCompiled;
+    }
 }
@@ -8,21 +8,68 @@ import com.recoveryrecord.surveyandroid.SurveyQuestions;
 import com.recoveryrecord.surveyandroid.question.Question;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * The questions that are shown, in adapter order, and which are skipped by their showIf.
+ * A showIf can only look at answers, so when a question is answered only the questions whose
+ * showIf refers to it (mDependents) are evaluated again, and the adapter positions are patched
+ * for the ones that changed instead of being rebuilt for the whole survey.
+ */
 public class FilteredQuestions implements OnQuestionStateChangedListener {
     private SurveyQuestions mSurveyQuestions;
     private ConditionEvaluator mConditionEvaluator;
-    private ArrayList<Integer> mAdapterToRealPositions;
-    private Set<QuestionAdapterPosition> mSkippedQuestions = new HashSet<>();
+    // real positions of the shown questions, in order
+    private ArrayList<Integer> mAdapterToRealPositions = new ArrayList<>();
+    private boolean[] mSkipped;
+    // question id -> real positions of the questions whose showIf refers to its answer
+    private Map<String, List<Integer>> mDependents = new HashMap<>();
 
     private OnQuestionSkipStatusChangedListener mSkipStatusChangedListener;
 
     public FilteredQuestions(SurveyQuestions surveyQuestions, ConditionEvaluator conditionEvaluator) {
         mSurveyQuestions = surveyQuestions;
         mConditionEvaluator = conditionEvaluator;
-        updateAdapterToRealPositions();
+        mSkipped = new boolean[mSurveyQuestions.size()];
+        for (int i = 0; i < mSurveyQuestions.size(); i++) {
+            Question question = mSurveyQuestions.getQuestionFor(i);
+            addDependencies(question.showIf, i);
+            mSkipped[i] = isSkipped(question);
+            if (!mSkipped[i]) {
+                mAdapterToRealPositions.add(i);
+            }
+        }
+    }
+
+    private void addDependencies(Condition condition, int position) {
+        if (condition instanceof SimpleCondition) {
+            addDependency(((SimpleCondition) condition).id, position);
+        } else if (condition instanceof DecisionCondition) {
+            for (Condition subcondition : ((DecisionCondition) condition).subconditions) {
+                addDependencies(subcondition, position);
+            }
+        } else if (condition instanceof CustomCondition) {
+            for (String id : ((CustomCondition) condition).ids) {
+                addDependency(id, position);
+            }
+        }
+    }
+
+    private void addDependency(String questionId, int position) {
+        List<Integer> dependents = mDependents.get(questionId);
+        if (dependents == null) {
+            dependents = new ArrayList<>();
+            mDependents.put(questionId, dependents);
+        }
+        // a showIf can name the same question more than once
+        if (dependents.isEmpty() || dependents.get(dependents.size() - 1) != position) {
+            dependents.add(position);
+        }
     }
 
     public void setOnQuestionSkipStatusChangedListener(OnQuestionSkipStatusChangedListener listener) {
@@ -50,35 +97,46 @@ public class FilteredQuestions implements OnQuestionStateChangedListener {
         return !mConditionEvaluator.isConditionMet(question.showIf);
     }
 
-    private void updateAdapterToRealPositions() {
-        Set<QuestionAdapterPosition> skippedQuestions = new HashSet<>();
-        Set<QuestionAdapterPosition> oldSkippedQuestions = mSkippedQuestions;
+    // adapter position of the question at realPosition if shown, else of the next shown question
+    private int realToAdapter(int realPosition) {
+        int index = Collections.binarySearch(mAdapterToRealPositions, realPosition);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private void updateSkippedQuestions(String answeredQuestionId) {
         Set<QuestionAdapterPosition> newlySkipped = new HashSet<>();
         Set<QuestionAdapterPosition> newlyShown = new HashSet<>();
 
-        mAdapterToRealPositions = new ArrayList<>();
-        for (int i = 0; i < mSurveyQuestions.size(); i++) {
-            Question question = mSurveyQuestions.getQuestionFor(i);
-            if (isSkipped(question)) {
-                QuestionAdapterPosition skippedInfo = new QuestionAdapterPosition(question.id, mAdapterToRealPositions.size());
-                skippedQuestions.add(skippedInfo);
-                if (!oldSkippedQuestions.contains(skippedInfo)) {
-                    newlySkipped.add(skippedInfo);
+        List<Integer> dependents = mDependents.get(answeredQuestionId);
+        if (dependents != null) {
+            List<Integer> changed = new ArrayList<>();
+            for (int i : dependents) {
+                boolean skipped = isSkipped(mSurveyQuestions.getQuestionFor(i));
+                if (skipped == mSkipped[i]) {
+                    continue;
                 }
-                continue;
-            } else {
-                QuestionAdapterPosition positionInfo = new QuestionAdapterPosition(question.id, mAdapterToRealPositions.size());
-                if (oldSkippedQuestions.contains(positionInfo)) {
-                    newlyShown.add(positionInfo);
+                mSkipped[i] = skipped;
+                if (skipped) {
+                    mAdapterToRealPositions.remove(realToAdapter(i));
+                } else {
+                    mAdapterToRealPositions.add(realToAdapter(i), i);
+                }
+                changed.add(i);
+            }
+            // positions are reported after all changes, as if the list was built again
+            for (int i : changed) {
+                QuestionAdapterPosition position = new QuestionAdapterPosition(mSurveyQuestions.getQuestionFor(i).id, realToAdapter(i));
+                if (mSkipped[i]) {
+                    newlySkipped.add(position);
+                } else {
+                    newlyShown.add(position);
                 }
             }
-            mAdapterToRealPositions.add(i);
         }
 
         if (mSkipStatusChangedListener == null) {
             return;
         }
-        mSkippedQuestions = skippedQuestions;
         mSkipStatusChangedListener.skipStatusChanged(newlySkipped, newlyShown);
     }
 
@@ -87,7 +145,7 @@ public class FilteredQuestions implements OnQuestionStateChangedListener {
 
     @Override
     public void questionAnswered(QuestionState newQuestionState) {
-        updateAdapterToRealPositions();
+        updateSkippedQuestions(newQuestionState.id());
     }
 
     public class QuestionAdapterPosition {
@@ -12,7 +12,10 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.recoveryrecord.surveyandroid.AnswerProvider;
 import com.recoveryrecord.surveyandroid.R;
+import com.recoveryrecord.surveyandroid.StreamingAnswerProvider;
+import com.recoveryrecord.surveyandroid.StreamingSubmitSurveyHandler;
 import com.recoveryrecord.surveyandroid.SubmitSurveyHandler;
+import com.recoveryrecord.surveyandroid.SurveyState;
 import com.recoveryrecord.surveyandroid.question.QuestionsWrapper.SubmitData;
 
 public class SubmitViewHolder extends RecyclerView.ViewHolder {
@@ -31,7 +34,14 @@ public class SubmitViewHolder extends RecyclerView.ViewHolder {
         submitButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                submitSurveyHandler.submit(submitData.url, answerProvider.allAnswersJson());
+                if (submitSurveyHandler instanceof StreamingSubmitSurveyHandler && answerProvider instanceof StreamingAnswerProvider) {
+                    ((StreamingSubmitSurveyHandler) submitSurveyHandler).submit(submitData.url, (StreamingAnswerProvider) answerProvider);
+                } else {
+                    submitSurveyHandler.submit(submitData.url, answerProvider.allAnswersJson());
+                }
+                if (answerProvider instanceof SurveyState) {
+                    ((SurveyState) answerProvider).closeAnswerJournal(true);   /* submitted, nothing to restore */
+                }
 
                 AlertDialog.Builder builder1 = new AlertDialog.Builder(activity);
                 builder1.setMessage("Survey Submitted Successfully!");
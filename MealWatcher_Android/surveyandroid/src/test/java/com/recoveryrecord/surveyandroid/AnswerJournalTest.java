@@ -0,0 +1,153 @@
+package com.recoveryrecord.surveyandroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnswerJournalTest {
+    private static final long NOW = 1700000000000L;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private File file;
+
+    // QuestionStates without a SurveyState, as SurveyState.getStateFor makes them
+    private static class States implements AnswerJournal.StateSource {
+        final Map<String, QuestionState> states = new HashMap<>();
+        AnswerJournal journal;
+
+        @Override
+        public QuestionState getStateFor(String questionId) {
+            QuestionState state = states.get(questionId);
+            if (state == null) {
+                state = new QuestionState(questionId, null);
+                state.setJournal(journal);
+                states.put(questionId, state);
+            }
+            return state;
+        }
+
+        void open(File file, long now) throws IOException {
+            journal = AnswerJournal.open(file, this, now, AnswerJournal.DEFAULT_MAX_AGE_MS);
+            for (QuestionState state : states.values()) {
+                state.setJournal(journal);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("answers", ".journal");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void answers_areRestored() throws IOException {
+        States before = new States();
+        before.open(file, NOW);
+        assertEquals(0, before.journal.getReplayed());
+        before.getStateFor("name").put("edit_text", "Jo");
+        before.getStateFor("name").put("edit_text", "Jos\u00e9");
+        before.getStateFor("name").setAnswer(new Answer("Jos\u00e9"));
+        before.getStateFor("foods").addStringToList("checked", "rice");
+        before.getStateFor("foods").addStringToList("checked", "beans");
+        before.getStateFor("foods").removeStringFromList("checked", "rice");
+        before.getStateFor("foods").put("has_been_answered", true);
+        before.getStateFor("foods").setAnswer(new Answer(new ArrayList<>(Arrays.asList("beans", "tea"))));
+        before.getStateFor("foods").setOptions(new ArrayList<>(Arrays.asList("rice", "beans")));
+        HashMap<String, Answer> map = new HashMap<>();
+        map.put("cups", new Answer("2"));
+        map.put("kind", new Answer(new ArrayList<>(Arrays.asList("green"))));
+        before.getStateFor("drinks").setAnswer(new Answer(map));
+        before.journal.close();
+
+        States after = new States();
+        after.open(file, NOW + HOUR);
+        assertEquals(10, after.journal.getReplayed());
+        assertEquals(NOW, after.journal.getStartMillis());
+        assertEquals("Jos\u00e9", after.getStateFor("name").getString("edit_text"));
+        assertEquals("Jos\u00e9", after.getStateFor("name").getAnswer().getValue());
+        assertEquals(Arrays.asList("beans"), after.getStateFor("foods").getList("checked"));
+        assertTrue(after.getStateFor("foods").getBool("has_been_answered", false));
+        assertEquals(Arrays.asList("beans", "tea"), after.getStateFor("foods").getAnswer().getValueList());
+        assertEquals(Arrays.asList("rice", "beans"), after.getStateFor("foods").getOptions());
+        Answer drinks = after.getStateFor("drinks").getAnswer();
+        assertEquals("2", drinks.getValueMap().get("cups").getValue());
+        assertEquals(Arrays.asList("green"), drinks.getValueMap().get("kind").getValueList());
+        assertFalse(after.getStateFor("other").isAnswered());
+        after.journal.close();
+    }
+
+    @Test
+    public void cutOffRecord_isDroppedAndWritingGoesOn() throws IOException {
+        States before = new States();
+        before.open(file, NOW);
+        before.getStateFor("age").setAnswer(new Answer("42"));
+        before.getStateFor("note").put("edit_text", "half of this is lost");
+        before.journal.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);    /* killed in the middle of the last record */
+        raf.close();
+
+        States restarted = new States();
+        restarted.open(file, NOW + 1);
+        assertEquals(1, restarted.journal.getReplayed());
+        assertEquals("42", restarted.getStateFor("age").getAnswer().getValue());
+        assertNull(restarted.getStateFor("note").getString("edit_text"));
+        restarted.getStateFor("note").put("edit_text", "again");
+        restarted.journal.close();
+
+        States after = new States();
+        after.open(file, NOW + 2);
+        assertEquals(2, after.journal.getReplayed());
+        assertEquals("again", after.getStateFor("note").getString("edit_text"));
+        after.journal.close();
+    }
+
+    @Test
+    public void oldJournal_isStartedOver() throws IOException {
+        States before = new States();
+        before.open(file, NOW);
+        before.getStateFor("age").setAnswer(new Answer("42"));
+        before.journal.close();
+
+        long later = NOW + AnswerJournal.DEFAULT_MAX_AGE_MS + 1;
+        States nextMeal = new States();
+        nextMeal.open(file, later);
+        assertEquals(0, nextMeal.journal.getReplayed());
+        assertEquals(later, nextMeal.journal.getStartMillis());
+        assertFalse(nextMeal.getStateFor("age").isAnswered());
+        nextMeal.journal.discard();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void garbage_isStartedOver() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[]{1, 2, 3, 4});
+        raf.close();
+        States states = new States();
+        states.open(file, NOW);
+        assertEquals(0, states.journal.getReplayed());
+        assertEquals(NOW, states.journal.getStartMillis());
+        assertEquals(9, file.length());     /* just the start record */
+        states.journal.close();
+    }
+}
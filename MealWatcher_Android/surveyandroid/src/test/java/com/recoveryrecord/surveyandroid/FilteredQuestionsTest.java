@@ -0,0 +1,120 @@
+package com.recoveryrecord.surveyandroid;
+
+import com.recoveryrecord.surveyandroid.condition.Condition;
+import com.recoveryrecord.surveyandroid.condition.ConditionEvaluator;
+import com.recoveryrecord.surveyandroid.condition.DecisionCondition;
+import com.recoveryrecord.surveyandroid.condition.FilteredQuestions;
+import com.recoveryrecord.surveyandroid.condition.SimpleCondition;
+import com.recoveryrecord.surveyandroid.question.Question;
+import com.recoveryrecord.surveyandroid.question.SingleTextFieldQuestion;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// FilteredQuestions only looks again at the questions whose showIf names the answered question;
+// after every answer it must show what a FilteredQuestions built from scratch shows, and report
+// the changes at the positions of the new list.
+public class FilteredQuestionsTest {
+    private final MapAnswerProvider answerProvider = new MapAnswerProvider();
+    private final Map<String, Answer> answers = answerProvider.answers;
+    private final Random random = new Random(5);
+
+    private SimpleCondition randomSimple(int before) {
+        SimpleCondition condition = new SimpleCondition();
+        condition.id = "q" + random.nextInt(before);
+        condition.operation = random.nextBoolean() ? "equals" : "not equals";
+        condition.value = random.nextBoolean() ? "a" : "b";
+        return condition;
+    }
+
+    // a showIf on the questions before question i, or none
+    private Condition randomCondition(int i) {
+        int kind = random.nextInt(4);
+        if (kind == 0 || i == 0) {
+            return null;
+        }
+        if (kind < 3) {
+            return randomSimple(i);
+        }
+        DecisionCondition condition = new DecisionCondition();
+        condition.operation = random.nextBoolean() ? "and" : "or";
+        condition.subconditions = new ArrayList<>();
+        SimpleCondition repeated = randomSimple(i);
+        condition.subconditions.add(randomSimple(i));
+        condition.subconditions.add(repeated);
+        condition.subconditions.add(repeated);  /* the same question named twice */
+        return condition;
+    }
+
+    private static List<String> shown(FilteredQuestions filteredQuestions) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < filteredQuestions.size(); i++) {
+            ids.add(filteredQuestions.getQuestionFor(i).id);
+        }
+        return ids;
+    }
+
+    @Test
+    public void randomAnswers_matchARebuild() {
+        ConditionEvaluator evaluator = new ConditionEvaluator(answerProvider);
+        for (int survey = 0; survey < 200; survey++) {
+            answers.clear();
+            int size = 1 + random.nextInt(40);
+            ArrayList<Question> questions = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                Question question = new SingleTextFieldQuestion();
+                question.id = "q" + i;
+                question.showIf = randomCondition(i);
+                questions.add(question);
+            }
+            SurveyQuestions surveyQuestions = new SurveyQuestions(null, questions, null);
+            FilteredQuestions filteredQuestions = new FilteredQuestions(surveyQuestions, evaluator);
+            final List<String> changes = new ArrayList<>();
+            filteredQuestions.setOnQuestionSkipStatusChangedListener((skipped, shown) -> {
+                changes.clear();
+                for (FilteredQuestions.QuestionAdapterPosition position : skipped) {
+                    changes.add("-" + position.questionId + "@" + position.adapterPosition);
+                }
+                for (FilteredQuestions.QuestionAdapterPosition position : shown) {
+                    changes.add("+" + position.questionId + "@" + position.adapterPosition);
+                }
+                Collections.sort(changes);
+            });
+
+            List<String> before = shown(filteredQuestions);
+            for (int step = 0; step < 30; step++) {
+                String id = "q" + random.nextInt(size);
+                answers.put(id, new Answer(random.nextBoolean() ? "a" : "b"));
+                filteredQuestions.questionAnswered(new QuestionState(id, null));
+
+                List<String> rebuilt = shown(new FilteredQuestions(surveyQuestions, evaluator));
+                assertEquals("survey " + survey + " step " + step, rebuilt, shown(filteredQuestions));
+                List<String> expected = new ArrayList<>();
+                int position = 0;
+                for (int i = 0; i < size; i++) {
+                    String questionId = "q" + i;
+                    boolean was = before.contains(questionId);
+                    boolean is = rebuilt.contains(questionId);
+                    if (was && !is) {
+                        expected.add("-" + questionId + "@" + position);
+                    } else if (!was && is) {
+                        expected.add("+" + questionId + "@" + position);
+                    }
+                    if (is) {
+                        position++;
+                    }
+                }
+                Collections.sort(expected);
+                assertEquals("survey " + survey + " step " + step, expected, changes);
+                before = rebuilt;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.recoveryrecord.surveyandroid;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The answers the survey tests (and the condition benchmark) put in a map, without a SurveyState.
+public class MapAnswerProvider implements AnswerProvider {
+    public final Map<String, Answer> answers = new HashMap<>();
+
+    @Override
+    public Answer answerFor(String questionId) {
+        return answers.get(questionId);
+    }
+
+    @Override
+    public String allAnswersJson() {
+        return null;
+    }
+}
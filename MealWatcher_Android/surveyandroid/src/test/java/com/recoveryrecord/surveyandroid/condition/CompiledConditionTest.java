@@ -0,0 +1,207 @@
+package com.recoveryrecord.surveyandroid.condition;
+
+import com.recoveryrecord.surveyandroid.Answer;
+import com.recoveryrecord.surveyandroid.MapAnswerProvider;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledConditionTest {
+    private final MapAnswerProvider answerProvider = new MapAnswerProvider();
+    private final Map<String, Answer> answers = answerProvider.answers;
+
+    private static SimpleCondition simple(String id, String operation, String value) {
+        SimpleCondition condition = new SimpleCondition();
+        condition.id = id;
+        condition.operation = operation;
+        condition.value = value;
+        return condition;
+    }
+
+    private static DecisionCondition decision(String operation, Condition... subconditions) {
+        DecisionCondition condition = new DecisionCondition();
+        condition.operation = operation;
+        condition.subconditions = new ArrayList<>(Arrays.asList(subconditions));
+        return condition;
+    }
+
+    private boolean isMet(Condition condition) {
+        return condition.compiled().isMet(answerProvider, null);
+    }
+
+    @Test
+    public void equals_andWithoutAnswer() {
+        SimpleCondition condition = simple("meal", "equals", "A meal/snack earlier today or yesterday");
+        SimpleCondition not = simple("meal", "not equals", "A meal/snack earlier today or yesterday");
+        assertFalse(isMet(condition));
+        assertTrue(isMet(not));
+        answers.put("meal", new Answer("A meal/snack earlier today or yesterday"));
+        assertTrue(isMet(condition));
+        assertFalse(isMet(not));
+        assertSame(condition.compiled(), condition.compiled());
+    }
+
+    @Test
+    public void comparisons_useTheParsedNumber() {
+        answers.put("age", new Answer("21"));
+        assertTrue(isMet(simple("age", "greater than", "20.5")));
+        assertTrue(isMet(simple("age", "greater than or equal to", "21")));
+        assertFalse(isMet(simple("age", "less than", "21")));
+        assertTrue(isMet(simple("age", "less than or equal to", "21")));
+        assertFalse(isMet(simple("age", "greater than", "twenty")));   /* not a number: never met */
+        answers.put("age", new Answer("n/a"));
+        assertFalse(isMet(simple("age", "less than", "100")));
+        answers.remove("age");
+        assertFalse(isMet(simple("age", "less than", "100")));
+    }
+
+    @Test
+    public void contains_andSubid() {
+        answers.put("foods", new Answer(new ArrayList<>(Arrays.asList("bread", "rice"))));
+        assertTrue(isMet(simple("foods", "contains", "rice")));
+        assertFalse(isMet(simple("foods", "not contains", "rice")));
+        assertTrue(isMet(simple("nothing", "not contains", "rice")));
+
+        HashMap<String, Answer> table = new HashMap<>();
+        table.put("lunch", new Answer("yes"));
+        answers.put("meals", new Answer(table));
+        SimpleCondition lunch = simple("meals", "equals", "yes");
+        lunch.subid = "lunch";
+        assertTrue(isMet(lunch));
+        lunch = simple("meals", "equals", "yes");
+        lunch.subid = "dinner";
+        assertFalse(isMet(lunch));
+    }
+
+    @Test
+    public void andOr() {
+        answers.put("a", new Answer("1"));
+        Condition yes = simple("a", "equals", "1");
+        Condition no = simple("a", "equals", "2");
+        assertTrue(isMet(decision("and", yes, yes)));
+        assertFalse(isMet(decision("and", yes, no)));
+        assertTrue(isMet(decision("or", no, yes)));
+        assertFalse(isMet(decision("or", no, no)));
+        assertTrue(isMet(decision("and")));
+        assertFalse(isMet(decision("or")));
+        assertTrue(isMet(decision("and", yes, decision("or", no, yes))));
+    }
+
+    @Test
+    public void custom_getsTheAnswersOfItsIds() {
+        answers.put("a", new Answer("1"));
+        CustomCondition condition = new CustomCondition();
+        condition.operation = "custom";
+        condition.ids = new ArrayList<>(Arrays.asList("a", "b"));
+        condition.extra = new HashMap<>();
+        condition.extra.put("k", "v");
+        AtomicReference<Map<String, Answer>> seen = new AtomicReference<>();
+        assertTrue(condition.compiled().isMet(answerProvider, (answerMap, extra) -> {
+            seen.set(answerMap);
+            return "v".equals(extra.get("k"));
+        }));
+        assertEquals("1", seen.get().get("a").getValue());
+        assertTrue(seen.get().containsKey("b"));
+    }
+
+    private static final String[] OPERATIONS = {"equals", "not equals", "greater than", "greater than or equal to",
+            "less than", "less than or equal to", "contains", "not contains", "unknown"};
+    private static final String[] VALUES = {"a", "b", "1", "2.5", "-3", " 2", "1e3", "x1", "", "NaN"};
+
+    private static Condition randomCondition(Random random, int depth) {
+        if (depth < 3 && random.nextInt(3) == 0) {
+            DecisionCondition condition = new DecisionCondition();
+            condition.operation = random.nextBoolean() ? "and" : "or";
+            condition.subconditions = new ArrayList<>();
+            int size = random.nextInt(4);
+            for (int i = 0; i < size; i++) {
+                condition.subconditions.add(randomCondition(random, depth + 1));
+            }
+            return condition;
+        }
+        if (random.nextInt(10) == 0) {
+            CustomCondition condition = new CustomCondition();
+            condition.operation = "custom";
+            condition.ids = new ArrayList<>(Arrays.asList("q" + random.nextInt(4), "q" + random.nextInt(4)));
+            condition.extra = new HashMap<>();
+            condition.extra.put("value", VALUES[random.nextInt(VALUES.length)]);
+            return condition;
+        }
+        SimpleCondition condition = simple("q" + random.nextInt(4), OPERATIONS[random.nextInt(OPERATIONS.length)],
+                VALUES[random.nextInt(VALUES.length)]);
+        if (random.nextInt(5) == 0) {
+            condition.subid = "s" + random.nextInt(2);
+        }
+        return condition;
+    }
+
+    private static Answer randomAnswer(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return new Answer(VALUES[random.nextInt(VALUES.length)]);
+            case 1:
+                return new Answer(new ArrayList<>(Arrays.asList(VALUES[random.nextInt(VALUES.length)], VALUES[random.nextInt(VALUES.length)])));
+            case 2:
+                HashMap<String, Answer> valueMap = new HashMap<>();
+                valueMap.put("s0", new Answer(VALUES[random.nextInt(VALUES.length)]));
+                return new Answer(valueMap);
+            default:
+                return null;
+        }
+    }
+
+    @Test
+    public void randomConditions_agreeWithTheReference() {
+        Random random = new Random(9);
+        CustomConditionHandler handler = (answerMap, extra) -> {
+            for (Answer answer : answerMap.values()) {
+                if (answer != null && extra.get("value").equals(answer.getValue())) {
+                    return true;
+                }
+            }
+            return false;
+        };
+        ReferenceConditionEvaluator reference = new ReferenceConditionEvaluator(answerProvider);
+        reference.setCustomConditionHandler(handler);
+        int compared = 0;
+        for (int i = 0; i < 20000; i++) {
+            Condition condition = randomCondition(random, 0);
+            for (int k = 0; k < 10; k++) {
+                answers.clear();
+                for (int q = 0; q < 4; q++) {
+                    Answer answer = randomAnswer(random);
+                    if (answer != null) {
+                        answers.put("q" + q, answer);
+                    }
+                }
+                boolean expected;
+                try {
+                    expected = reference.isConditionMet(condition);
+                } catch (NullPointerException e) {
+                    continue;   /* an unknown operation without an answer; compiled, it is never met */
+                }
+                assertEquals(condition + " with " + answers, expected, condition.compiled().isMet(answerProvider, handler));
+                compared++;
+            }
+        }
+        assertTrue(compared > 150000);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void custom_withoutHandler() {
+        CustomCondition condition = new CustomCondition();
+        condition.ids = new ArrayList<>();
+        isMet(condition);
+    }
+}
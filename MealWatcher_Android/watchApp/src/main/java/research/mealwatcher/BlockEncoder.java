@@ -0,0 +1,270 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Streaming encoder for the compressed sensor file format (.mwz).
+ * The phone decodes it back into the 80 byte .data records with BlockDecoder.
+ * *
+ * File layout (all values little-endian):
+ * *	header	'M' 'W' 'Z' version(1), channel count (u8), per channel the quantization step (f64)
+ * *	blocks	record count (u16), payload length (u32), payload, CRC32 of the 6+length bytes before it (u32)
+ * *
+ * Every block is encoded on its own, so a damaged block only loses its own records.  The payload
+ * is stored column by column: timestamp, system time, then each channel.  A column is
+ * *	timestamps	first value and first delta as zigzag varints, then the delta-of-deltas
+ * *	channel with step > 0	round(value / step) as zigzag varint, then the zigzag deltas
+ * *	channel with step == 0	float bits as varint, then the bits XOR the previous bits (lossless)
+ * where the deltas are bit packed (LSB first) with one width byte for the column, so a column
+ * takes only as many bits per record as its largest delta in the block needs (0 bits for
+ * timestamps at a steady rate).
+ * *
+ * The default steps are below the resolution of the watch sensors, so the quantization error
+ * (at most step/2) is smaller than the sensor noise.  Non-finite values can't be quantized and are
+ * stored as 0 in quantized channels.
+ * *
+ * Each block is written to the stream with a single write once it holds blockRecords records
+ * (200 = 2 sec at 100 Hz), or by flushIfDue once it has waited blockIntervalMs, so a block doesn't
+ * stay in memory when the samples stop.  Like RecordWriter a crash loses at most one block.
+ */
+public class BlockEncoder {
+    public static final byte VERSION = 1;
+    public static final int DEFAULT_BLOCK_RECORDS = 200;
+    public static final long DEFAULT_BLOCK_INTERVAL_MS = 2000;
+    /* gyro deg/s, accel G, magnetometer uT, quaternion, linear accel G */
+    public static final double[] WATCH_STEPS = {
+            0.01, 0.01, 0.01,
+            0.0001, 0.0001, 0.0001,
+            0.05, 0.05, 0.05,
+            0.0001, 0.0001, 0.0001, 0.0001,
+            0.0001, 0.0001, 0.0001};
+
+    private static final int BLOCK_HEADER = 6;
+
+    private final OutputStream out;
+    private final double[] steps;
+    private final int channels;
+    private final int blockRecords;
+    private final long blockIntervalMs;
+    private final CRC32 crc = new CRC32();
+    private final long[][] columns;     /* [timestamp, system time, channels...][record] of the current block */
+    private final byte[] block;         /* block header + payload + crc */
+    private int length;                 /* bytes used in block */
+    private int records;                /* records in the current block */
+    private long blockSeenAt = -1;      /* when flushIfDue first saw the current block, -1 if it hasn't */
+
+    private long bytesWritten, recordsWritten;
+    private boolean closed;
+
+    public BlockEncoder(OutputStream out) throws IOException {
+        this(out, WATCH_STEPS, DEFAULT_BLOCK_RECORDS, DEFAULT_BLOCK_INTERVAL_MS);
+    }
+
+    public BlockEncoder(OutputStream out, double[] steps, int blockRecords) throws IOException {
+        this(out, steps, blockRecords, DEFAULT_BLOCK_INTERVAL_MS);
+    }
+
+    public BlockEncoder(OutputStream out, double[] steps, int blockRecords, long blockIntervalMs) throws IOException {
+        if (steps.length > 255 || blockRecords <= 0 || blockRecords > 0xFFFF) {
+            throw new IllegalArgumentException("at most 255 channels and 65535 records per block");
+        }
+        this.out = out;
+        this.steps = steps.clone();
+        this.channels = steps.length;
+        this.blockRecords = blockRecords;
+        this.blockIntervalMs = blockIntervalMs;
+        columns = new long[2 + channels][blockRecords];
+        // worst case per column: two 10 byte varints, the width byte and 64 bits per record
+        block = new byte[BLOCK_HEADER + (2 + channels) * (21 + blockRecords * 8) + 4];
+
+        byte[] header = new byte[5 + channels * 8];
+        header[0] = 'M';
+        header[1] = 'W';
+        header[2] = 'Z';
+        header[3] = VERSION;
+        header[4] = (byte) channels;
+        for (int c = 0; c < channels; c++) {
+            putLong(header, 5 + c * 8, Double.doubleToLongBits(steps[c]));
+        }
+        out.write(header);
+        bytesWritten += header.length;
+    }
+
+    /* Adds one record; the block is written out once it is full. */
+    public void writeRecord(float[] sensor_reading, long timestamp, long timeStampSystem) throws IOException {
+        if (closed) {
+            throw new IOException("BlockEncoder is closed");
+        }
+        columns[0][records] = timestamp;
+        columns[1][records] = timeStampSystem;
+        for (int c = 0; c < channels; c++) {
+            float v = sensor_reading[c];
+            if (steps[c] > 0) {
+                columns[2 + c][records] = Float.isFinite(v) ? Math.round(v / steps[c]) : 0;
+            } else {
+                columns[2 + c][records] = Float.floatToRawIntBits(v) & 0xFFFFFFFFL;
+            }
+        }
+        records++;
+        recordsWritten++;
+        if (records == blockRecords) {
+            writeBlock();
+        }
+    }
+
+    /*
+    Ends the current block once it has waited blockIntervalMs, on the writing thread.  It is timed from
+    the first call that sees it, so the block is written within blockIntervalMs plus one call interval.
+     */
+    public void flushIfDue(long now) throws IOException {
+        if (closed || records == 0) {
+            return;
+        }
+        if (blockSeenAt < 0) {
+            blockSeenAt = now;
+        } else if (now - blockSeenAt >= blockIntervalMs) {
+            writeBlock();
+        }
+    }
+
+    /* Ends the current block (if it has any records) and writes it. */
+    public void flush() throws IOException {
+        if (!closed) {
+            writeBlock();
+        }
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (records == 0) {
+            return;
+        }
+        length = BLOCK_HEADER;
+        for (int col = 0; col < 2; col++) {
+            long[] t = columns[col];
+            putUnsigned(zigzag(t[0]));
+            if (records > 1) {
+                putUnsigned(zigzag(t[1] - t[0]));
+            }
+            for (int i = 2; i < records; i++) {
+                t[i - 2] = zigzag((t[i] - t[i - 1]) - (t[i - 1] - t[i - 2]));     /* t[i-2] is not needed anymore */
+            }
+            putPacked(t, Math.max(records - 2, 0));
+        }
+        for (int c = 0; c < channels; c++) {
+            long[] q = columns[2 + c];
+            boolean lossless = !(steps[c] > 0);
+            putUnsigned(lossless ? q[0] : zigzag(q[0]));
+            for (int i = 1; i < records; i++) {
+                q[i - 1] = lossless ? q[i] ^ q[i - 1] : zigzag(q[i] - q[i - 1]);
+            }
+            putPacked(q, records - 1);
+        }
+
+        int payload = length - BLOCK_HEADER;
+        block[0] = (byte) records;
+        block[1] = (byte) (records >>> 8);
+        putInt(block, 2, payload);
+        crc.reset();
+        crc.update(block, 0, length);
+        putInt(block, length, (int) crc.getValue());
+        out.write(block, 0, length + 4);
+        out.flush();
+        bytesWritten += length + 4;
+        records = 0;
+        blockSeenAt = -1;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);    /* small negative numbers stay small */
+    }
+
+    /* the width byte, then the first count values with that many bits each */
+    private void putPacked(long[] values, int count) {
+        long all = 0;
+        for (int i = 0; i < count; i++) {
+            all |= values[i];
+        }
+        int width = 64 - Long.numberOfLeadingZeros(all);
+        block[length++] = (byte) width;
+        long bits = 0;
+        int used = 0;       /* bits waiting in the low end of bits */
+        for (int i = 0; i < count; i++) {
+            long v = values[i];
+            bits |= v << used;
+            if (used + width >= 64) {
+                // the value didn't fit completely, write the 64 bits and keep the rest
+                putLong(block, length, bits);
+                length += 8;
+                bits = used == 0 ? 0 : v >>> (64 - used);
+                used = used + width - 64;
+            } else {
+                used += width;
+            }
+        }
+        while (used > 0) {
+            block[length++] = (byte) bits;
+            bits >>>= 8;
+            used -= 8;
+        }
+    }
+
+    private void putUnsigned(long v) {
+        while ((v & ~0x7FL) != 0) {
+            block[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        block[length++] = (byte) v;
+    }
+
+    private static void putInt(byte[] b, int offset, int v) {
+        for (int i = 0; i < 4; i++) {
+            b[offset + i] = (byte) (v >>> (8 * i));
+        }
+    }
+
+    private static void putLong(byte[] b, int offset, long v) {
+        for (int i = 0; i < 8; i++) {
+            b[offset + i] = (byte) (v >>> (8 * i));
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten;
+    }
+}
@@ -18,13 +18,11 @@
 
 package research.mealwatcher;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -68,14 +66,19 @@ import java.time.ZonedDateTime;
 public class Classifier {
     // public static int MAX_SIZE = 72;
     public static int MAX_SIZE = 80;
-    private static final int SAVE_FILE_FORMAT = 0; // 0 for byte data and 1 for csv.
+    private static final int SAVE_FILE_FORMAT = 2; // 0 for byte data, 1 for csv and 2 for compressed byte data (.mwz).
 
     static BufferedWriter fptw; /* for writing live sensor data to file */
     private FileOutputStream fileOutputStream;
-    static BufferedOutputStream bufferedOutputStream;
+    static RecordWriter recordWriter; /* batches the 80 byte records instead of flushing every sample */
+    static BlockEncoder blockEncoder; /* compressed records, decoded back to .data on the phone */
     private BufferedWriter fpte; /* for writing events file */
     private int totalData;
-    private long timeOffset;
+    private final ClockSync clockSync = new ClockSync(); /* sensor clock -> watch time, follows the drift */
+    private final EatingDetector eatingDetector = new EatingDetector();
+    private static final Metrics.Counter samplesWritten = Metrics.counter("watch.samples_written");
+    private long detectorStartTime;     /* timestamp (ms) of the first sample given to the detector */
+    private int detectorSamples;        /* samples given to the detector, which runs at 15 Hz */
     // Accessed in StayAwake.java
     static String fileName;
 
@@ -105,6 +108,10 @@ public class Classifier {
             binFileName = "storage/emulated/0/Android/data/research.mealwatcher/files/" + filePrefix + ".data";
             logFunction_watch.information("Watch","Created binary file with name = " + filePrefix + ".data");
             fileName = filePrefix + ".data";
+        } else if (SAVE_FILE_FORMAT == 2) {
+            binFileName = "storage/emulated/0/Android/data/research.mealwatcher/files/" + filePrefix + ".mwz";
+            logFunction_watch.information("Watch","Created compressed file with name = " + filePrefix + ".mwz");
+            fileName = filePrefix + ".mwz";
         } else {
             csvFileName = "storage/emulated/0/Android/data/research.mealwatcher/files/" + filePrefix + ".csv";
             logFunction_watch.information("Watch","Created CSV file with name = " + filePrefix + ".csv");
@@ -113,7 +120,10 @@ public class Classifier {
         try {
             if(SAVE_FILE_FORMAT == 0) {
                 fileOutputStream = new FileOutputStream(binFileName);
-                bufferedOutputStream = new BufferedOutputStream(fileOutputStream);
+                recordWriter = new RecordWriter(fileOutputStream);
+            } else if (SAVE_FILE_FORMAT == 2) {
+                fileOutputStream = new FileOutputStream(binFileName);
+                blockEncoder = new BlockEncoder(fileOutputStream);
             } else {
                 fptw = new BufferedWriter(new FileWriter(csvFileName));
             }
@@ -129,51 +139,32 @@ public class Classifier {
     }
 
     public void newData(float[] sensor_reading, long timestamp) {
-        //MainActivity_new.writeToLog("Got new data");
-        long timeStampSystem = System.currentTimeMillis();
-        byte[] SavePacket;
-        ByteBuffer Convert;
+        newData(sensor_reading, timestamp, System.currentTimeMillis());
+    }
 
-        SavePacket = new byte[MAX_SIZE];
+    /*
+    timeStampSystem is the watch (unix) time of the sample, back-dated by StayAwake to when it was measured;
+    it is passed in by the SampleWriter thread which writes the samples some milliseconds after the sensor callback.
+     */
+    public void newData(float[] sensor_reading, long timestamp, long timeStampSystem) {
+        //MainActivity_new.writeToLog("Got new data");
 
         timestamp = (timestamp / 1000000); // Converting nanoseconds into milliseconds.
-        // This offset is needed as we are getting timestamp from the device boot time and not the unix standard time.
-        if (totalData == 0) {
-            timeOffset = System.currentTimeMillis() - timestamp;
-        }
-        timestamp += timeOffset;
+        // The sensor timestamp counts from the device boot time and not the unix standard time; the offset
+        // between the two clocks is fitted over the whole recording as they drift apart.
+        timestamp = clockSync.sync(timestamp, timeStampSystem);
 //        System.out.println("timeStamp after adding the offset = " + timestamp);
 
-        LocalDateTime now = LocalDateTime.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
-        String time_debug = now.format(formatter);
-        LocalDateTime localDateTime = LocalDateTime.parse(time_debug, formatter);
-
-        // Convert LocalDateTime to a long (epoch seconds)
-        long epochSeconds = localDateTime.toEpochSecond(java.time.ZoneOffset.UTC);
-
-        int length = 4, offset = 0;
-        // Writing all sensor readings.
-        for(int i=0; i<16; i++) {
-            Convert = (ByteBuffer) ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(sensor_reading[i]).rewind();
-            Convert.get(SavePacket, offset, length);
-            offset = offset + 4;
-        }
-//        System.out.println("offset = " + offset + " length = " + length);
-        // Writing timestamp.
-        Convert = (ByteBuffer) ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(timestamp).rewind();
-        Convert.get(SavePacket, offset, length+4);
-
-        Convert = (ByteBuffer) ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(timeStampSystem).rewind();
-        Convert.get(SavePacket, 72, 8);
-
-        //MainActivity_new.writeToLog("saved the sensor data to SavePacket");
-
         try {
             if (SAVE_FILE_FORMAT == 0) {
-                bufferedOutputStream.write(SavePacket, 0, MAX_SIZE);
-                bufferedOutputStream.flush();
+                // Encodes all sensor readings and both timestamps straight into the write batch;
+                // the batch goes to the file every 64 KB or 2 s, whichever comes first.
+                recordWriter.writeSample(sensor_reading, timestamp, timeStampSystem);
             //    MainActivity_new.writeToLog("byte data written to file");
+            } else if (SAVE_FILE_FORMAT == 2) {
+                // Delta encoded into the current block; the block goes to the file every 200 samples (2 s),
+                // or 2 s after it was started when the samples stop (flushIfDue).
+                blockEncoder.writeRecord(sensor_reading, timestamp, timeStampSystem);
             } else {
                 /*
                 Writing to a text file with comma separated format.
@@ -199,7 +190,61 @@ public class Classifier {
             e.printStackTrace();
         }
 
+        if (totalData == 0) {
+            detectorStartTime = timestamp;
+        }
+        runDetector(sensor_reading, timestamp);
+
         totalData++;
+        samplesWritten.inc();
+    }
+
+    /* called by the SampleWriter thread between samples, see RecordWriter.flushIfDue and BlockEncoder.flushIfDue */
+    public void flushIfDue(long now) {
+        try {
+            if (SAVE_FILE_FORMAT == 0) {
+                recordWriter.flushIfDue(now);
+            } else if (SAVE_FILE_FORMAT == 2) {
+                blockEncoder.flushIfDue(now);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+    The detector expects 15 Hz data, so only every ~66.7 ms sample of the 100 Hz stream is used.
+    The axes are converted from android to our coordinate system (see README for Watch Setup):
+    +x = +y, +y = -x, +z = +z, yaw = gyro z, pitch = -gyro x, roll = gyro y.
+     */
+    private void runDetector(float[] sensor_reading, long timestamp) {
+        if (timestamp - detectorStartTime < detectorSamples * 1000.0 / EatingDetector.SAMPLE_RATE) {
+            return;
+        }
+        detectorSamples++;
+        int result = eatingDetector.newData(sensor_reading[4], -sensor_reading[3], sensor_reading[5],
+                sensor_reading[2], -sensor_reading[0], sensor_reading[1]);
+        if (result == EatingDetector.EATING) {
+            String start = detectorTime(eatingDetector.startIndex());
+            String end = detectorTime(eatingDetector.endIndex());
+            logFunction_watch.information("Classifier", "Eating detected from " + start + " to " + end);
+            try {
+                fpte.write("EATING " + start + " " + end);
+                fpte.newLine();
+                fpte.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (result == EatingDetector.MAX_DATA && eatingDetector.getTotalData() == EatingDetector.MAX_DATA_COUNT) {
+            logFunction_watch.information("Classifier", "Recording for more than 24 hours");
+        }
+    }
+
+    /* converts a 15 Hz detector index into local date/time */
+    private String detectorTime(int index) {
+        long millis = detectorStartTime + index * 1000L / EatingDetector.SAMPLE_RATE;
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault())
+                .format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
     }
 
     public void closeClassifier() throws IOException {
@@ -208,19 +253,23 @@ public class Classifier {
         LocalDateTime now = LocalDateTime.now();
         fpte.write("END " + now.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
         fpte.newLine();
+        logFunction_watch.information("Classifier", "Sensor clock: " + clockSync.statsString());
        // MainActivity_new.writeToLog("Closing the classifier");
         try {
             /* file pointer writing live sensor data to file */
             if(SAVE_FILE_FORMAT == 0) {
-                System.out.println("Closing the buffered output stream");
-                fileOutputStream.flush();
-                bufferedOutputStream.flush();
-
-                fileOutputStream.close();
-                bufferedOutputStream.close();
+                System.out.println("Closing the record writer");
+                // Writes the last partial batch before closing the file.
+                recordWriter.close();
 
-                logFunction_watch.information("File", "Closed the bufferedOutputStream");
+                logFunction_watch.information("File", "Closed the recordWriter, " + recordWriter.getBytesWritten()
+                        + " bytes written in " + recordWriter.getBatchesWritten() + " batches");
                 //System.out.println("Closed the buffered output stream");
+            } else if (SAVE_FILE_FORMAT == 2) {
+                // Writes the last partial block before closing the file.
+                blockEncoder.close();
+                logFunction_watch.information("File", "Closed the blockEncoder, " + blockEncoder.getRecordsWritten()
+                        + " records in " + blockEncoder.getBytesWritten() + " bytes");
             } else {
                 fptw.flush();
                 fptw.close();
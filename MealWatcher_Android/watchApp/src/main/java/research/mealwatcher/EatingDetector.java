@@ -0,0 +1,335 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+/**
+ * Pure Java port of the eating detector of Dong et. al. in c-code/classifier.c.
+ * *
+ * It reads one 15 Hz sensor reading at a time (accel in G, gyro in deg/sec, already in
+ * Yujie's coordinate system), smoothes it, checks for peaks in sum(accel) once a minute,
+ * and upon finding a peak classifies the peak-to-peak period of data.
+ * The memory footprint is fixed: all buffers are allocated once in the constructor and
+ * after each analysis the buffer is shifted to start at the new peak, same as the C code.
+ * *
+ * newData() returns
+ * *	EATING	the period startIndex()...endIndex() was classified as eating
+ * *	MAX_DATA	running for more than 24 hours, the app should close
+ * *	NOTHING	all other paths
+ * *
+ * Places where the C code reads or writes outside its buffers are defined here:
+ * findPeak() returns the left side of the peak if the peak never rises above its first value,
+ * when 1 hour of data is buffered without a peak the whole buffer is analyzed,
+ * and the buffers have one extra minute of room since peaks are only checked once a minute.
+ */
+public class EatingDetector {
+    public static final int NOTHING = 0;
+    public static final int EATING = 1;
+    public static final int MAX_DATA = 2;
+
+    public static final int SAMPLE_RATE = 15;              /* Hz */
+    static final int MAX_DATA_COUNT = 24 * 60 * 60 * 15;   /* 24 hours of 15 Hz data */
+    static final int MAX_SEG = 1 * 60 * 60 * 15;           /* 1 hour of 15 Hz data */
+    static final double SMOOTH_SIGMA = 10.0;               /* units are relative to window size */
+    static final int KERNEL_SIZE = 15;
+    static final int SUM_WINDOW = 900;                     /* 1 minute at 15 Hz */
+    static final int NUM_FEAT = 4;
+    static final double VERY_SMALL = 0.000001;             /* used for testing equality to zero */
+    static final double REG_ROLL_THRESH = 10.0;            /* deg/sec */
+    static final int REAL_TIME_DELAY = 450;                /* 30 sec delay between offline and realtime */
+
+    /* Gaussian naive-Bayes model, [feature][0 = EA, 1 = nonEA] */
+    static final double[][] FEATURE_MEAN = {{13.54, 9.48}, {0.6554, 0.4506}, {0.0409, 0.0457}, {881, 575}};
+    static final double[][] FEATURE_VAR = {{23.63, 65.43}, {0.0182, 0.0770}, {0.0004, 0.0021}, {43902, 57190}};
+
+    private final int maxSeg;
+    private final float[][] rawData = new float[6][KERNEL_SIZE];   /* 1 sec buffer of most recent raw data */
+    private final float[][] smoothedBuffer;                       /* buffer (up to 1 hour) of smoothed data */
+    private final float[] sumAccel;                               /* equal in length to smoothed buffer */
+    private final float[] kernel = new float[KERNEL_SIZE];        /* used for smoothing */
+    private final float denominator;
+    private final double[] features = new double[NUM_FEAT];
+    private final FeatureAccumulator accumulator;                 /* features updated as samples arrive */
+    private float totalAccel;           /* running sum simplifies calculation */
+    private int totalData;              /* counter of all data received */
+    private int totalSmoothedData;      /* counter of data in smoothed buffer */
+    private int bufferStart;            /* offset of current buffer start relative to init (15 Hz indices) */
+    private int startAnalysis;          /* where in current buffer the next analysis starts */
+    private int lastStart, lastEnd;     /* global indices of the last analyzed period */
+
+    public EatingDetector() {
+        this(MAX_SEG);
+    }
+
+    /* maxSeg is only changed by tests, to reach the 1 hour limit with less data */
+    EatingDetector(int maxSeg) {
+        if (maxSeg <= SUM_WINDOW) {
+            throw new IllegalArgumentException("maxSeg must be longer than SUM_WINDOW");
+        }
+        this.maxSeg = maxSeg;
+        // peaks are only checked once a minute, so the buffer may grow up to a minute past maxSeg
+        smoothedBuffer = new float[6][maxSeg + SUM_WINDOW];
+        sumAccel = new float[maxSeg + SUM_WINDOW];
+        accumulator = new FeatureAccumulator(maxSeg + SUM_WINDOW);
+        accumulator.reset(smoothedBuffer, 0, 0);
+
+        /* calculate Gaussian kernel weights */
+        float d = 0.0f;
+        for (int i = 0; i < KERNEL_SIZE; i++) {
+            kernel[KERNEL_SIZE - 1 - i] = (float) Math.pow(Math.E, (0.0 - i * i) / (2.0 * SMOOTH_SIGMA * SMOOTH_SIGMA));
+            d += kernel[KERNEL_SIZE - 1 - i];
+        }
+        denominator = d;
+    }
+
+    /**
+     * Takes one 15 Hz reading. Axes follow the C code: accx, accy, accz in G and
+     * yaw, pitch, roll in deg/sec.
+     */
+    public int newData(float accx, float accy, float accz, float yaw, float pitch, float roll) {
+        /* shift previous 14 sensor readings backward, new reading goes into the last position */
+        for (int a = 0; a < 6; a++) {
+            System.arraycopy(rawData[a], 1, rawData[a], 0, KERNEL_SIZE - 1);
+        }
+        rawData[0][KERNEL_SIZE - 1] = accx;
+        rawData[1][KERNEL_SIZE - 1] = accy;
+        rawData[2][KERNEL_SIZE - 1] = accz;
+        rawData[3][KERNEL_SIZE - 1] = yaw;
+        rawData[4][KERNEL_SIZE - 1] = pitch;
+        rawData[5][KERNEL_SIZE - 1] = roll;
+
+        totalData++;
+        if (totalData >= MAX_DATA_COUNT) {
+            return MAX_DATA;
+        }
+
+        /* smooth data -- first 1 sec does not match desktop but uses very little memory */
+        for (int a = 0; a < 6; a++) {
+            float sum = 0.0f;
+            for (int i = 0; i < KERNEL_SIZE; i++) {
+                sum += (rawData[a][KERNEL_SIZE - 1 - i] * kernel[i] / denominator);
+            }
+            smoothedBuffer[a][totalSmoothedData] = sum;
+        }
+        totalSmoothedData++;
+        accumulator.add(smoothedBuffer, totalSmoothedData - 1);
+
+        /* calculate sum(accel), window centered on datum */
+        if (totalSmoothedData <= SUM_WINDOW) {
+            totalAccel = 0;     /* calculate brute force for first minute */
+            for (int i = 0; i < totalSmoothedData; i++) {
+                totalAccel = (float) (totalAccel + absSum(0, i));
+            }
+            sumAccel[totalSmoothedData - 1] = totalAccel / (float) totalSmoothedData;
+            return NOTHING;     /* less than 1 min data, nothing more to do yet */
+        }
+
+        /* totalAccel keeps running sum, from which we add/subtract */
+        totalAccel = (float) (totalAccel - absSum(0, totalSmoothedData - SUM_WINDOW - 1));
+        totalAccel = (float) (totalAccel + absSum(0, totalSmoothedData - 1));
+        sumAccel[totalSmoothedData - 1] = totalAccel / (float) SUM_WINDOW;
+
+        if (totalData % SUM_WINDOW != 0) {
+            return NOTHING;     /* only test for eating once per minute to save calculations */
+        }
+
+        /* check for peak */
+        int foundPeak = findPeak(sumAccel, totalSmoothedData);
+        if (foundPeak < 0) {
+            if (totalSmoothedData < maxSeg) {
+                return NOTHING;     /* wait for peak or max data to analyze */
+            }
+            foundPeak = totalSmoothedData;  /* 1 hour without a peak, analyze everything */
+        } else {
+            foundPeak = foundPeak - REAL_TIME_DELAY;    /* back up 30 sec to match offline */
+        }
+
+        /* analyze data -- the accumulator has been updated with every sample since startAnalysis */
+        accumulator.features(smoothedBuffer, foundPeak, features);
+        int md = classify(features);
+        lastStart = bufferStart + startAnalysis;
+        lastEnd = bufferStart + foundPeak;
+
+        /* flush buffers keeping data since last detected peak */
+        int dataToKeep = totalSmoothedData - foundPeak;
+        startAnalysis = 0;
+        if (totalSmoothedData - foundPeak < SUM_WINDOW) {   /* check if we have at least 1 min */
+            startAnalysis = SUM_WINDOW - (totalSmoothedData - foundPeak);
+            dataToKeep = SUM_WINDOW;    /* must be minimum of 1 min */
+        }
+        int from = totalSmoothedData - dataToKeep;
+        System.arraycopy(sumAccel, from, sumAccel, 0, dataToKeep);
+        for (int a = 0; a < 6; a++) {
+            System.arraycopy(smoothedBuffer[a], from, smoothedBuffer[a], 0, dataToKeep);
+        }
+        bufferStart += from;
+        totalSmoothedData = dataToKeep;
+        accumulator.reset(smoothedBuffer, startAnalysis, totalSmoothedData);
+
+        return md == 0 ? EATING : NOTHING;
+    }
+
+    /* |x| + |y| + |z| of smoothed sample t starting at axis a, in double like fabs() in C */
+    private double absSum(int a, int t) {
+        return Math.abs((double) smoothedBuffer[a][t]) + Math.abs((double) smoothedBuffer[a + 1][t])
+                + Math.abs((double) smoothedBuffer[a + 2][t]);
+    }
+
+    /* global 15 Hz index (since the detector was created) of the start of the last analyzed period */
+    public int startIndex() {
+        return lastStart;
+    }
+
+    /* global 15 Hz index of the end (peak) of the last analyzed period */
+    public int endIndex() {
+        return lastEnd;
+    }
+
+    /* features of the last analyzed period; the array is overwritten by the next analysis */
+    public double[] lastFeatures() {
+        return features;
+    }
+
+    public int getTotalData() {
+        return totalData;
+    }
+
+    /**
+     * Uses hysteresis to find the first peak in sumAccel[SUM_WINDOW..totalData).
+     * Returns the index of the max value in the peak, or -1 if no peak was found
+     * or the peak hasn't ended yet.
+     */
+    static int findPeak(float[] sumAccel, int totalData) {
+        final float hysteresisRatio = 2.0f;
+        final float t1Min = 0.02f;
+        int t = SUM_WINDOW;
+        if (t >= totalData) {
+            return -1;
+        }
+
+        /* set initial thresholds based upon first value */
+        float t1 = Math.max(sumAccel[t], t1Min);
+        float t2 = hysteresisRatio * t1;
+        /* the signal has to go 2x larger than its previous minimum */
+        while (sumAccel[t] < t2) {
+            if (sumAccel[t] < t1) {     /* if signal goes lower, adjust thresholds down */
+                t1 = Math.max(sumAccel[t], t1Min);
+                t2 = hysteresisRatio * t1;
+            }
+            t++;
+            if (t >= totalData) {
+                return -1;
+            }
+        }
+
+        int tMid = t;   /* left side of peak */
+        float peakMaxValue = sumAccel[t];
+        while (t < totalData && sumAccel[t] > t1) {     /* peak lasts while larger than the minimum */
+            if (sumAccel[t] > peakMaxValue) {
+                tMid = t;
+                peakMaxValue = sumAccel[t];
+                /* readjust lower bound as peak gets higher */
+                t1 = peakMaxValue / hysteresisRatio;
+            }
+            t++;
+        }
+        if (t >= totalData) {
+            return -1;
+        }
+        return tMid;
+    }
+
+    /**
+     * Batch version of the feature calculation, as in the C code (FeatureAccumulator is used
+     * while running, this is kept as the reference).
+     * Calculates the 4 features of smoothed[.][startIndex..endIndex):
+     * mean absolute deviation of roll, regularity of roll, avg sum(accel),
+     * and the ratio of rotational motion to linear motion.
+     */
+    static void calculateFeatures(float[][] smoothed, int startIndex, int endIndex, double[] feature) {
+        int validData = endIndex - startIndex;  /* assume all data is valid (device was on) */
+
+        /* [0] calculate mean absolute deviation of roll */
+        double meanRoll = 0.0;
+        for (int t = startIndex; t < endIndex; t++) {
+            meanRoll += smoothed[5][t];
+        }
+        meanRoll /= (double) validData;
+        feature[0] = 0.0;
+        for (int t = startIndex; t < endIndex; t++) {
+            feature[0] += Math.abs(smoothed[5][t] - meanRoll);
+        }
+        feature[0] /= (double) validData;
+
+        /* [1] calculate regularity of roll */
+        int timeMoving = 0;
+        for (int t = startIndex; t < endIndex; t++) {
+            if (smoothed[5][t] > REG_ROLL_THRESH) {
+                while (t < endIndex && smoothed[5][t] > REG_ROLL_THRESH) {
+                    t++;
+                    timeMoving++;
+                }
+                int stoppedMoving = t;
+                while (t < endIndex && t - stoppedMoving < SAMPLE_RATE * 8) {   /* 8 seconds after stopped moving */
+                    t++;
+                    timeMoving++;
+                }
+            }
+        }
+        feature[1] = (double) timeMoving / (double) validData;
+
+        /* [2] calculate avg sum_accel */
+        feature[2] = 0.0;
+        for (int t = startIndex; t < endIndex; t++) {
+            feature[2] += linear(smoothed, t);
+        }
+        feature[2] /= (double) validData;
+
+        /* [3] calculate ratio of rotational motion to linear motion */
+        int b = 0;
+        feature[3] = 0.0;
+        for (int t = startIndex; t < endIndex; t++) {
+            double linear = linear(smoothed, t);
+            if (linear > VERY_SMALL) {  /* avoid numeric instability */
+                feature[3] += (Math.abs((double) smoothed[3][t]) + Math.abs((double) smoothed[4][t])
+                        + Math.abs((double) smoothed[5][t])) / linear;
+                b++;
+            }
+        }
+        feature[3] /= (double) b;
+    }
+
+    private static double linear(float[][] smoothed, int t) {
+        return Math.abs((double) smoothed[0][t]) + Math.abs((double) smoothed[1][t]) + Math.abs((double) smoothed[2][t]);
+    }
+
+    /* returns 0 if p(EA) > p(non), else 1 */
+    static int classify(double[] features) {
+        double totalEA = 0.5;
+        double totalNon = 1.0 - totalEA;
+        for (int f = 0; f < NUM_FEAT; f++) {
+            totalEA *= gaussian(features[f], FEATURE_MEAN[f][0], FEATURE_VAR[f][0]);
+            totalNon *= gaussian(features[f], FEATURE_MEAN[f][1], FEATURE_VAR[f][1]);
+        }
+        return totalEA > totalNon ? 0 : 1;
+    }
+
+    private static double gaussian(double x, double mean, double var) {
+        return (1.0 / Math.sqrt(2.0 * Math.PI * var)) * Math.pow(Math.E, 0.0 - (x - mean) * (x - mean) / (2.0 * var));
+    }
+}
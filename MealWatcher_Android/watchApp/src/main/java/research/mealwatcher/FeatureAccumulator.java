@@ -0,0 +1,171 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+/**
+ * Online version of EatingDetector.calculateFeatures().
+ * *
+ * Each smoothed sample is added once as it arrives, and running (prefix) sums are kept
+ * for every buffer index since the start of the analysis.  Because the segment end is
+ * 30 sec before the peak (REAL_TIME_DELAY), the features are read for any past end index as
+ * prefix[end] - prefix[start], in the same summation order as the batch code:
+ * *	[0] mean of roll (for the mean absolute deviation)
+ * *	[1] regularity of roll, as the run-length state machine of the C loop
+ * *	[2] avg sum(accel)
+ * *	[3] ratio of rotational motion to linear motion
+ * *
+ * The mean absolute deviation of roll needs the final mean, so it is the one part that still
+ * reads the segment, as a single pass over the roll values.  The other features and the
+ * regularity state are ready in constant time at the peak.
+ */
+public class FeatureAccumulator {
+    private static final int IDLE = 0, RUN = 1, HANG = 2, SKIP = 3;
+    private static final int HANG_SAMPLES = EatingDetector.SAMPLE_RATE * 8;    /* 8 seconds after stopped moving */
+
+    private final double[] rollSum;     /* prefix sums, index t holds the sum of [start, t) */
+    private final double[] accelSum;
+    private final double[] ratioSum;
+    private final int[] ratioCount;
+    private final int[] movingCount;
+    private int start;                  /* buffer index where the analysis starts */
+    private int count;                  /* samples [start, count) have been added */
+
+    /* regularity state, carried from sample to sample */
+    private int state;
+    private int hang;
+
+    public FeatureAccumulator(int capacity) {
+        rollSum = new double[capacity + 1];
+        accelSum = new double[capacity + 1];
+        ratioSum = new double[capacity + 1];
+        ratioCount = new int[capacity + 1];
+        movingCount = new int[capacity + 1];
+    }
+
+    /**
+     * Starts a new analysis at buffer index startIndex, and adds the samples
+     * smoothed[.][startIndex..endIndex) that are already in the buffer.
+     */
+    public void reset(float[][] smoothed, int startIndex, int endIndex) {
+        start = startIndex;
+        count = startIndex;
+        state = IDLE;
+        hang = 0;
+        rollSum[start] = 0.0;
+        accelSum[start] = 0.0;
+        ratioSum[start] = 0.0;
+        ratioCount[start] = 0;
+        movingCount[start] = 0;
+        for (int t = startIndex; t < endIndex; t++) {
+            add(smoothed, t);
+        }
+    }
+
+    /* Adds smoothed sample t, which must be the next sample after the ones already added. */
+    public void add(float[][] smoothed, int t) {
+        if (t != count) {
+            throw new IllegalStateException("expected sample " + count + " but got " + t);
+        }
+        float roll = smoothed[5][t];
+        double linear = Math.abs((double) smoothed[0][t]) + Math.abs((double) smoothed[1][t])
+                + Math.abs((double) smoothed[2][t]);
+
+        rollSum[t + 1] = rollSum[t] + roll;
+        accelSum[t + 1] = accelSum[t] + linear;
+        if (linear > EatingDetector.VERY_SMALL) {   /* avoid numeric instability */
+            ratioSum[t + 1] = ratioSum[t] + (Math.abs((double) smoothed[3][t]) + Math.abs((double) smoothed[4][t])
+                    + Math.abs((double) roll)) / linear;
+            ratioCount[t + 1] = ratioCount[t] + 1;
+        } else {
+            ratioSum[t + 1] = ratioSum[t];
+            ratioCount[t + 1] = ratioCount[t];
+        }
+        movingCount[t + 1] = movingCount[t] + (moving(roll) ? 1 : 0);
+        count = t + 1;
+    }
+
+    /*
+    Same as the regularity loop in the C code, one sample at a time: a run above the threshold
+    and the 8 sec after it count as moving, and the sample right after those 8 sec is skipped.
+     */
+    private boolean moving(float roll) {
+        boolean above = roll > EatingDetector.REG_ROLL_THRESH;
+        switch (state) {
+            case IDLE:
+                if (above) {
+                    state = RUN;
+                }
+                return above;
+            case RUN:
+                if (!above) {
+                    hang = 1;
+                    state = hang < HANG_SAMPLES ? HANG : SKIP;
+                }
+                return true;
+            case HANG:
+                hang++;
+                if (hang >= HANG_SAMPLES) {
+                    state = SKIP;
+                }
+                return true;
+            default:    /* SKIP */
+                state = IDLE;
+                return false;
+        }
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Features of smoothed[.][start..endIndex), endIndex at most getCount().
+     * Matches EatingDetector.calculateFeatures() for the same range.
+     */
+    public void features(float[][] smoothed, int endIndex, double[] feature) {
+        if (endIndex <= start || endIndex > count) {
+            // empty (or not yet added) range; keep the batch code's NaN/-0 results
+            EatingDetector.calculateFeatures(smoothed, start, endIndex, feature);
+            return;
+        }
+        double validData = endIndex - start;
+
+        /* [0] mean absolute deviation of roll, one pass around the running mean */
+        double meanRoll = rollSum[endIndex] / validData;
+        double deviation = 0.0;
+        float[] roll = smoothed[5];
+        for (int t = start; t < endIndex; t++) {
+            deviation += Math.abs(roll[t] - meanRoll);
+        }
+        feature[0] = deviation / validData;
+
+        /* [1] regularity of roll */
+        feature[1] = (double) movingCount[endIndex] / validData;
+
+        /* [2] avg sum_accel */
+        feature[2] = accelSum[endIndex] / validData;
+
+        /* [3] ratio of rotational motion to linear motion */
+        feature[3] = ratioSum[endIndex] / (double) ratioCount[endIndex];
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Watch side of the file transfer to the phone over a ChannelClient channel (the phone side is
+ * FileTransferReceiver).  The channel gives one stream each way and all pending files go over it:
+ * *	watch	MANIFEST chunkSize ackEvery count, then name size crc32 of every file
+ * *	phone	HAVE count, then per file the offset to resume at, or -1 if the phone already has the file
+ * *	watch	CHUNK file offset length crc32 data ...		END file (once all its chunks are sent)
+ * *	phone	ACK file offset		(everything before offset is on the phone's storage)
+ * *	phone	NACK file offset	(bad chunk, send again from offset)
+ * *	phone	FAILED file		(whole-file CRC32 didn't match, the file is left for the next transfer)
+ * *	phone	DONE count files...	(files complete, the watch can delete them)
+ * *	watch	BYE
+ * *
+ * Files are sent one after the other without waiting for the phone in between: the only limit is
+ * the window, the bytes sent but not acknowledged yet over all files.  The phone acknowledges in
+ * batches (every ackEvery chunks and whenever it has caught up), so a backlog of many sessions
+ * costs one round trip for the manifest instead of one per file.  An interrupted transfer continues
+ * at the offsets in the phone's HAVE answer.  The size and CRC32 in the manifest are read together,
+ * so they cover the same bytes even when a file (the log file) is still growing; a file that changed
+ * anyway is given up for this transfer and listed again, with its new CRC32, in the next manifest.
+ * The last acknowledged offset of each file is kept in stateFile, to see in the log how much of a
+ * file the phone had lost when it asks for less than it acknowledged before.
+ */
+public class FileTransferSender {
+    public static final String CHANNEL_PATH = "/recording_transfer";
+    static final byte MANIFEST = 'M', CHUNK = 'C', END = 'E', BYE = 'B';
+    static final byte HAVE = 'H', ACK = 'A', NACK = 'N', DONE = 'D', FAILED = 'F';
+    public static final int DEFAULT_CHUNK_SIZE = 32 * 1024;
+    public static final int DEFAULT_WINDOW = 8;     /* chunks sent ahead of the acknowledgements */
+    private static final Metrics.Counter bytesSentMetric = Metrics.counter("watch.transfer_bytes_sent");
+    private static final Metrics.Counter bytesResentMetric = Metrics.counter("watch.transfer_bytes_resent");
+
+    public interface Listener {
+        /* the phone has the whole file; alreadyOnPhone if it had it before this transfer */
+        void onFileDone(File file, boolean alreadyOnPhone);
+    }
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final File stateFile;
+    private final Properties state = new Properties();
+    private final int chunkSize;
+    private final int window;
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk;
+
+    /* statistics */
+    private long bytesSent, bytesResent, bytesSkipped, bytesLostOnPhone;
+    private int filesSent, filesSkipped, filesFailed;
+
+    public FileTransferSender(InputStream fromPhone, OutputStream toPhone, File stateFile) throws IOException {
+        this(fromPhone, toPhone, stateFile, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW);
+    }
+
+    public FileTransferSender(InputStream fromPhone, OutputStream toPhone, File stateFile,
+                              int chunkSize, int window) throws IOException {
+        if (chunkSize <= 0 || window < 2) {
+            throw new IllegalArgumentException("chunkSize must be > 0 and window at least 2");
+        }
+        this.in = new DataInputStream(new BufferedInputStream(fromPhone));
+        this.out = new DataOutputStream(new BufferedOutputStream(toPhone, 64 * 1024));
+        this.stateFile = stateFile;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        chunk = new byte[chunkSize];
+        if (stateFile.exists()) {
+            try (InputStream stateIn = new FileInputStream(stateFile)) {
+                state.load(stateIn);
+            }
+        }
+    }
+
+    /**
+     * Sends the files and returns once the phone has all of them, then tells the phone there is
+     * nothing more.  listener is called for each file as soon as the phone has it.
+     */
+    public void sendAll(List<File> files, Listener listener) throws IOException {
+        int count = files.size();
+        long[] size = new long[count];
+        out.writeByte(MANIFEST);
+        out.writeInt(chunkSize);
+        out.writeInt(window / 2);   /* ack every half window, so the window never stalls */
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            File file = files.get(i);
+            size[i] = file.length();
+            out.writeUTF(file.getName());
+            out.writeLong(size[i]);
+            out.writeInt(checksum(file, size[i]));
+        }
+        out.flush();
+
+        expect(HAVE);
+        if (in.readInt() != count) {
+            throw new IOException("Phone answered for a different number of files");
+        }
+        long[] acked = new long[count];     /* the phone has stored everything before acked */
+        long[] next = new long[count];      /* next byte to send */
+        boolean[] ended = new boolean[count];
+        boolean[] done = new boolean[count];
+        int remaining = count;
+        for (int i = 0; i < count; i++) {
+            long offset = in.readLong();
+            if (offset < -1 || offset > size[i]) {
+                throw new IOException("Phone asked to resume " + files.get(i).getName() + " at " + offset);
+            }
+            if (offset == -1) {
+                done[i] = true;
+                remaining--;
+                filesSkipped++;
+                bytesSkipped += size[i];
+                clearOffset(files.get(i).getName());
+                listener.onFileDone(files.get(i), true);
+                continue;
+            }
+            long saved = savedOffset(files.get(i).getName(), size[i]);
+            if (offset < saved) {
+                bytesLostOnPhone += saved - offset;
+            }
+            bytesSkipped += offset;
+            acked[i] = offset;
+            next[i] = offset;
+        }
+
+        RandomAccessFile raf = null;
+        int open = -1;      /* file open in raf */
+        try {
+            while (remaining > 0) {
+                int i = nextToSend(next, ended, done, size);
+                if (i >= 0 && inFlight(next, acked, done) < (long) window * chunkSize) {
+                    if (next[i] < size[i]) {
+                        if (open != i) {
+                            if (raf != null) {
+                                raf.close();
+                            }
+                            raf = new RandomAccessFile(files.get(i), "r");
+                            open = i;
+                        }
+                        int length = (int) Math.min(chunkSize, size[i] - next[i]);
+                        raf.seek(next[i]);
+                        raf.readFully(chunk, 0, length);
+                        crc.reset();
+                        crc.update(chunk, 0, length);
+                        out.writeByte(CHUNK);
+                        out.writeInt(i);
+                        out.writeLong(next[i]);
+                        out.writeInt(length);
+                        out.writeInt((int) crc.getValue());
+                        out.write(chunk, 0, length);
+                        next[i] += length;
+                        bytesSent += length;
+                        bytesSentMetric.add(length);
+                    } else {
+                        out.writeByte(END);
+                        out.writeInt(i);
+                        ended[i] = true;
+                    }
+                    continue;
+                }
+
+                // window is full or everything is sent, wait for the phone
+                out.flush();
+                byte type = in.readByte();
+                if (type == ACK) {
+                    i = index(in.readInt(), count);
+                    long ack = in.readLong();
+                    if (!done[i] && ack > acked[i] && ack <= next[i]) {
+                        acked[i] = ack;
+                        saveOffset(files.get(i).getName(), size[i], ack);
+                    }
+                } else if (type == NACK) {
+                    i = index(in.readInt(), count);
+                    long resend = in.readLong();
+                    if (resend < 0 || resend > size[i]) {
+                        throw new IOException("Phone asked to resend " + files.get(i).getName() + " from " + resend);
+                    }
+                    if (!done[i] && resend < next[i]) {
+                        bytesResent += next[i] - resend;
+                        bytesResentMetric.add(next[i] - resend);
+                        next[i] = resend;
+                        acked[i] = Math.min(acked[i], resend);  /* the phone threw away a bad file */
+                        ended[i] = false;
+                    }
+                } else if (type == FAILED) {
+                    i = index(in.readInt(), count);
+                    if (!done[i]) {
+                        done[i] = true;     /* not deleted: it goes into the next manifest */
+                        remaining--;
+                        filesFailed++;
+                        clearOffset(files.get(i).getName());
+                    }
+                } else if (type == DONE) {
+                    int n = in.readInt();
+                    for (int k = 0; k < n; k++) {
+                        i = index(in.readInt(), count);
+                        if (!done[i]) {
+                            done[i] = true;
+                            remaining--;
+                            filesSent++;
+                            clearOffset(files.get(i).getName());
+                            listener.onFileDone(files.get(i), false);
+                        }
+                    }
+                } else {
+                    throw new IOException("Unexpected message " + type + " from the phone");
+                }
+            }
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+        out.writeByte(BYE);
+        out.flush();
+    }
+
+    /* the first file that still has chunks or its END to send, -1 if none */
+    private static int nextToSend(long[] next, boolean[] ended, boolean[] done, long[] size) {
+        for (int i = 0; i < next.length; i++) {
+            if (!done[i] && (next[i] < size[i] || !ended[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* bytes sent but not acknowledged, over all files */
+    private static long inFlight(long[] next, long[] acked, boolean[] done) {
+        long total = 0;
+        for (int i = 0; i < next.length; i++) {
+            if (!done[i]) {
+                total += next[i] - acked[i];
+            }
+        }
+        return total;
+    }
+
+    private static int index(int i, int count) throws IOException {
+        if (i < 0 || i >= count) {
+            throw new IOException("Phone answered for file " + i + " of " + count);
+        }
+        return i;
+    }
+
+    /* CRC32 of the first size bytes of file, what is sent of it even if it grows in the meantime */
+    static int checksum(File file, long size) throws IOException {
+        CRC32 whole = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream fileIn = new FileInputStream(file)) {
+            long left = size;
+            while (left > 0) {
+                int n = fileIn.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (n < 0) {
+                    throw new IOException(file.getName() + " is shorter than " + size + " bytes");
+                }
+                whole.update(buffer, 0, n);
+                left -= n;
+            }
+        }
+        return (int) whole.getValue();
+    }
+
+    private void expect(byte type) throws IOException {
+        byte got = in.readByte();
+        if (got != type) {
+            throw new IOException("Expected message " + type + " from the phone but got " + got);
+        }
+    }
+    private long savedOffset(String name, long size) {
+        String value = state.getProperty(name);
+        if (value == null) {
+            return 0;
+        }
+        String[] parts = value.split(" ");
+        try {
+            return Long.parseLong(parts[0]) == size ? Long.parseLong(parts[1]) : 0;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+
+    private void saveOffset(String name, long size, long offset) throws IOException {
+        state.setProperty(name, size + " " + offset);
+        saveState();
+    }
+
+    private void clearOffset(String name) throws IOException {
+        if (state.remove(name) != null) {
+            saveState();
+        }
+    }
+
+    /* written to a temporary file and renamed, so a crash never leaves half a state file */
+    private void saveState() throws IOException {
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (OutputStream stateOut = new FileOutputStream(tmp)) {
+            state.store(stateOut, "acknowledged offsets of files being sent to the phone");
+        }
+        if (!tmp.renameTo(stateFile)) {
+            throw new IOException("Can't write " + stateFile);
+        }
+    }
+
+    public String statsString() {
+        return "files=" + filesSent + " alreadyOnPhone=" + filesSkipped + " failed=" + filesFailed + " sent=" + bytesSent
+                + " resent=" + bytesResent + " skipped=" + bytesSkipped + " lostOnPhone=" + bytesLostOnPhone;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesResent() {
+        return bytesResent;
+    }
+
+    public long getBytesSkipped() {
+        return bytesSkipped;
+    }
+
+    public int getFilesFailed() {
+        return filesFailed;
+    }
+}
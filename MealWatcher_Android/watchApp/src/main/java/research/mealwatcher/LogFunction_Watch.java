@@ -24,14 +24,11 @@ import android.content.Context;
 import android.os.Environment;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 
 public class LogFunction_Watch {
     public File logFile;
-    static FileOutputStream fos;
+    static final AsyncLog log = new AsyncLog();
     public String logFileName;
 
     public static Context applicationContext;
@@ -54,55 +51,28 @@ public class LogFunction_Watch {
         this.applicationContext = applicationContext;
     }
 
+    /* the lines are written by a background thread (see AsyncLog), these calls only queue them */
     public void information(String sourceLevels, String content){
-
-        LocalDateTime now = LocalDateTime.now();
-        String time = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss-SSS"));
-        String text = time + "," + "I" + "," + sourceLevels + "," + content;
-        try {
-            fos.write(text.getBytes());
-            fos.write("\n".getBytes());
-            fos.flush();
-        } catch (Exception exception) {
-            exception.printStackTrace();
-        }
-
+        log.log(AsyncLog.INFO, sourceLevels, content);
     }
 
     public void error(String sourceLevels, String content){
-
-        LocalDateTime now = LocalDateTime.now();
-        String time = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss-SSS"));
-        String text = time + "," + "E" + "," + sourceLevels + "," + content;
-        try {
-            fos.write(text.getBytes());
-            fos.write("\n".getBytes());
-            fos.flush();
-        } catch (Exception exception) {
-            exception.printStackTrace();
-        }
-
+        log.log(AsyncLog.ERROR, sourceLevels, content);
     }
-    public void exception(String sourceLevels, String content){
 
-        LocalDateTime now = LocalDateTime.now();
-        String time = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss-SSS"));
-        String text = time + "," + "D" + "," + sourceLevels + "," + content;
-        try {
-            fos.write(text.getBytes());
-            fos.write("\n".getBytes());
-            fos.flush();
-        } catch (Exception exception) {
-            exception.printStackTrace();
-        }
+    public void exception(String sourceLevels, String content){
+        log.log(AsyncLog.DEBUG, sourceLevels, content);
+    }
 
+    /* messages below level (AsyncLog.DEBUG, INFO or ERROR) are not logged */
+    public static void setMinLevel(char level){
+        log.setMinLevel(level);
     }
 
 
     public void openFile(){
         try {
-            fos = new FileOutputStream(logFile, true);
-            fos.flush(); // Ensuring data is written out immediately
+            log.open(logFile);
         } catch (Exception exception) {
             exception.printStackTrace();
             error("File", "Output stream for log file is not opened");
@@ -111,7 +81,7 @@ public class LogFunction_Watch {
     }
     public void closeFile(){
         try {
-            fos.close();
+            log.close();    // writes what is still queued first
         } catch (IOException e) {
             e.printStackTrace();
 
@@ -147,7 +117,7 @@ public class LogFunction_Watch {
             }*/
 
 
-            if(files[i].getName().endsWith(".data")){
+            if(files[i].getName().endsWith(".data") || files[i].getName().endsWith(".mwz")){
                 information("Watch","Named of the file failed to upload: "+ files[i].getName());
                 //System.out.println("Named of the file failed to upload: "+ files[i].getName());
                 filesFailedUpload++ ; // skip this file
@@ -437,6 +437,8 @@ public class MainActivity_new extends AppCompatActivity implements DataClient.On
         logFile = new File(applicationContext.getExternalFilesDir(null), logFileName);
         logFunction_watch.setLogFile(logFile);
         logFunction_watch.openFile();
+        Metrics.gauge("watch.files_not_sent", () -> filesFailedUpload);
+        Metrics.startReporting(Metrics.DEFAULT_PERIOD_MS, line -> logFunction_watch.information("Metrics", line));
         String versionName = BuildConfig.VERSION_NAME;
         logFunction_watch.information("Watch", "Version number of the watch app: " + versionName);
         logFunction_watch.information("Watch", "Build version of the watch: " + Build.VERSION.SDK_INT);
@@ -796,15 +798,17 @@ public class MainActivity_new extends AppCompatActivity implements DataClient.On
                 }
                 if (item.getUri().getPath().compareTo("/another_recording_file") == 0) {
                     // value will be of the form: "fileNumber prevFileName" i.e., "14 File_15".
+                    // "14 File_15 failed" if the phone's copy didn't match, then the file is kept for the next upload.
                     String value = dataMap.getString("send");
 
                     String prevFileName = value.split(" ")[1];
+                    boolean prevFileStored = !value.endsWith(" failed");
                     System.out.println("Prev file sent successfully = " + prevFileName);
                     File prevFile = new File(getExternalFilesDir(null) + "/" + prevFileName);
 
                     logFunction_watch.information("Mobile","Response from the phone: 'phone app received a file: '" + prevFileName);
 
-                    if (prevFile.exists()) {
+                    if (prevFile.exists() && prevFileStored) {
                         //System.out.println("Prev file exists = " + prevFileName);
                         if (!prevFileName.endsWith(".txt")) {
                             if (prevFile.delete()) {
@@ -0,0 +1,163 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Group-commit writer for the fixed size records of the .data files.
+ * *
+ * Records are collected in one preallocated buffer and written to the file as a
+ * single batch when either
+ * *	(1) the buffer cannot hold another record (size threshold), or
+ * *	(2) flushIntervalMs has passed since the last write to the file (time threshold).
+ * The time threshold is checked on every record and by flushIfDue, which the writing thread calls
+ * from its timer so records don't wait for the next one when the samples stop coming.
+ * Whatever is left is written on flush() and close().
+ * *
+ * If the app crashes, at most one batch is lost: min(batchBytes, flushIntervalMs of data).
+ * With the defaults (64 KB, 2 s) and 80 byte records at 100 Hz the time threshold is reached
+ * first, so a crash loses at most ~2 seconds (~200 samples) of data.
+ * *
+ * Not thread-safe; all calls are expected from the thread that produces the records.
+ */
+public class RecordWriter {
+    public static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 2000;
+
+    private final OutputStream out;
+    private final int recordSize;
+    private final long flushIntervalMs;
+    private final byte[] batch;
+    private final ByteBuffer batchBuffer;
+    private int batchLength;        /* bytes currently waiting in the batch */
+    private long lastFlushTime;     /* -1 until the first record arrives */
+    private long bytesWritten;      /* bytes handed to the output stream */
+    private long batchesWritten;
+    private boolean closed;
+
+    public RecordWriter(OutputStream out) {
+        this(out, SampleEncoder.RECORD_SIZE, DEFAULT_BATCH_BYTES, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    public RecordWriter(OutputStream out, int recordSize, int batchBytes, long flushIntervalMs) {
+        if (recordSize <= 0 || batchBytes < recordSize) {
+            throw new IllegalArgumentException("batchBytes must hold at least one record");
+        }
+        this.out = out;
+        this.recordSize = recordSize;
+        this.flushIntervalMs = flushIntervalMs;
+        // keep batches aligned to whole records
+        batch = new byte[(batchBytes / recordSize) * recordSize];
+        batchBuffer = ByteBuffer.wrap(batch).order(ByteOrder.LITTLE_ENDIAN);
+        batchLength = 0;
+        lastFlushTime = -1;
+    }
+
+    /**
+     * Encodes a watch sample straight into the batch (no intermediate copy).
+     * timeStampSystem doubles as the clock for the time threshold.
+     */
+    public void writeSample(float[] sensor_reading, long timestamp, long timeStampSystem) throws IOException {
+        reserve(timeStampSystem);
+        SampleEncoder.encode(batchBuffer, batchLength, sensor_reading, timestamp, timeStampSystem);
+        commit(timeStampSystem);
+    }
+
+    /**
+     * Appends one already encoded record of recordSize bytes.
+     */
+    public void writeRecord(byte[] record, int offset, long now) throws IOException {
+        reserve(now);
+        System.arraycopy(record, offset, batch, batchLength, recordSize);
+        commit(now);
+    }
+
+    private void reserve(long now) throws IOException {
+        if (closed) {
+            throw new IOException("RecordWriter is closed");
+        }
+        if (lastFlushTime < 0) {
+            lastFlushTime = now;
+        }
+        if (batchLength + recordSize > batch.length) {
+            writeBatch(now);
+        }
+    }
+
+    private void commit(long now) throws IOException {
+        batchLength += recordSize;
+        if (batchLength + recordSize > batch.length || now - lastFlushTime >= flushIntervalMs) {
+            writeBatch(now);
+        }
+    }
+
+    private void writeBatch(long now) throws IOException {
+        if (batchLength > 0) {
+            out.write(batch, 0, batchLength);
+            out.flush();
+            bytesWritten += batchLength;
+            batchesWritten++;
+            batchLength = 0;
+        }
+        lastFlushTime = now;
+    }
+
+    /* Writes the pending records if flushIntervalMs has passed since the last write, on the writing thread. */
+    public void flushIfDue(long now) throws IOException {
+        if (!closed && batchLength > 0 && now - lastFlushTime >= flushIntervalMs) {
+            writeBatch(now);
+        }
+    }
+
+    /* Writes any pending records to the file. */
+    public void flush() throws IOException {
+        if (!closed) {
+            writeBatch(System.currentTimeMillis());
+        }
+    }
+
+    /* Writes any pending records and closes the underlying stream. */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    public int getPendingBytes() {
+        return batchLength;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten;
+    }
+}
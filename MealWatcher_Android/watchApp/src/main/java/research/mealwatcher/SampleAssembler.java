@@ -0,0 +1,301 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+/**
+ * Builds the 16 channel samples from the separate sensor event streams by resampling
+ * every stream onto one fixed time grid (100 Hz by default).
+ * *
+ * Every stream keeps a short history of its events.  For each grid time t, each channel is
+ * linearly interpolated between the events of its stream just before and just after t
+ * (the quaternion is interpolated and normalized again).  A grid sample is only built once
+ * every stream has delivered an event at or after t, so it works the same whether events arrive
+ * one at a time or in batches from the sensor hub FIFO, in any order between sensors.
+ * *
+ * Grid samples are skipped (and counted) when
+ * *	a stream has a gap longer than maxGapNs around t, or
+ * *	a stream has stopped: some other stream is more than maxWaitNs ahead of t.
+ * *
+ * At the end of a recording drain() builds the grid samples that were still waiting for a stream.
+ * *
+ * Per stream the intervals between events are tracked (mean, jitter = standard deviation,
+ * max, and gaps) so the capture quality can be checked in the session log.
+ * Everything is preallocated; the output array passed to the sink is reused.
+ */
+public class SampleAssembler {
+    public static final int GYRO = 0;
+    public static final int ACCEL = 1;
+    public static final int MAG = 2;
+    public static final int POSE = 3;
+    public static final int LINEAR_ACCEL = 4;
+    private static final int NUM_STREAMS = 5;
+    private static final String[] NAME = {"gyro", "accel", "mag", "pose", "linear"};
+    /* position of each stream in sensor_reading, see SampleEncoder */
+    private static final int[] OFFSET = {0, 3, 6, 9, 13};
+    private static final int[] COUNT = {3, 3, 3, 4, 3};
+
+    public interface SampleSink {
+        void onSample(float[] sensor_reading, long timestamp);
+    }
+
+    private final int capacity;
+    private final long periodNs;
+    private final long maxGapNs;
+    private final long maxWaitNs;
+    private final SampleSink sink;
+    private final long[][] timestamps;
+    private final float[][] values;
+    private final int[] head = new int[NUM_STREAMS];    /* oldest event */
+    private final int[] size = new int[NUM_STREAMS];
+    private final float[] sample = new float[SampleEncoder.NUM_CHANNELS];
+    private long nextGrid = -1;     /* next grid time to build, -1 until every stream has started */
+    private long latest;            /* newest event time over all streams */
+
+    /* statistics */
+    private final long[] lastEvent = new long[NUM_STREAMS];
+    private final long[] events = new long[NUM_STREAMS];
+    private final double[] sumInterval = new double[NUM_STREAMS];     /* ms */
+    private final double[] sumInterval2 = new double[NUM_STREAMS];    /* ms^2 */
+    private final long[] maxInterval = new long[NUM_STREAMS];         /* ns */
+    private final long[] gaps = new long[NUM_STREAMS];
+    private long assembled, skipped, overflowed;
+
+    /**
+     * periodNs is the grid spacing (10 ms for 100 Hz), maxGapNs the longest interval between two events
+     * that is interpolated over, and maxWaitNs how far another stream may get ahead of a stalled stream
+     * before grid samples are given up (has to be longer than the batch latency in batched capture).
+     */
+    public SampleAssembler(int capacity, long periodNs, long maxGapNs, long maxWaitNs, SampleSink sink) {
+        this.capacity = capacity;
+        this.periodNs = periodNs;
+        this.maxGapNs = maxGapNs;
+        this.maxWaitNs = maxWaitNs;
+        this.sink = sink;
+        timestamps = new long[NUM_STREAMS][capacity];
+        values = new float[NUM_STREAMS][];
+        for (int s = 0; s < NUM_STREAMS; s++) {
+            values[s] = new float[capacity * COUNT[s]];
+        }
+    }
+
+    /**
+     * Adds one sensor event; the first COUNT values are multiplied by scale (unit conversion).
+     * Events of one stream must come in timestamp order, which is how the sensor hub delivers them.
+     */
+    public void onEvent(int stream, long timestamp, float[] eventValues, double scale) {
+        if (events[stream] > 0) {
+            if (timestamp <= lastEvent[stream]) {
+                return;     /* duplicate or out of order, can't interpolate through it */
+            }
+            long interval = timestamp - lastEvent[stream];
+            double ms = interval / 1000000.0;
+            sumInterval[stream] += ms;
+            sumInterval2[stream] += ms * ms;
+            if (interval > maxInterval[stream]) {
+                maxInterval[stream] = interval;
+            }
+            if (interval > maxGapNs) {
+                gaps[stream]++;
+            }
+        }
+        events[stream]++;
+        lastEvent[stream] = timestamp;
+
+        if (size[stream] == capacity) {
+            // history full, drop the oldest event
+            head[stream] = (head[stream] + 1) % capacity;
+            size[stream]--;
+            overflowed++;
+        }
+        int slot = (head[stream] + size[stream]) % capacity;
+        timestamps[stream][slot] = timestamp;
+        for (int i = 0; i < COUNT[stream]; i++) {
+            values[stream][slot * COUNT[stream] + i] = (float) (eventValues[i] * scale);
+        }
+        size[stream]++;
+        if (timestamp > latest) {
+            latest = timestamp;
+        }
+        resample();
+    }
+
+    private void resample() {
+        if (nextGrid < 0) {
+            // start the grid once every stream has an event, on a multiple of the period
+            long start = 0;
+            for (int s = 0; s < NUM_STREAMS; s++) {
+                if (size[s] == 0) {
+                    return;
+                }
+                start = Math.max(start, timestamps[s][head[s]]);
+            }
+            nextGrid = (start + periodNs - 1) / periodNs * periodNs;
+        }
+
+        while (true) {
+            long t = nextGrid;
+            for (int s = 0; s < NUM_STREAMS; s++) {
+                if (newest(s) < t && latest - t <= maxWaitNs) {
+                    return;     /* wait for this stream to get past t */
+                }
+            }
+            if (interpolate(t, false)) {
+                assembled++;
+                sink.onSample(sample, t);
+            } else {
+                skipped++;
+            }
+            nextGrid += periodNs;
+        }
+    }
+
+    /**
+     * Builds the grid samples up to the newest event that were waiting for a slower stream, once no
+     * more events will come (the sensors are flushed and unregistered).  A stream that ended before t
+     * holds its last value if that is at most maxGapNs old, otherwise the sample is skipped.
+     */
+    public void drain() {
+        if (nextGrid < 0) {
+            return;
+        }
+        for (; nextGrid <= latest; nextGrid += periodNs) {
+            if (interpolate(nextGrid, true)) {
+                assembled++;
+                sink.onSample(sample, nextGrid);
+            } else {
+                skipped++;
+            }
+        }
+    }
+
+    /*
+    fills sample with every stream interpolated at time t; false if some stream has no data around t.
+    holdLast: a stream without an event after t keeps its last value (only when draining).
+     */
+    private boolean interpolate(long t, boolean holdLast) {
+        boolean complete = true;
+        for (int s = 0; s < NUM_STREAMS; s++) {
+            // keep the latest event at or before t as the oldest one in the history
+            while (size[s] > 1 && timestamps[s][(head[s] + 1) % capacity] <= t) {
+                head[s] = (head[s] + 1) % capacity;
+                size[s]--;
+            }
+            int i0 = head[s];
+            long t0 = timestamps[s][i0];
+            if (t0 > t) {
+                complete = false;   /* no event before t */
+                continue;
+            }
+            if (t0 == t) {
+                System.arraycopy(values[s], i0 * COUNT[s], sample, OFFSET[s], COUNT[s]);
+                continue;
+            }
+            if (size[s] < 2) {
+                if (holdLast && t - t0 <= maxGapNs) {
+                    System.arraycopy(values[s], i0 * COUNT[s], sample, OFFSET[s], COUNT[s]);
+                } else {
+                    complete = false;   /* stream stopped */
+                }
+                continue;
+            }
+            int i1 = (i0 + 1) % capacity;
+            long t1 = timestamps[s][i1];
+            if (t1 - t0 > maxGapNs) {
+                complete = false;   /* don't interpolate over a gap */
+                continue;
+            }
+            float frac = (float) ((double) (t - t0) / (double) (t1 - t0));
+            if (s == POSE) {
+                interpolateQuaternion(values[s], i0 * 4, i1 * 4, frac);
+            } else {
+                for (int c = 0; c < COUNT[s]; c++) {
+                    float v0 = values[s][i0 * COUNT[s] + c];
+                    float v1 = values[s][i1 * COUNT[s] + c];
+                    sample[OFFSET[s] + c] = v0 + (v1 - v0) * frac;
+                }
+            }
+        }
+        return complete;
+    }
+
+    /* normalized linear interpolation, taking the shorter way (q and -q are the same rotation) */
+    private void interpolateQuaternion(float[] q, int a, int b, float frac) {
+        float dot = q[a] * q[b] + q[a + 1] * q[b + 1] + q[a + 2] * q[b + 2] + q[a + 3] * q[b + 3];
+        float sign = dot < 0 ? -1.0f : 1.0f;
+        float norm = 0.0f;
+        for (int c = 0; c < 4; c++) {
+            float v = q[a + c] + (sign * q[b + c] - q[a + c]) * frac;
+            sample[OFFSET[POSE] + c] = v;
+            norm += v * v;
+        }
+        if (norm > 0.0f) {
+            norm = (float) Math.sqrt(norm);
+            for (int c = 0; c < 4; c++) {
+                sample[OFFSET[POSE] + c] /= norm;
+            }
+        }
+    }
+
+    private long newest(int stream) {
+        return size[stream] == 0 ? Long.MIN_VALUE : timestamps[stream][(head[stream] + size[stream] - 1) % capacity];
+    }
+
+    public long getAssembled() {
+        return assembled;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getOverflowed() {
+        return overflowed;
+    }
+
+    /* mean interval between events of the stream, in ms */
+    public double meanInterval(int stream) {
+        return events[stream] > 1 ? sumInterval[stream] / (events[stream] - 1) : 0.0;
+    }
+
+    /* standard deviation of the interval between events of the stream, in ms */
+    public double jitter(int stream) {
+        if (events[stream] < 3) {
+            return 0.0;
+        }
+        double mean = meanInterval(stream);
+        double variance = sumInterval2[stream] / (events[stream] - 1) - mean * mean;
+        return Math.sqrt(Math.max(variance, 0.0));
+    }
+
+    public long getGaps(int stream) {
+        return gaps[stream];
+    }
+
+    public String statsString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("grid=").append(1000000000L / periodNs).append("Hz samples=").append(assembled)
+                .append(" skipped=").append(skipped).append(" overflowed=").append(overflowed);
+        for (int s = 0; s < NUM_STREAMS; s++) {
+            sb.append("; ").append(NAME[s]).append(" events=").append(events[s])
+                    .append(String.format(" mean=%.2fms jitter=%.2fms max=%.1fms gaps=%d",
+                            meanInterval(s), jitter(s), maxInterval[s] / 1000000.0, gaps[s]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes one watch sensor sample into the 80 byte record stored in the .data files.
+ * *
+ * Record layout (all values little-endian):
+ * *	bytes 0-63	16 floats (gyro, accel, magneto, quaternion, linear accel)
+ * *	bytes 64-71	sensor timestamp in ms (unix time, offset applied)
+ * *	bytes 72-79	System.currentTimeMillis() when the sample was written
+ * *
+ * The encoder keeps a single buffer which is reused for every sample, so
+ * encoding a sample at 100 Hz does not create any garbage on the watch.
+ */
+public class SampleEncoder {
+    public static final int NUM_CHANNELS = 16;
+    public static final int RECORD_SIZE = 80;
+    public static final int TIMESTAMP_OFFSET = NUM_CHANNELS * 4;    /* 64 */
+    public static final int SYSTEM_TIME_OFFSET = TIMESTAMP_OFFSET + 8;    /* 72 */
+
+    private final byte[] record;
+    private final ByteBuffer recordBuffer;
+
+    public SampleEncoder() {
+        record = new byte[RECORD_SIZE];
+        recordBuffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Encodes the sample into the reusable record and returns it.
+     * The returned array is overwritten by the next call, so it must be written out
+     * (or copied) before encoding the next sample.
+     */
+    public byte[] encode(float[] sensor_reading, long timestamp, long timeStampSystem) {
+        encode(recordBuffer, 0, sensor_reading, timestamp, timeStampSystem);
+        return record;
+    }
+
+    /**
+     * Writes one record at the given absolute position of dest using absolute puts,
+     * so neither the position nor the limit of dest are changed.
+     * dest must be little-endian and have RECORD_SIZE bytes available at offset.
+     */
+    public static void encode(ByteBuffer dest, int offset, float[] sensor_reading,
+                              long timestamp, long timeStampSystem) {
+        for (int i = 0; i < NUM_CHANNELS; i++) {
+            dest.putFloat(offset + i * 4, sensor_reading[i]);
+        }
+        dest.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+        dest.putLong(offset + SYSTEM_TIME_OFFSET, timeStampSystem);
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer/single-consumer lock-free queue of watch sensor samples.
+ * *
+ * All slots are preallocated as flat primitive arrays, so offering a sample only
+ * copies 16 floats and two longs; nothing is allocated per sample.
+ * The producer is the sensor callback thread, the consumer is the SampleWriter thread.
+ * When the queue is full the new sample is dropped (and counted) instead of blocking
+ * the sensor callback.
+ */
+public class SampleQueue {
+    public static final int DEFAULT_CAPACITY = 1024;   /* ~10 sec of 100 Hz data */
+
+    public interface SampleSink {
+        void onSample(float[] sensor_reading, long timestamp, long timeStampSystem);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final float[] readings;     /* capacity * NUM_CHANNELS */
+    private final long[] timestamps;    /* sensor event timestamps (ns since boot) */
+    private final long[] systemTimes;   /* System.currentTimeMillis() when the sample was queued */
+    private final float[] drainSlot = new float[SampleEncoder.NUM_CHANNELS];  /* consumer-side copy */
+
+    private final AtomicLong head = new AtomicLong();  /* next slot to read, written by the consumer */
+    private final AtomicLong tail = new AtomicLong();  /* next slot to write, written by the producer */
+    private long cachedHead;                           /* producer's last view of head */
+
+    /* counters; each is only written by the producer */
+    private volatile long dropped;
+    private volatile int highWaterMark;
+
+    public SampleQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SampleQueue(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of 2");
+        }
+        this.capacity = capacity;
+        mask = capacity - 1;
+        readings = new float[capacity * SampleEncoder.NUM_CHANNELS];
+        timestamps = new long[capacity];
+        systemTimes = new long[capacity];
+    }
+
+    /**
+     * Producer side.  Copies the sample into the next free slot.
+     * Returns false (and counts a dropped sample) if the queue is full.
+     */
+    public boolean offer(float[] sensor_reading, long timestamp, long timeStampSystem) {
+        long t = tail.get();
+        if (t - cachedHead >= capacity) {
+            cachedHead = head.get();
+            if (t - cachedHead >= capacity) {
+                dropped++;
+                return false;
+            }
+        }
+        int slot = (int) (t & mask);
+        System.arraycopy(sensor_reading, 0, readings, slot * SampleEncoder.NUM_CHANNELS, SampleEncoder.NUM_CHANNELS);
+        timestamps[slot] = timestamp;
+        systemTimes[slot] = timeStampSystem;
+        tail.lazySet(t + 1);    /* publishes the slot to the consumer */
+
+        int depth = (int) (t + 1 - cachedHead);
+        if (depth > highWaterMark) {
+            highWaterMark = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Consumer side.  Hands every queued sample to sink, oldest first,
+     * and returns how many were drained.  The array passed to the sink is reused.
+     */
+    public int drain(SampleSink sink) {
+        long h = head.get();
+        long t = tail.get();
+        int count = 0;
+        while (h < t) {
+            int slot = (int) (h & mask);
+            System.arraycopy(readings, slot * SampleEncoder.NUM_CHANNELS, drainSlot, 0, SampleEncoder.NUM_CHANNELS);
+            sink.onSample(drainSlot, timestamps[slot], systemTimes[slot]);
+            h++;
+            head.lazySet(h);    /* frees the slot for the producer */
+            count++;
+        }
+        return count;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /* Number of samples currently waiting to be written. */
+    public int depth() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getQueued() {
+        return tail.get();
+    }
+
+    public String statsString() {
+        return "queued=" + getQueued() + " depth=" + depth() + " highWaterMark=" + getHighWaterMark()
+                + "/" + capacity + " dropped=" + getDropped();
+    }
+}
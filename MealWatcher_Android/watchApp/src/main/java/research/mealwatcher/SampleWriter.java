@@ -0,0 +1,83 @@
+/**
+ <MealWatcher is a phone & watch application to record motion data from a watch and smart ring>
+ Copyright (C) <2023>  <James Jolly, Faria Armin, Adam Hoover>
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package research.mealwatcher;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread which drains the SampleQueue into the Classifier (and so to the recording file).
+ * This keeps disk writes off the sensor callback thread: a slow write only makes the queue
+ * deeper instead of delaying the next sensor event.
+ * Queue statistics are written to the session log once a minute and when the writer stops.
+ */
+public class SampleWriter implements Runnable {
+    private static final long DRAIN_INTERVAL_NS = 20 * 1000000L;   /* 20 ms, ~2 samples per wakeup at 100 Hz */
+    private static final long STATS_INTERVAL_MS = 60 * 1000;
+
+    private final SampleQueue queue;
+    private final Classifier classifier;
+    private final SampleQueue.SampleSink sink;
+    private final LogFunction_Watch logFunction_watch;
+    private volatile boolean running;
+    private Thread thread;
+
+    public SampleWriter(SampleQueue queue, Classifier classifier, LogFunction_Watch logFunction_watch) {
+        this.queue = queue;
+        this.classifier = classifier;
+        this.sink = classifier::newData;
+        this.logFunction_watch = logFunction_watch;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "SampleWriter");
+        thread.start();
+    }
+
+    /* Stops the thread and writes whatever is still queued before returning. */
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        queue.drain(sink);
+        logFunction_watch.information("SampleQueue", "Writer stopped: " + queue.statsString());
+    }
+
+    @Override
+    public void run() {
+        long lastStats = System.currentTimeMillis();
+        while (running) {
+            if (queue.drain(sink) == 0) {
+                LockSupport.parkNanos(DRAIN_INTERVAL_NS);
+            }
+            long now = System.currentTimeMillis();
+            classifier.flushIfDue(now);     /* the file's time threshold, also when no samples come */
+            if (now - lastStats >= STATS_INTERVAL_MS) {
+                lastStats = now;
+                logFunction_watch.information("SampleQueue", queue.statsString());
+            }
+        }
+    }
+}
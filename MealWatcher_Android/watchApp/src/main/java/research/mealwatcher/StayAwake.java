@@ -26,23 +26,31 @@ import android.app.PendingIntent;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import android.content.Context;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
+import android.os.SystemClock;
 
 //Dropbox imports
 
@@ -52,9 +60,12 @@ import androidx.annotation.Nullable;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.ChannelClient;
 import com.google.android.gms.wearable.DataClient;
 import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.Wearable;
 
@@ -67,21 +78,39 @@ public class StayAwake extends IntentService {
         super("StayAwake");
     }
 
-    public static int have_accel, have_gyro, have_mag, have_pose, have_linear_accel;         /* flags to sync sensors */
-    public static float[] accel, gyro, magneto, quaternion, linear_accel;              /* data from sensors */
+    public static float[] quaternion;              /* pose from the rotation vector sensor, w x y z */
     public static long startingTime, currentTime;    /* how long app has been running */
     public static long runningSamples;              /* how much data collected */
     public static long runningTotalMS, runningHour, runningMin, runningSec;    /* display to user */
     private static Classifier classifier;
+    private static SampleQueue sampleQueue;          /* sensor callback -> writer thread */
+    private static SampleWriter sampleWriter;        /* drains sampleQueue to the recording file */
     private static String fileName;
     private static SensorManager sensorManager;
-    private static SensorEventListener sensorCallback;
+    private static SensorEventListener2 sensorCallback;
+    /* sensor events are delivered on this thread, so cleanUp can wait on the main thread for the flush */
+    private static HandlerThread sensorThread;
+    private static Handler sensorHandler;
+    private static int sensorsRegistered;
+    private static volatile CountDownLatch sensorsFlushed;  /* counted down by onFlushCompleted, once per sensor */
+    private static final long FLUSH_TIMEOUT_MS = 2000;
     private static boolean mIsSensorUpdateEnabled = false;
     private static final String MSG_START_RECORDING = "Record";
     private static final String MSG_UPLOAD = "Upload";
     private static final String CLEAN_UP = "Clean";
-    private static long timeStamp;
     private static final int fileFormat = 1; /*0 = csv, 1 = binary(.data extension).*/
+    /*
+    0 = every sensor event is delivered right away (maxReportLatency 10 us).
+    1 = batched, the sensor hub keeps up to BATCH_LATENCY_US of events in its FIFO so the processor can sleep.
+    Either way SampleAssembler resamples the events onto the SAMPLE_RATE_HZ grid by their timestamps.
+    Read from the CAPTURE_MODE_KEY setting when a recording starts.
+     */
+    static final String CAPTURE_MODE_KEY = "capture_mode";    /* int in the "myPreferences" shared preferences */
+    private static int captureMode = 0;
+    private static final int BATCH_LATENCY_US = 5000000;    /* 5 sec */
+    private static final int SAMPLE_RATE_HZ = 100;          /* rate of the samples written to the recording file */
+    private static final long MAX_GAP_NS = 100000000L;      /* don't interpolate over more than 100 ms */
+    private static SampleAssembler sampleAssembler;
     private static String fileExtension = "data";
     private static String fileExtensionText = "log";
     private static Notification mNotification;
@@ -91,6 +120,12 @@ public class StayAwake extends IntentService {
     private static Thread fileSentThread;
     static Boolean firstFileToUpload;
     static boolean sessionFinished = false;
+    /* exported to the log by Metrics */
+    private static final Metrics.Histogram sensorCallbackNs = Metrics.histogram("watch.sensor_callback_ns");
+    private static final Metrics.Counter sensorEvents = Metrics.counter("watch.sensor_events");
+    private static final Metrics.Counter samplesAssembled = Metrics.counter("watch.samples_assembled");
+    private static final int CHANNEL_ATTEMPTS = 3;             /* tries of the channel transfer before falling back to assets */
+    private static final long CHANNEL_RETRY_DELAY_MS = 2000;
     private static LogFunction_Watch logFunction_watch;
 
     public static PowerManager powerManager;
@@ -136,6 +171,12 @@ public class StayAwake extends IntentService {
         // System.out.println("in ondestroy() of stay awake service");
     }*/
 
+    @Override
+    public void onDestroy() {
+        removeGauges();
+        super.onDestroy();
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -150,27 +191,46 @@ public class StayAwake extends IntentService {
         //MainActivity_new.writeToLog("in start recording method of stay awake service");
         mIsSensorUpdateEnabled = true;
 
-        int samplingRate = 10000;
-        accel = new float[3];
-        gyro = new float[3];
-        magneto = new float[3];
+        captureMode = getSharedPreferences("myPreferences", 0).getInt(CAPTURE_MODE_KEY, 0) == 1 ? 1 : 0;
+        int samplingRate = 1000000 / SAMPLE_RATE_HZ;   /* us */
         quaternion = new float[4];
-        linear_accel = new float[3];
-        float[] sensor_reading = new float[16];
-        have_accel = 0;
-        have_gyro = 0;
-        have_mag = 0;
-        have_pose = 0;
-        have_linear_accel = 0;
         runningSamples = 0;
 
         // Initializing the classifier which creates a file to which sensor readings are written to.
         classifier = new Classifier();
         fileName = Classifier.fileName;
+        // Disk writes happen on a separate thread so the sensor callback never waits on the file.
+        sampleQueue = new SampleQueue();
+        sampleWriter = new SampleWriter(sampleQueue, classifier, logFunction_watch);
+        sampleWriter.start();
+        // Every sensor is resampled onto the SAMPLE_RATE_HZ grid. In batched mode a stream can be a whole
+        // batch behind the others, so wait up to two batches before giving up on a stalled sensor.
+        long periodNs = 1000000000L / SAMPLE_RATE_HZ;
+        long maxWaitNs = captureMode == 1 ? 2L * BATCH_LATENCY_US * 1000 : 1000000000L;
+        sampleAssembler = new SampleAssembler(2048, periodNs, MAX_GAP_NS, maxWaitNs, (reading, sampleTime) -> {
+            currentTime = System.currentTimeMillis();
+            runningTotalMS = currentTime - startingTime;
+            runningHour = runningTotalMS / 3600000;
+            runningMin = (runningTotalMS - (runningHour * 3600000)) / 60000;
+            runningSec = (runningTotalMS - (runningHour * 3600000) - (runningMin * 60000)) / 1000;
+            // the grid sample is built a little (or in batched mode, seconds) after its time, so back-date
+            // the system time by its age (event timestamps use the elapsedRealtime clock)
+            long capturedAt = currentTime - (SystemClock.elapsedRealtimeNanos() - sampleTime) / 1000000;
+            // only copies the sample into the queue; the SampleWriter thread writes it
+            sampleQueue.offer(reading, sampleTime, capturedAt);
+            runningSamples++;
+            samplesAssembled.inc();
+        });
+        Metrics.gauge("watch.queue_dropped", sampleQueue::getDropped);
+        Metrics.gauge("watch.queue_high_water", sampleQueue::getHighWaterMark);
+        Metrics.gauge("watch.samples_skipped", sampleAssembler::getSkipped);
 
         sensorManager = (SensorManager) MainActivity_new.applicationContext.getSystemService(Context.SENSOR_SERVICE);
+        sensorThread = new HandlerThread("SensorEvents");
+        sensorThread.start();
+        sensorHandler = new Handler(sensorThread.getLooper());
         // create the gyro sensor callback function
-        sensorCallback = new SensorEventListener() {
+        sensorCallback = new SensorEventListener2() {
             /*
             Called when there is a new sensor event. Note that "on changed" is somewhat of a
             misnomer, as this will also be called if we have a new reading from a sensor with
@@ -179,104 +239,11 @@ public class StayAwake extends IntentService {
             @Override
             public void onSensorChanged(SensorEvent event) {
 //                System.out.println("received sensor reading");
-//                MainActivity_new.wakeLock.acquire(60*60*1000L /*1 hour*/);
                 //MainActivity_new.writeToLog("received sensor reading");
                 if (mIsSensorUpdateEnabled) {
-                    // callback code here
-                    if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
-//                        gyro[0] = event.values[0];
-//                        gyro[1] = event.values[1];
-//                        gyro[2] = event.values[2];
-                        sensor_reading[0] = (float) (event.values[0] * 57.3);
-                        sensor_reading[1] = (float) (event.values[1] * 57.3);
-                        sensor_reading[2] = (float) (event.values[2] * 57.3);
-                        have_gyro = 1;
-                        timeStamp = event.timestamp;
-                    }
-                    if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-//                        accel[0] = event.values[0];
-//                        accel[1] = event.values[1];
-//                        accel[2] = event.values[2];
-                        sensor_reading[3] = (float) (event.values[0] / 9.80665);
-                        sensor_reading[4] = (float) (event.values[1] / 9.80665);
-                        sensor_reading[5] = (float) (event.values[2] / 9.80665);
-                        have_accel = 1;
-                        timeStamp = event.timestamp;
-                    }
-                    if (event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
-                        magneto[0] = event.values[0];
-                        magneto[1] = event.values[1];
-                        magneto[2] = event.values[2];
-                        sensor_reading[6] = event.values[0];
-                        sensor_reading[7] = event.values[1];
-                        sensor_reading[8] = event.values[2];
-                        have_mag = 1;
-                        timeStamp = event.timestamp;
-                    }
-                    if (have_accel == 1 && have_mag == 1) {
-                        float R[] = new float[9];
-                        float I[] = new float[9];
-                        boolean success = SensorManager.getRotationMatrix(R, I, accel, magneto); //check this https://stackoverflow.com/questions/30780474/android-get-quaternion-data.
-                        if (success) {
-                            float[] mOrientation = new float[3];
-                            SensorManager.getOrientation(R, mOrientation);
-                            SensorManager.getQuaternionFromVector(quaternion, mOrientation);
-                        }
-                        have_pose = 1;
-                        timeStamp = event.timestamp;
-                        sensor_reading[9] = quaternion[0];
-                        sensor_reading[10] = quaternion[1];
-                        sensor_reading[11] = quaternion[2];
-                        sensor_reading[12] = quaternion[3];
-                    }
-                    if (event.sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION) {
-//                        linear_accel[0] = event.values[0];
-//                        linear_accel[1] = event.values[1];
-//                        linear_accel[2] = event.values[2];
-                        sensor_reading[13] = (float) (event.values[0] / 9.80665);
-                        sensor_reading[14] = (float) (event.values[1] / 9.80665);
-                        sensor_reading[15] = (float) (event.values[2] / 9.80665);
-                        have_linear_accel = 1;
-                        timeStamp = event.timestamp;
-                    }
-                    TotalDataReceived ++;
-                    if (have_accel == 1 && have_gyro == 1 && have_mag == 1 && have_pose == 1 && have_linear_accel == 1) {
-                        currentTime = System.currentTimeMillis();
-                        runningTotalMS = currentTime - startingTime;
-                        runningHour = runningTotalMS / 3600000;
-                        runningMin = (runningTotalMS - (runningHour * 3600000)) / 60000;
-                        runningSec = (runningTotalMS - (runningHour * 3600000) - (runningMin * 60000)) / 1000;
-
-
-                        /*
-                        Deliberately closing the watch application after one hour of recording if
-                        phone app is closed and watch is still recording.
-                        */
-                        /*if (runningHour >= 1) {
-                            System.out.println("Running for 1 hour");
-                            //logFunction_watch.information("Watch","Deliberately closing the watch application after one hour of recording.");
-                            //cleanUp();
-
-                            //Intent intent = new Intent("com.example.ACTION_FINISH_TASK_ACTIVITY");
-                            //sendBroadcast(intent);
-                        } else {
-
-                        }*/
-                        // call function in Classifier class to add data to buffer and run classifier
-                        // see README.txt for explanation of android->our coord sys transform
-                        // converting accel and linear accel from m/s^2 to G; converting gyro from rad/s to deg/s
-                        // throttling sampling rate to 100 Hz (10 ms)
-                        if (runningSamples < runningTotalMS / 10.0) { /* initially (runningTotalMS / 66.667) this will be 15 Hz.*/
-                            //MainActivity_new.writeToLog("Sending recording values to classifier");
-                            classifier.newData(sensor_reading, timeStamp);
-                            runningSamples++;
-                        }
-                        have_accel = 0;
-                        have_gyro = 0;
-                        have_mag = 0;
-                        have_pose = 0;
-                        have_linear_accel = 0;
-                    }
+                    long start = System.nanoTime();
+                    onSensorEvent(event);
+                    sensorCallbackNs.recordSince(start);
                 }
             }
 
@@ -284,6 +251,15 @@ public class StayAwake extends IntentService {
             public void onAccuracyChanged(Sensor sensor, int accuracy) {
                 //leave blank
             }
+
+            @Override
+            public void onFlushCompleted(Sensor sensor) {
+                // the events batched in the FIFO before the flush have all been delivered
+                CountDownLatch flushed = sensorsFlushed;
+                if (flushed != null) {
+                    flushed.countDown();
+                }
+            }
         };  // end of callback function
         // create the acceleration sensor
         Sensor accelSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
@@ -291,17 +267,27 @@ public class StayAwake extends IntentService {
         Sensor gyroSensor = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
         Sensor magSensor = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
         Sensor linearAcceloSensor = sensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
-        Sensor orientationSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ORIENTATION);
+        // gives the pose (quaternion) directly, fused by the sensor hub from accel, gyro and magnetometer
         Sensor rotationalMatSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
 
         //register the gyro sensor callback function with the OS
-        boolean gyroSensorRegistered = sensorManager.registerListener(sensorCallback, gyroSensor, samplingRate, 10);
+        boolean gyroSensorRegistered = sensorManager.registerListener(sensorCallback, gyroSensor, samplingRate, reportLatency(gyroSensor, samplingRate), sensorHandler);
         //register the acceleration sensor callback function with the OS
-        boolean accelSensorRegistered = sensorManager.registerListener(sensorCallback, accelSensor, samplingRate, 10);
-        boolean magSensorRegistered = sensorManager.registerListener(sensorCallback, magSensor, samplingRate, 10);
-        boolean linearAcceloRegistered = sensorManager.registerListener(sensorCallback, linearAcceloSensor, samplingRate, 10);
-        boolean orientationRegistered = sensorManager.registerListener(sensorCallback, orientationSensor, samplingRate, 10);
-        boolean rotationRegistered = sensorManager.registerListener(sensorCallback, rotationalMatSensor, samplingRate, 10);
+        boolean accelSensorRegistered = sensorManager.registerListener(sensorCallback, accelSensor, samplingRate, reportLatency(accelSensor, samplingRate), sensorHandler);
+        boolean magSensorRegistered = sensorManager.registerListener(sensorCallback, magSensor, samplingRate, reportLatency(magSensor, samplingRate), sensorHandler);
+        boolean linearAcceloRegistered = sensorManager.registerListener(sensorCallback, linearAcceloSensor, samplingRate, reportLatency(linearAcceloSensor, samplingRate), sensorHandler);
+        boolean rotationRegistered = sensorManager.registerListener(sensorCallback, rotationalMatSensor, samplingRate, reportLatency(rotationalMatSensor, samplingRate), sensorHandler);
+        logFunction_watch.information("Sensors", "Registered sensors, capture mode = " + captureMode
+                + ", gyro report latency = " + reportLatency(gyroSensor, samplingRate) + " us"
+                + ", rotation vector report latency = " + reportLatency(rotationalMatSensor, samplingRate) + " us");
+        sensorsRegistered = (gyroSensorRegistered ? 1 : 0) + (accelSensorRegistered ? 1 : 0) + (magSensorRegistered ? 1 : 0)
+                + (linearAcceloRegistered ? 1 : 0) + (rotationRegistered ? 1 : 0);
+        // in both modes every stream has to be there, or the assembler waits for it (see maxWaitNs)
+        if (!(gyroSensorRegistered && accelSensorRegistered && magSensorRegistered && linearAcceloRegistered && rotationRegistered)) {
+            logFunction_watch.error("Sensors", "Sensor not registered: gyro = " + gyroSensorRegistered
+                    + ", accel = " + accelSensorRegistered + ", mag = " + magSensorRegistered
+                    + ", linear accel = " + linearAcceloRegistered + ", rotation vector = " + rotationRegistered);
+        }
 
         //System.out.println("gyroSensorRegistered = " + gyroSensorRegistered + " accelSensorRegistered = " + accelSensorRegistered);
 
@@ -314,6 +300,54 @@ public class StayAwake extends IntentService {
         //uploadHandler.post(uploadRunnable);
     }
 
+    /*
+    Report latency for registerListener.  In batched mode it is limited to what fits in the part of the
+    sensor hub FIFO reserved for this sensor (or a fifth of the shared FIFO), otherwise events would be lost.
+     */
+    private static int reportLatency(Sensor sensor, int samplingRate) {
+        if (captureMode == 0 || sensor == null) {
+            return 10;
+        }
+        int fifoEvents = sensor.getFifoReservedEventCount();
+        if (fifoEvents <= 0) {
+            fifoEvents = sensor.getFifoMaxEventCount() / 5;
+        }
+        if (fifoEvents <= 0) {
+            return 0;   /* no FIFO, events can't be batched */
+        }
+        return (int) Math.min(BATCH_LATENCY_US, (long) fifoEvents * samplingRate * 8 / 10);
+    }
+
+    /*
+    Every event goes to the SampleAssembler with its unit conversion, and the assembler lines them up by timestamp.
+    see README.txt for explanation of android->our coord sys transform
+    converting accel and linear accel from m/s^2 to G; converting gyro from rad/s to deg/s
+     */
+    private static void onSensorEvent(SensorEvent event) {
+        TotalDataReceived++;
+        sensorEvents.inc();
+        switch (event.sensor.getType()) {
+            case Sensor.TYPE_GYROSCOPE:
+                sampleAssembler.onEvent(SampleAssembler.GYRO, event.timestamp, event.values, 57.3);
+                break;
+            case Sensor.TYPE_ACCELEROMETER:
+                sampleAssembler.onEvent(SampleAssembler.ACCEL, event.timestamp, event.values, 1.0 / 9.80665);
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                sampleAssembler.onEvent(SampleAssembler.MAG, event.timestamp, event.values, 1.0);
+                break;
+            case Sensor.TYPE_ROTATION_VECTOR:
+                // the rotation vector is x*sin(a/2), y*sin(a/2), z*sin(a/2) (cos(a/2)); converted into
+                // the preallocated quaternion array, nothing is allocated per event
+                SensorManager.getQuaternionFromVector(quaternion, event.values);
+                sampleAssembler.onEvent(SampleAssembler.POSE, event.timestamp, quaternion, 1.0);
+                break;
+            case Sensor.TYPE_LINEAR_ACCELERATION:
+                sampleAssembler.onEvent(SampleAssembler.LINEAR_ACCEL, event.timestamp, event.values, 1.0 / 9.80665);
+                break;
+        }
+    }
+
     private void startUploading() {
         //uploading files to mobile memory.
         //MainActivity_new.writeToLog("Total data stored in watch file: " + TotalDataReceived);
@@ -333,6 +367,8 @@ public class StayAwake extends IntentService {
                     firstFileToUpload = false;
                     System.out.println("Thread is running");
                     scanDir(getExternalFilesDir(null));
+                    // Streams the files over a channel; only the files left after that go one asset at a time.
+                    sendFilesOverChannel(getApplicationContext());
                     uploadFilesToPhone(getExternalFilesDir(null),
                             Wearable.getDataClient(getApplicationContext()), false, dataFiles.size());
 
@@ -376,6 +412,60 @@ public class StayAwake extends IntentService {
 //        MainActivity_new.writeToLog("Got " + dataFiles.size() + " number of files into list.");
     }
 
+    /*
+    Sends the files in dataFiles to the phone over a ChannelClient channel (see FileTransferSender).
+    All files go in one transfer, the phone tells up front which it already has and where to continue
+    the ones it has part of.  A broken transfer is tried again a few times.
+    Files are deleted (and removed from dataFiles) once the phone has all of them; any files left
+    after the last try are sent by uploadFilesToPhone as before.
+     */
+    private static void sendFilesOverChannel(Context context) {
+        ChannelClient channelClient = Wearable.getChannelClient(context);
+        File stateFile = new File(context.getFilesDir(), "transfer-state.properties");
+        for (int attempt = 1; attempt <= CHANNEL_ATTEMPTS && !dataFiles.isEmpty(); attempt++) {
+            ChannelClient.Channel channel = null;
+            FileTransferSender sender = null;
+            try {
+                List<Node> nodes = Tasks.await(Wearable.getNodeClient(context).getConnectedNodes());
+                if (nodes.isEmpty()) {
+                    logFunction_watch.information("Watch", "No phone connected for the channel transfer.");
+                    return;
+                }
+                Node phone = nodes.get(0);
+                for (Node node : nodes) {
+                    if (node.isNearby()) {
+                        phone = node;
+                        break;
+                    }
+                }
+                channel = Tasks.await(channelClient.openChannel(phone.getId(), FileTransferSender.CHANNEL_PATH));
+                InputStream fromPhone = Tasks.await(channelClient.getInputStream(channel));
+                OutputStream toPhone = Tasks.await(channelClient.getOutputStream(channel));
+                sender = new FileTransferSender(fromPhone, toPhone, stateFile);
+                sender.sendAll(new ArrayList<>(dataFiles), (file, alreadyOnPhone) -> {
+                    logFunction_watch.information("Phone", (alreadyOnPhone ? "The phone already had the file: "
+                            : "The phone received the file: ") + file.getName());
+                    if (!file.getName().endsWith(".txt")) {
+                        file.delete();
+                    }
+                    dataFiles.remove(file);
+                });
+                logFunction_watch.information("Watch", "Channel transfer done, " + sender.statsString());
+            } catch (IOException | ExecutionException e) {
+                logFunction_watch.error("Watch", "Channel transfer try " + attempt + " failed: " + e
+                        + (sender != null ? ", " + sender.statsString() : ""));
+                SystemClock.sleep(CHANNEL_RETRY_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                if (channel != null) {
+                    channelClient.close(channel);
+                }
+            }
+        }
+    }
+
     static void uploadFilesToPhone(File directory, DataClient dataClient,
                                    Boolean isInitialUpload, int numOfFile) {
 //        MainActivity_new.writeToLog("Uploading files to phone");
@@ -408,20 +498,24 @@ public class StayAwake extends IntentService {
                     ParcelFileDescriptor.MODE_READ_ONLY);
             Asset asset = Asset.createFromFd(pfd);
 
-            sendFileToMobile("sensors_file", asset, originalFile.getName(), dataClient,
-                    numOfFile);
+            // size and CRC32 let the phone check the copy before it is put with the other files
+            long fileSize = file.length();
+            sendFileToMobile("sensors_file", asset, originalFile.getName(), fileSize,
+                    FileTransferSender.checksum(file, fileSize), dataClient, numOfFile);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void sendFileToMobile(String key, Asset data, String fileName, DataClient dataClient,
-                                         int numOfFile) {
+    private static void sendFileToMobile(String key, Asset data, String fileName, long fileSize, int crc32,
+                                         DataClient dataClient, int numOfFile) {
 
 //        MainActivity_new.writeToLog("sending file to mobile");
         PutDataMapRequest putDataMapReq = PutDataMapRequest.create("/file_path");
         putDataMapReq.getDataMap().putAsset(key, data);
         putDataMapReq.getDataMap().putString("fileName", fileName);
+        putDataMapReq.getDataMap().putLong("fileSize", fileSize);
+        putDataMapReq.getDataMap().putInt("crc32", crc32);
         putDataMapReq.getDataMap().putLong("timestamp", System.currentTimeMillis());
         putDataMapReq.getDataMap().putInt("numOfFiles", numOfFile);
         Task<DataItem> putDataTask = dataClient.putDataItem(putDataMapReq.asPutDataRequest());
@@ -455,8 +549,7 @@ public class StayAwake extends IntentService {
                 logFunction_watch.information("Watch","Unregistering the sensor manager in cleanup method");
                 //System.out.println("Unregistering the sensor manager.");
                 //unregister the callbacks for the sensors (otherwise the app wont end)
-                sensorManager.unregisterListener(sensorCallback);
-                mIsSensorUpdateEnabled = false;
+                stopSensors();
             }
             TotalDataReceived = 0;
 
@@ -464,6 +557,15 @@ public class StayAwake extends IntentService {
                 //call closeClassifier to close the files to which sensor data is written.
                 // System.out.println("closing classifier");
                 // MainActivity_new.writeToLog("closing classifier");
+                if (Objects.nonNull(sampleAssembler)) {
+                    logFunction_watch.information("Sensors", "Resampling: " + sampleAssembler.statsString());
+                }
+                // stop the writer first so everything still in the queue ends up in the file
+                if (Objects.nonNull(sampleWriter)) {
+                    sampleWriter.stop();
+                    sampleWriter = null;
+                }
+                removeGauges();
                 classifier.closeClassifier();
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -472,6 +574,53 @@ public class StayAwake extends IntentService {
 
     }
 
+    /*
+    In batched mode up to BATCH_LATENCY_US of events are still in the sensor hub FIFO.  They are flushed
+    and delivered before the listener is unregistered, then the assembler builds the grid samples that were
+    waiting for a slower sensor.  The drain is posted to the sensor thread, so it runs after every event
+    queued there and never at the same time as onSensorEvent.
+     */
+    private static void stopSensors() {
+        sensorsFlushed = new CountDownLatch(sensorsRegistered);
+        try {
+            if (sensorManager.flush(sensorCallback)
+                    && !sensorsFlushed.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logFunction_watch.error("Sensors", "Flush not completed by " + sensorsFlushed.getCount() + " sensors");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sensorManager.unregisterListener(sensorCallback);
+        sensorsFlushed = null;
+
+        final SampleAssembler assembler = sampleAssembler;
+        final CountDownLatch drained = new CountDownLatch(1);
+        // post fails if the thread was stopped by an earlier clean up
+        boolean posted = sensorHandler.post(() -> {
+            mIsSensorUpdateEnabled = false;
+            if (Objects.nonNull(assembler)) {
+                assembler.drain();
+            }
+            drained.countDown();
+        });
+        try {
+            if (posted && !drained.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logFunction_watch.error("Sensors", "Sensor thread didn't drain the resampler");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mIsSensorUpdateEnabled = false;
+        sensorThread.quitSafely();
+    }
+
+    /* the gauges read this session's queue and assembler; the next session registers its own */
+    private static void removeGauges() {
+        Metrics.remove("watch.queue_dropped");
+        Metrics.remove("watch.queue_high_water");
+        Metrics.remove("watch.samples_skipped");
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         //MainActivity_new.writeToLog("in onStartCommand() of watch");
@@ -0,0 +1,132 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the block layout of the compressed files and how much smaller they are than the .data files.
+ * Decoding is tested on the phone side (BlockDecoderTest) with bytes written by this encoder.
+ */
+public class BlockEncoderTest {
+    private static final int HEADER = 5 + SampleEncoder.NUM_CHANNELS * 8;
+
+    /* wrist-like motion: slow movements of a few deg/s and tenths of a G plus sensor noise, 100 Hz */
+    private static byte[] encodeRecording(int records, int blockRecords) throws IOException {
+        Random random = new Random(7);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockEncoder encoder = new BlockEncoder(out, BlockEncoder.WATCH_STEPS, blockRecords);
+        float[] sample = new float[SampleEncoder.NUM_CHANNELS];
+        long start = 1700000000000L;
+        for (int i = 0; i < records; i++) {
+            double t = i / 100.0;
+            for (int c = 0; c < 3; c++) {
+                sample[c] = (float) (20.0 * Math.sin(t * (0.7 + c)) + random.nextGaussian() * 0.05);
+                sample[3 + c] = (float) (0.3 * Math.sin(t * (0.5 + c)) + random.nextGaussian() * 0.002);
+                sample[6 + c] = (float) (30.0 * Math.cos(t * 0.2 + c) + random.nextGaussian() * 0.3);
+                sample[13 + c] = (float) (0.1 * Math.sin(t * (0.9 + c)) + random.nextGaussian() * 0.002);
+            }
+            for (int c = 0; c < 4; c++) {
+                sample[9 + c] = (float) (0.5 * Math.cos(t * 0.3 + c));
+            }
+            encoder.writeRecord(sample, start + i * 10L, start + i * 10L + 4);
+        }
+        encoder.close();
+        assertEquals(out.size(), encoder.getBytesWritten());
+        assertEquals(records, encoder.getRecordsWritten());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void header_hasVersionAndSteps() throws IOException {
+        byte[] file = encodeRecording(0, BlockEncoder.DEFAULT_BLOCK_RECORDS);
+        assertEquals(HEADER, file.length);
+        assertEquals('M', file[0]);
+        assertEquals('W', file[1]);
+        assertEquals('Z', file[2]);
+        assertEquals(BlockEncoder.VERSION, file[3]);
+        assertEquals(SampleEncoder.NUM_CHANNELS, file[4]);
+        ByteBuffer buffer = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        for (int c = 0; c < SampleEncoder.NUM_CHANNELS; c++) {
+            assertEquals(BlockEncoder.WATCH_STEPS[c], buffer.getDouble(5 + c * 8), 0.0);
+        }
+    }
+
+    @Test
+    public void blocks_haveCountLengthAndCrc() throws IOException {
+        byte[] file = encodeRecording(450, 200);    /* two full blocks and the 50 records written by close() */
+        ByteBuffer buffer = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = HEADER;
+        int[] expected = {200, 200, 50};
+        for (int count : expected) {
+            assertEquals(count, buffer.getShort(offset) & 0xFFFF);
+            int payload = buffer.getInt(offset + 2);
+            CRC32 crc = new CRC32();
+            crc.update(file, offset, 6 + payload);
+            assertEquals((int) crc.getValue(), buffer.getInt(offset + 6 + payload));
+            offset += 6 + payload + 4;
+        }
+        assertEquals(file.length, offset);
+    }
+
+    @Test
+    public void steadyTimestamps_takeNoBitsPerRecord() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockEncoder encoder = new BlockEncoder(out, new double[]{0.01}, 100);
+        for (int i = 0; i < 100; i++) {
+            encoder.writeRecord(new float[]{1.0f}, 1700000000000L + i * 10L, 1700000000004L + i * 10L);
+        }
+        encoder.close();
+        // two timestamps (first value, first delta, width 0) and one constant channel (value, width 0)
+        assertTrue(out.size() < 5 + 8 + 6 + 2 * 10 + 4 + 4);
+    }
+
+    @Test
+    public void compressed_atLeastFourTimesSmaller() throws IOException {
+        int records = 60000;    /* 10 minutes */
+        byte[] file = encodeRecording(records, BlockEncoder.DEFAULT_BLOCK_RECORDS);
+        double ratio = records * (double) SampleEncoder.RECORD_SIZE / file.length;
+        assertTrue("ratio " + ratio, ratio > 4.0);
+    }
+
+    @Test
+    public void partialBlock_isWrittenWhenItHasWaited() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockEncoder encoder = new BlockEncoder(out, new double[]{0.01}, 100, 2000);
+        encoder.flushIfDue(0);          /* no block yet */
+        for (int i = 0; i < 30; i++) {
+            encoder.writeRecord(new float[]{i}, 1700000000000L + i * 10L, 1700000000004L + i * 10L);
+        }
+        encoder.flushIfDue(1000);       /* the samples stop, the block is timed from here */
+        encoder.flushIfDue(2999);
+        assertEquals(5 + 8, out.size());
+        encoder.flushIfDue(3000);
+        assertEquals(out.size(), encoder.getBytesWritten());
+        assertEquals(30, ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN).getShort(5 + 8));
+        long written = out.size();
+
+        // the next block is timed on its own
+        encoder.writeRecord(new float[]{1}, 1700000001000L, 1700000001004L);
+        encoder.flushIfDue(3020);
+        encoder.flushIfDue(5000);
+        assertEquals(written, out.size());
+        encoder.flushIfDue(5020);
+        assertTrue(out.size() > written);
+        encoder.close();
+        assertEquals(out.size(), encoder.getBytesWritten());
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterClose_fails() throws IOException {
+        BlockEncoder encoder = new BlockEncoder(new ByteArrayOutputStream());
+        encoder.close();
+        encoder.writeRecord(new float[SampleEncoder.NUM_CHANNELS], 0, 0);
+    }
+}
@@ -0,0 +1,137 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EatingDetectorTest {
+
+    /*
+    Reference output of c-code/classifier.c (built with gcc, printing StartAnalysis+BufferStart,
+    FoundPeak+BufferStart, the 4 features and MD after every Classify) for the synthetic
+    recording below, 90000 samples (100 min at 15 Hz).
+     */
+    private static final double[][] C_ANALYSES = {
+            {0, 18476, 13.944660054257174, 0.44414375405932022, 0.031667888634532321, 2028.5784336317929, 0},
+            {18476, 49161, 21.860091051721287, 0.62701645755255009, 0.12178941019461539, 1416.5053650414341, 1},
+            {49161, 78964, 20.106463393601906, 0.62379626212126293, 0.10882582705128803, 1428.6532307981397, 0},
+    };
+    private static final int[] C_EATING_AT = {25199, 84599};
+
+    private long seed;
+
+    private int nextInt() {
+        seed = seed * 6364136223846793005L + 1442695040888963407L;
+        return (int) ((seed >>> 33) & 0x7fffffff);
+    }
+
+    /*
+    Synthetic recording in 400 sec blocks: quiet, "eating" (small accel, regular roll bursts),
+    walking, strong motion, light motion.
+     */
+    private float[] nextSample(int k) {
+        int phase = (k / 6000) % 5;
+        int amp = phase == 0 ? 2 : phase == 1 ? 40 : phase == 2 ? 8 : phase == 3 ? 120 : 15;
+        float[] v = new float[6];
+        for (int a = 0; a < 6; a++) {
+            int r = nextInt() % 2001 - 1000;
+            v[a] = (float) (r * amp) / 100000.0f;
+        }
+        for (int a = 3; a < 6; a++) {
+            v[a] = v[a] * (phase == 1 ? 600.0f : 400.0f);
+        }
+        if (phase == 1 && (k / 30) % 4 == 0) {
+            v[5] += 25.0f;
+        }
+        if (phase == 1) {
+            for (int a = 0; a < 3; a++) {
+                v[a] *= 0.15f;
+            }
+        }
+        return v;
+    }
+
+    @Test
+    public void syntheticRecording_matchesCReference() {
+        seed = 12345;
+        EatingDetector detector = new EatingDetector();
+        List<double[]> analyses = new ArrayList<>();
+        List<Integer> eatingAt = new ArrayList<>();
+        int lastEnd = 0;
+
+        for (int k = 0; k < 90000; k++) {
+            float[] v = nextSample(k);
+            int result = detector.newData(v[0], v[1], v[2], v[3], v[4], v[5]);
+            if (detector.endIndex() != lastEnd) {
+                lastEnd = detector.endIndex();
+                double[] f = detector.lastFeatures();
+                analyses.add(new double[]{detector.startIndex(), detector.endIndex(), f[0], f[1], f[2], f[3],
+                        result == EatingDetector.EATING ? 0 : 1});
+            }
+            if (result == EatingDetector.EATING) {
+                eatingAt.add(k);
+            }
+        }
+
+        assertEquals(C_ANALYSES.length, analyses.size());
+        for (int i = 0; i < C_ANALYSES.length; i++) {
+            double[] expected = C_ANALYSES[i];
+            double[] actual = analyses.get(i);
+            assertEquals((long) expected[0], (long) actual[0]);
+            assertEquals((long) expected[1], (long) actual[1]);
+            for (int f = 2; f < 6; f++) {
+                assertEquals(expected[f], actual[f], Math.abs(expected[f]) * 1e-12);
+            }
+            assertEquals((long) expected[6], (long) actual[6]);
+        }
+        assertEquals(C_EATING_AT.length, eatingAt.size());
+        for (int i = 0; i < C_EATING_AT.length; i++) {
+            assertEquals(C_EATING_AT[i], (int) eatingAt.get(i));
+        }
+    }
+
+    @Test
+    public void findPeak_returnsMaxOfFirstPeak() {
+        float[] sumAccel = new float[EatingDetector.SUM_WINDOW + 100];
+        for (int t = 0; t < sumAccel.length; t++) {
+            sumAccel[t] = 0.05f;
+        }
+        int start = EatingDetector.SUM_WINDOW + 20;
+        for (int t = 0; t < 21; t++) {
+            sumAccel[start + t] = 0.05f + 0.02f * (10 - Math.abs(t - 10));   /* peak 0.25 at start+10 */
+        }
+
+        assertEquals(start + 10, EatingDetector.findPeak(sumAccel, sumAccel.length));
+        // peak hasn't ended yet
+        assertEquals(-1, EatingDetector.findPeak(sumAccel, start + 15));
+        // never reaches 2x its minimum
+        assertEquals(-1, EatingDetector.findPeak(sumAccel, start + 3));
+    }
+
+    @Test
+    public void classify_modelMeans() {
+        double[] ea = new double[EatingDetector.NUM_FEAT];
+        double[] non = new double[EatingDetector.NUM_FEAT];
+        for (int f = 0; f < EatingDetector.NUM_FEAT; f++) {
+            ea[f] = EatingDetector.FEATURE_MEAN[f][0];
+            non[f] = EatingDetector.FEATURE_MEAN[f][1];
+        }
+        assertEquals(0, EatingDetector.classify(ea));
+        assertEquals(1, EatingDetector.classify(non));
+    }
+
+    @Test
+    public void noPeakForOneHour_analyzesWholeBuffer() {
+        // constant motion never gives a peak, so the detector has to analyze at maxSeg
+        EatingDetector detector = new EatingDetector(1800);
+        for (int k = 0; k < 1800; k++) {
+            detector.newData(0.1f, 0.1f, 0.1f, 5f, 5f, 5f);
+        }
+        assertEquals(0, detector.startIndex());
+        assertEquals(1800, detector.endIndex());
+        assertFalse(Double.isNaN(detector.lastFeatures()[2]));
+    }
+}
@@ -0,0 +1,112 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FeatureAccumulatorTest {
+
+    /* smoothed-like data: slow roll bursts above/below the regularity threshold, some zero accel */
+    private static float[][] recording(int length, long seed) {
+        Random random = new Random(seed);
+        float[][] smoothed = new float[6][length];
+        for (int t = 0; t < length; t++) {
+            boolean burst = (t / 40) % 5 == 0 || (t / 300) % 7 == 3;
+            for (int a = 0; a < 3; a++) {
+                smoothed[a][t] = (t % 997 < 20) ? 0.0f : (float) (random.nextGaussian() * 0.05);
+            }
+            for (int a = 3; a < 6; a++) {
+                smoothed[a][t] = (float) (random.nextGaussian() * 6.0);
+            }
+            if (burst) {
+                smoothed[5][t] += 15.0f;
+            }
+        }
+        return smoothed;
+    }
+
+    private static void assertFeaturesEqual(double[] expected, double[] actual) {
+        for (int f = 0; f < EatingDetector.NUM_FEAT; f++) {
+            assertEquals("feature " + f, expected[f], actual[f], Math.abs(expected[f]) * 1e-9);
+        }
+    }
+
+    @Test
+    public void incremental_matchesBatch_atEveryMinute() {
+        float[][] smoothed = recording(20000, 1);
+        FeatureAccumulator accumulator = new FeatureAccumulator(20000);
+        double[] batch = new double[EatingDetector.NUM_FEAT];
+        double[] incremental = new double[EatingDetector.NUM_FEAT];
+
+        accumulator.reset(smoothed, 0, 0);
+        for (int t = 0; t < 20000; t++) {
+            accumulator.add(smoothed, t);
+            if ((t + 1) % EatingDetector.SUM_WINDOW == 0) {
+                // the analysis ends REAL_TIME_DELAY before the newest sample
+                int end = t + 1 - EatingDetector.REAL_TIME_DELAY;
+                EatingDetector.calculateFeatures(smoothed, 0, end, batch);
+                accumulator.features(smoothed, end, incremental);
+                assertFeaturesEqual(batch, incremental);
+            }
+        }
+    }
+
+    @Test
+    public void incremental_matchesBatch_afterReset() {
+        float[][] smoothed = recording(12000, 2);
+        FeatureAccumulator accumulator = new FeatureAccumulator(12000);
+        double[] batch = new double[EatingDetector.NUM_FEAT];
+        double[] incremental = new double[EatingDetector.NUM_FEAT];
+
+        for (int start = 0; start < 3000; start += 137) {
+            accumulator.reset(smoothed, start, start + 500);
+            for (int t = start + 500; t < 12000; t++) {
+                accumulator.add(smoothed, t);
+            }
+            for (int end = start + 1; end <= 12000; end += 61) {
+                EatingDetector.calculateFeatures(smoothed, start, end, batch);
+                accumulator.features(smoothed, end, incremental);
+                assertFeaturesEqual(batch, incremental);
+            }
+        }
+    }
+
+    @Test
+    public void regularity_runHangAndSkip() {
+        // run of 3 samples above the threshold, then 8 sec of hangover, then the skipped sample
+        float[][] smoothed = new float[6][300];
+        for (int t = 0; t < 300; t++) {
+            smoothed[0][t] = 1.0f;
+            smoothed[5][t] = (t >= 10 && t < 13) || t == 133 || t == 134 ? 20.0f : 0.0f;
+        }
+        FeatureAccumulator accumulator = new FeatureAccumulator(300);
+        accumulator.reset(smoothed, 0, 300);
+        double[] batch = new double[EatingDetector.NUM_FEAT];
+        double[] incremental = new double[EatingDetector.NUM_FEAT];
+
+        for (int end = 1; end <= 300; end++) {
+            EatingDetector.calculateFeatures(smoothed, 0, end, batch);
+            accumulator.features(smoothed, end, incremental);
+            assertEquals("end " + end, batch[1], incremental[1], 0.0);
+        }
+        // 3 + 120 moving, sample 133 skipped, 134 starts a new run: 1 + 120
+        assertEquals((3 + 120 + 1 + 120) / 300.0, incremental[1], 1e-12);
+    }
+
+    @Test
+    public void emptyRange_sameAsBatch() {
+        float[][] smoothed = recording(100, 3);
+        FeatureAccumulator accumulator = new FeatureAccumulator(100);
+        accumulator.reset(smoothed, 50, 100);
+        double[] batch = new double[EatingDetector.NUM_FEAT];
+        double[] incremental = new double[EatingDetector.NUM_FEAT];
+
+        EatingDetector.calculateFeatures(smoothed, 50, 40, batch);
+        accumulator.features(smoothed, 40, incremental);
+        for (int f = 0; f < EatingDetector.NUM_FEAT; f++) {
+            assertEquals(Double.doubleToLongBits(batch[f]), Double.doubleToLongBits(incremental[f]));
+        }
+    }
+}
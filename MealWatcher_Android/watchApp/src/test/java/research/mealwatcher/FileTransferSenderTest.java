@@ -0,0 +1,228 @@
+package research.mealwatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays the phone side of the channel transfer with prepared answers (see FileTransferReceiver in
+ * the phone app) and checks the chunks the sender writes.
+ */
+public class FileTransferSenderTest {
+    private static final int CHUNK = 1000;
+
+    private File directory;
+    private File first, second;
+    private File stateFile;
+    private byte[] content;
+    private final List<String> done = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("transfer").toFile();
+        first = new File(directory, "2024-01-01-00-00-00-watch.mwz");
+        second = new File(directory, "2024-01-01-01-00-00-watch.mwz");
+        stateFile = new File(directory, "transfer-state.properties");
+        content = new byte[4500];
+        new Random(2).nextBytes(content);
+        Files.write(first.toPath(), content);
+        Files.write(second.toPath(), Arrays.copyOf(content, 1500));
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    /* answers from the phone: 'H', offsets... | 'A'/'N', file, offset | 'F', file | 'D', files... (an int[]) */
+    private static byte[] phone(Object... messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < messages.length; i++) {
+            char type = (Character) messages[i];
+            out.writeByte(type);
+            if (type == 'H') {
+                long[] offsets = (long[]) messages[++i];
+                out.writeInt(offsets.length);
+                for (long offset : offsets) {
+                    out.writeLong(offset);
+                }
+            } else if (type == 'D') {
+                int[] files = (int[]) messages[++i];
+                out.writeInt(files.length);
+                for (int file : files) {
+                    out.writeInt(file);
+                }
+            } else if (type == 'F') {
+                out.writeInt((Integer) messages[++i]);
+            } else {
+                out.writeInt((Integer) messages[++i]);
+                out.writeLong(((Number) messages[++i]).longValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private FileTransferSender sender(byte[] answers, ByteArrayOutputStream out, int window) throws IOException {
+        return new FileTransferSender(new ByteArrayInputStream(answers), out, stateFile, CHUNK, window);
+    }
+
+    private void sendAll(FileTransferSender sender, File... files) throws IOException {
+        sender.sendAll(Arrays.asList(files), (file, alreadyOnPhone) -> done.add(file.getName() + " " + alreadyOnPhone));
+    }
+
+    /* checks the manifest and every chunk, returns the chunks and ENDs as "0:0 0:1000 E0 B" */
+    private String sent(byte[] bytes, byte[]... received) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        assertEquals('M', in.readByte());
+        assertEquals(CHUNK, in.readInt());
+        assertTrue(in.readInt() > 0);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            long size = in.readLong();
+            CRC32 whole = new CRC32();
+            whole.update(Files.readAllBytes(new File(directory, name).toPath()));
+            assertEquals(size, new File(directory, name).length());
+            assertEquals((int) whole.getValue(), in.readInt());
+        }
+        StringBuilder sb = new StringBuilder();
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            if (type == 'C') {
+                int file = in.readInt();
+                long offset = in.readLong();
+                int length = in.readInt();
+                int crc = in.readInt();
+                byte[] data = new byte[length];
+                in.readFully(data);
+                CRC32 check = new CRC32();
+                check.update(data);
+                assertEquals((int) check.getValue(), crc);
+                System.arraycopy(data, 0, received[file], (int) offset, length);
+                sb.append(file).append(':').append(offset).append(' ');
+            } else if (type == 'E') {
+                sb.append('E').append(in.readInt()).append(' ');
+            } else {
+                sb.append((char) type).append(' ');
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void sendsAllFiles_withoutWaitingBetweenThem() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileTransferSender sender = sender(phone('H', new long[]{0, 0}, 'D', new int[]{0, 1}), out, 16);
+        sendAll(sender, first, second);
+
+        byte[] a = new byte[4500], b = new byte[1500];
+        assertEquals("0:0 0:1000 0:2000 0:3000 0:4000 E0 1:0 1:1000 E1 B", sent(out.toByteArray(), a, b));
+        assertArrayEquals(content, a);
+        assertArrayEquals(Arrays.copyOf(content, 1500), b);
+        assertEquals(Arrays.asList(first.getName() + " false", second.getName() + " false"), done);
+        assertEquals(6000, sender.getBytesSent());
+    }
+
+    @Test
+    public void skipsFilesOnPhone_andResumesAtPhoneOffset() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileTransferSender sender = sender(phone('H', new long[]{3000, -1}, 'D', new int[]{0}), out, 4);
+        sendAll(sender, first, second);
+
+        assertEquals("0:3000 0:4000 E0 B", sent(out.toByteArray(), new byte[4500], new byte[1500]));
+        assertEquals(Arrays.asList(second.getName() + " true", first.getName() + " false"), done);
+        assertEquals(1500, sender.getBytesSent());
+        assertEquals(4500, sender.getBytesSkipped());
+    }
+
+    @Test
+    public void window_spansFiles() throws IOException {
+        // window of 4 chunks over both files: the ACK for the first two lets the second file start
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileTransferSender sender = sender(phone('H', new long[]{0, 0}, 'A', 0, 2000), out, 4);
+        try {
+            sendAll(sender, first, second);
+            fail("the phone's answers ran out");
+        } catch (EOFException e) {
+            // waiting for more acknowledgements
+        }
+        assertEquals("0:0 0:1000 0:2000 0:3000 0:4000 E0 1:0 1:1000",
+                sent(out.toByteArray(), new byte[4500], new byte[1500]));
+    }
+
+    @Test
+    public void nack_sendsAgainFromOffset() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileTransferSender sender = sender(phone('H', new long[]{0}, 'N', 0, 1000, 'A', 0, 2000, 'A', 0, 4000, 'D', new int[]{0}), out, 2);
+        sendAll(sender, first);
+
+        byte[] a = new byte[4500];
+        assertEquals("0:0 0:1000 0:1000 0:2000 0:3000 0:4000 E0 B", sent(out.toByteArray(), a));
+        assertArrayEquals(content, a);
+        assertEquals(1000, sender.getBytesResent());
+    }
+
+    @Test
+    public void acknowledgedOffset_isSavedUntilDone() throws IOException {
+        try {
+            sendAll(sender(phone('H', new long[]{0}, 'A', 0, 2000), new ByteArrayOutputStream(), 2), first);
+        } catch (EOFException e) {
+            // link broke
+        }
+        assertTrue(new String(Files.readAllBytes(stateFile.toPath())).contains(first.getName() + "=4500 2000"));
+
+        // the phone lost its copy and starts over
+        FileTransferSender sender = sender(phone('H', new long[]{0}, 'A', 0, 2000, 'A', 0, 4000, 'D', new int[]{0}),
+                new ByteArrayOutputStream(), 2);
+        sendAll(sender, first);
+        assertTrue(sender.statsString().contains("lostOnPhone=2000"));
+        assertFalse(new String(Files.readAllBytes(stateFile.toPath())).contains(first.getName()));
+    }
+
+    @Test
+    public void failedFile_isKeptForTheNextTransfer() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileTransferSender sender = sender(phone('H', new long[]{0, 0}, 'F', 0, 'D', new int[]{1}), out, 16);
+        sendAll(sender, first, second);
+
+        assertEquals("0:0 0:1000 0:2000 0:3000 0:4000 E0 1:0 1:1000 E1 B",
+                sent(out.toByteArray(), new byte[4500], new byte[1500]));
+        assertEquals(Arrays.asList(second.getName() + " false"), done);
+        assertEquals(1, sender.getFilesFailed());
+        assertTrue(first.exists());
+    }
+
+    @Test
+    public void checksum_coversTheManifestSize() throws IOException {
+        // the log file grows after its size is taken: the CRC32 is of the bytes that will be sent
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, 3000);
+        assertEquals((int) crc.getValue(), FileTransferSender.checksum(first, 3000));
+        try {
+            FileTransferSender.checksum(first, 5000);
+            fail("the file is shorter");
+        } catch (IOException e) {
+            // truncated since
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordWriterTest {
+    private static final int RECORD = 8;
+
+    /* remembers the size of every write, i.e. every batch */
+    private static class Batches extends ByteArrayOutputStream {
+        final List<Integer> sizes = new ArrayList<>();
+        boolean closed;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            sizes.add(len);
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static byte[] record(int n) {
+        byte[] record = new byte[RECORD];
+        for (int i = 0; i < RECORD; i++) {
+            record[i] = (byte) (n * 10 + i);
+        }
+        return record;
+    }
+
+    @Test
+    public void fullBatch_isWritten() throws IOException {
+        Batches out = new Batches();
+        RecordWriter writer = new RecordWriter(out, RECORD, 4 * RECORD + 3, 60_000);    /* 4 whole records */
+        for (int i = 0; i < 9; i++) {
+            writer.writeRecord(record(i), 0, 1000);
+        }
+        assertEquals(2, out.sizes.size());
+        assertEquals(4 * RECORD, (int) out.sizes.get(0));
+        assertEquals(4 * RECORD, (int) out.sizes.get(1));
+        assertEquals(RECORD, writer.getPendingBytes());
+        assertEquals(8 * RECORD, writer.getBytesWritten());
+    }
+
+    @Test
+    public void timeBound_isCheckedOnEveryRecord() throws IOException {
+        Batches out = new Batches();
+        RecordWriter writer = new RecordWriter(out, RECORD, 100 * RECORD, 2000);
+        writer.writeRecord(record(0), 0, 1000);
+        writer.writeRecord(record(1), 0, 2999);
+        assertTrue(out.sizes.isEmpty());
+        writer.writeRecord(record(2), 0, 3000);
+        assertEquals(1, out.sizes.size());
+        assertEquals(3 * RECORD, (int) out.sizes.get(0));
+        assertEquals(0, writer.getPendingBytes());
+    }
+
+    @Test
+    public void timer_writesWhenNoRecordsCome() throws IOException {
+        Batches out = new Batches();
+        RecordWriter writer = new RecordWriter(out, RECORD, 100 * RECORD, 2000);
+        writer.flushIfDue(10_000);     /* nothing waiting */
+        assertTrue(out.sizes.isEmpty());
+        writer.writeRecord(record(0), 0, 1000);
+        writer.writeRecord(record(1), 0, 1500);
+        writer.flushIfDue(2999);
+        assertTrue(out.sizes.isEmpty());
+        writer.flushIfDue(3000);
+        assertEquals(1, out.sizes.size());
+        assertEquals(2 * RECORD, (int) out.sizes.get(0));
+        writer.flushIfDue(10_000);
+        assertEquals(1, out.sizes.size());
+        assertEquals(1, writer.getBatchesWritten());
+    }
+
+    @Test
+    public void close_writesTheRest() throws IOException {
+        Batches out = new Batches();
+        RecordWriter writer = new RecordWriter(out, RECORD, 100 * RECORD, 60_000);
+        for (int i = 0; i < 3; i++) {
+            writer.writeRecord(record(i), 0, 1000);
+        }
+        assertEquals(0, out.size());
+        writer.close();
+        assertTrue(out.closed);
+        byte[] written = out.toByteArray();
+        assertEquals(3 * RECORD, written.length);
+        assertEquals(record(2)[RECORD - 1], written[written.length - 1]);
+        writer.close();     /* a second close does nothing */
+        writer.flushIfDue(Long.MAX_VALUE);
+        assertEquals(1, out.sizes.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterClose() throws IOException {
+        RecordWriter writer = new RecordWriter(new Batches(), RECORD, 100 * RECORD, 2000);
+        writer.close();
+        writer.writeRecord(record(0), 0, 1000);
+    }
+}
@@ -0,0 +1,183 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SampleAssemblerTest {
+    private static final long MS = 1000000L;
+    private static final long PERIOD = 10 * MS;     /* 100 Hz grid */
+
+    private final List<float[]> samples = new ArrayList<>();
+    private final List<Long> times = new ArrayList<>();
+
+    private SampleAssembler newAssembler(long maxWaitNs) {
+        return new SampleAssembler(1024, PERIOD, 100 * MS, maxWaitNs, (reading, timestamp) -> {
+            samples.add(reading.clone());
+            times.add(timestamp);
+        });
+    }
+
+    /* every channel is a straight line in time, so interpolating it must give the exact value */
+    private static float line(int stream, long t) {
+        return (float) (t / (double) MS) * (stream + 1) * 0.01f;
+    }
+
+    private static void send(SampleAssembler assembler, int stream, long t) {
+        float v = line(stream, t);
+        float[] values = stream == SampleAssembler.POSE ? new float[]{1f, 0f, 0f, 0f} : new float[]{v, -v, 2 * v};
+        assembler.onEvent(stream, t, values, 1.0);
+    }
+
+    /* events of one stream from..to (ms), every periodMs with jitter */
+    private static void sendStream(SampleAssembler assembler, int stream, long fromMs, long toMs, long periodMs, long offset) {
+        int k = 0;
+        for (long ms = fromMs; ms < toMs; ms += periodMs, k++) {
+            long jitter = (k % 3 - 1) * MS;  /* -1, 0, +1 ms */
+            send(assembler, stream, ms * MS + offset + jitter);
+        }
+    }
+
+    @Test
+    public void interpolatesOntoGrid_perEvent() {
+        SampleAssembler assembler = newAssembler(1000 * MS);
+        // sensors at different rates and phases, interleaved by time like the per-event callback
+        for (long ms = 0; ms < 2000; ms++) {
+            if (ms % 10 == 3) send(assembler, SampleAssembler.GYRO, ms * MS);
+            if (ms % 10 == 7) send(assembler, SampleAssembler.ACCEL, ms * MS);
+            if (ms % 20 == 1) send(assembler, SampleAssembler.MAG, ms * MS);
+            if (ms % 20 == 1) send(assembler, SampleAssembler.POSE, ms * MS);
+            if (ms % 10 == 5) send(assembler, SampleAssembler.LINEAR_ACCEL, ms * MS);
+        }
+
+        assertTrue(samples.size() > 190);
+        assertEquals(0, assembler.getSkipped());
+        for (int i = 0; i < samples.size(); i++) {
+            long t = times.get(i);
+            assertEquals(0, t % PERIOD);
+            if (i > 0) {
+                assertEquals(PERIOD, t - times.get(i - 1));
+            }
+            float[] s = samples.get(i);
+            assertEquals(line(SampleAssembler.GYRO, t), s[0], 1e-3f);
+            assertEquals(-line(SampleAssembler.ACCEL, t), s[4], 1e-3f);
+            assertEquals(2 * line(SampleAssembler.MAG, t), s[8], 1e-3f);
+            assertEquals(1f, s[9], 1e-6f);
+            assertEquals(line(SampleAssembler.LINEAR_ACCEL, t), s[13], 1e-3f);
+        }
+    }
+
+    @Test
+    public void batchedArrival_sameAsPerEvent() {
+        // 20 sec of events with jitter and a different phase per sensor
+        long[][] events = new long[5][2000];
+        for (int stream = 0; stream < 5; stream++) {
+            for (int k = 0; k < 2000; k++) {
+                events[stream][k] = k * PERIOD + stream * MS + (k % 3 - 1) * MS;
+            }
+        }
+
+        // delivered one sensor at a time in 5 sec batches, in a different sensor order every batch
+        SampleAssembler batched = newAssembler(12000 * MS);
+        for (int batch = 0; batch < 4; batch++) {
+            int[] order = batch % 2 == 0 ? new int[]{0, 1, 2, 3, 4} : new int[]{4, 3, 2, 1, 0};
+            for (int stream : order) {
+                for (int k = batch * 500; k < batch * 500 + 500; k++) {
+                    send(batched, stream, events[stream][k]);
+                }
+            }
+        }
+        List<float[]> expected = new ArrayList<>(samples);
+        List<Long> expectedTimes = new ArrayList<>(times);
+        samples.clear();
+        times.clear();
+
+        // the same events one at a time
+        SampleAssembler interleaved = newAssembler(12000 * MS);
+        for (int k = 0; k < 2000; k++) {
+            for (int stream = 0; stream < 5; stream++) {
+                send(interleaved, stream, events[stream][k]);
+            }
+        }
+
+        assertTrue(expected.size() > 1990);
+        assertEquals(expected.size(), samples.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expectedTimes.get(i), times.get(i));
+            assertArrayEquals(expected.get(i), samples.get(i), 0f);
+        }
+    }
+
+    @Test
+    public void gap_skipsGridSamplesAndIsCounted() {
+        SampleAssembler assembler = newAssembler(1000 * MS);
+        for (long ms = 0; ms < 1000; ms += 10) {
+            for (int stream = 0; stream < 5; stream++) {
+                // accel drops out between 300 and 600 ms
+                if (stream == SampleAssembler.ACCEL && ms > 300 && ms < 600) {
+                    continue;
+                }
+                send(assembler, stream, ms * MS);
+            }
+        }
+        assertEquals(1, assembler.getGaps(SampleAssembler.ACCEL));
+        assertEquals(0, assembler.getGaps(SampleAssembler.GYRO));
+        assertEquals(29, assembler.getSkipped());
+        for (long t : times) {
+            assertTrue(t <= 300 * MS || t >= 600 * MS);
+        }
+    }
+
+    @Test
+    public void stalledStream_givenUpAfterMaxWait() {
+        SampleAssembler assembler = newAssembler(200 * MS);
+        for (long ms = 0; ms < 1000; ms += 10) {
+            for (int stream = 0; stream < 5; stream++) {
+                if (stream == SampleAssembler.MAG && ms > 100) {
+                    continue;   /* magnetometer stops */
+                }
+                send(assembler, stream, ms * MS);
+            }
+        }
+        // 0..100 ms are complete, 110..780 ms are given up (more than 200 ms behind the newest event at 990 ms)
+        assertEquals(11, assembler.getAssembled());
+        assertEquals(68, assembler.getSkipped());
+    }
+
+    @Test
+    public void drain_buildsTheWaitingSamples() {
+        SampleAssembler assembler = newAssembler(1000 * MS);
+        for (long ms = 0; ms < 1000; ms += 10) {
+            for (int stream = 0; stream < 5; stream++) {
+                if (stream == SampleAssembler.MAG && ms > 850) {
+                    continue;   /* the last magnetometer batch ends earlier */
+                }
+                send(assembler, stream, ms * MS);
+            }
+        }
+        assertEquals(86, assembler.getAssembled());     /* 0..850 ms, the rest waits for the magnetometer */
+
+        // end of the recording: 860..950 ms hold the last magnetometer value, 960..990 ms are too far from it
+        assembler.drain();
+        assertEquals(96, assembler.getAssembled());
+        assertEquals(4, assembler.getSkipped());
+        assertEquals(950 * MS, (long) times.get(times.size() - 1));
+        assertEquals(2 * line(SampleAssembler.MAG, 850 * MS), samples.get(samples.size() - 1)[8], 1e-3f);
+        assertEquals(line(SampleAssembler.GYRO, 950 * MS), samples.get(samples.size() - 1)[0], 1e-3f);
+        assembler.drain();
+        assertEquals(96, assembler.getAssembled());
+    }
+
+    @Test
+    public void jitterStatistics() {
+        SampleAssembler assembler = newAssembler(1000 * MS);
+        sendStream(assembler, SampleAssembler.GYRO, 0, 3000, 10, 0);
+        // intervals alternate 11, 11, 8 ms -> mean 10, sd sqrt(2)
+        assertEquals(10.0, assembler.meanInterval(SampleAssembler.GYRO), 0.01);
+        assertEquals(Math.sqrt(2.0), assembler.jitter(SampleAssembler.GYRO), 0.01);
+        assertTrue(assembler.statsString().contains("gyro events=300"));
+    }
+}
@@ -0,0 +1,86 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that SampleEncoder writes exactly the same 80 byte records as the original
+ * per-field ByteBuffer code in Classifier.newData.
+ */
+public class SampleEncoderTest {
+
+    /* Copy of the original encoding in Classifier.newData, used as the reference layout. */
+    private static byte[] legacyEncode(float[] sensor_reading, long timestamp, long timeStampSystem) {
+        byte[] SavePacket = new byte[Classifier.MAX_SIZE];
+        ByteBuffer Convert;
+        int length = 4, offset = 0;
+        for (int i = 0; i < 16; i++) {
+            Convert = (ByteBuffer) ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(sensor_reading[i]).rewind();
+            Convert.get(SavePacket, offset, length);
+            offset = offset + 4;
+        }
+        Convert = (ByteBuffer) ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(timestamp).rewind();
+        Convert.get(SavePacket, offset, length + 4);
+        Convert = (ByteBuffer) ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(timeStampSystem).rewind();
+        Convert.get(SavePacket, 72, 8);
+        return SavePacket;
+    }
+
+    @Test
+    public void recordSize_matchesClassifier() {
+        assertEquals(Classifier.MAX_SIZE, SampleEncoder.RECORD_SIZE);
+    }
+
+    @Test
+    public void encode_matchesLegacyLayout() {
+        Random random = new Random(42);
+        SampleEncoder encoder = new SampleEncoder();
+        float[] sensor_reading = new float[16];
+        for (int n = 0; n < 1000; n++) {
+            for (int i = 0; i < 16; i++) {
+                sensor_reading[i] = (random.nextFloat() - 0.5f) * 4000.0f;
+            }
+            long timestamp = 1700000000000L + n * 10L;
+            long timeStampSystem = timestamp + random.nextInt(50);
+            assertArrayEquals(legacyEncode(sensor_reading, timestamp, timeStampSystem),
+                    encoder.encode(sensor_reading, timestamp, timeStampSystem));
+        }
+    }
+
+    @Test
+    public void encode_specialFloatValues() {
+        SampleEncoder encoder = new SampleEncoder();
+        float[] sensor_reading = {Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, -0.0f,
+                Float.MIN_VALUE, Float.MAX_VALUE, 0, 1, -1, 57.3f, 9.80665f, 0, 0, 0, 0, 0};
+        assertArrayEquals(legacyEncode(sensor_reading, Long.MIN_VALUE, Long.MAX_VALUE),
+                encoder.encode(sensor_reading, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void encode_reusesRecordBuffer() {
+        SampleEncoder encoder = new SampleEncoder();
+        byte[] first = encoder.encode(new float[16], 1, 2);
+        byte[] second = encoder.encode(new float[16], 3, 4);
+        assertSame(first, second);
+    }
+
+    @Test
+    public void encode_atOffsetInLargerBuffer() {
+        float[] sensor_reading = new float[16];
+        for (int i = 0; i < 16; i++) {
+            sensor_reading[i] = i * 1.5f;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(3 * SampleEncoder.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        SampleEncoder.encode(batch, SampleEncoder.RECORD_SIZE, sensor_reading, 123L, 456L);
+        assertEquals(0, batch.position());
+
+        byte[] record = new byte[SampleEncoder.RECORD_SIZE];
+        System.arraycopy(batch.array(), SampleEncoder.RECORD_SIZE, record, 0, SampleEncoder.RECORD_SIZE);
+        assertArrayEquals(legacyEncode(sensor_reading, 123L, 456L), record);
+    }
+}
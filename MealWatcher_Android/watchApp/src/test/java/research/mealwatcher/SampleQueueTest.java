@@ -0,0 +1,105 @@
+package research.mealwatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SampleQueueTest {
+
+    private static float[] sample(int n) {
+        float[] s = new float[SampleEncoder.NUM_CHANNELS];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = n * 100 + i;
+        }
+        return s;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacity_mustBePowerOfTwo() {
+        new SampleQueue(100);
+    }
+
+    @Test
+    public void drain_returnsSamplesInOrder() {
+        SampleQueue queue = new SampleQueue(8);
+        for (int n = 0; n < 5; n++) {
+            assertTrue(queue.offer(sample(n), n * 10L, n * 20L));
+        }
+        assertEquals(5, queue.depth());
+
+        List<float[]> readings = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        int drained = queue.drain((r, t, sys) -> {
+            readings.add(r.clone());
+            times.add(t);
+            assertEquals(t * 2, sys);
+        });
+
+        assertEquals(5, drained);
+        assertEquals(0, queue.depth());
+        for (int n = 0; n < 5; n++) {
+            assertArrayEquals(sample(n), readings.get(n), 0f);
+            assertEquals(n * 10L, (long) times.get(n));
+        }
+    }
+
+    @Test
+    public void offer_whenFull_dropsAndCounts() {
+        SampleQueue queue = new SampleQueue(4);
+        for (int n = 0; n < 4; n++) {
+            assertTrue(queue.offer(sample(n), n, n));
+        }
+        assertFalse(queue.offer(sample(4), 4, 4));
+        assertFalse(queue.offer(sample(5), 5, 5));
+        assertEquals(2, queue.getDropped());
+        assertEquals(4, queue.getHighWaterMark());
+
+        // the oldest samples are kept, the new ones were dropped
+        long[] first = new long[1];
+        first[0] = -1;
+        queue.drain((r, t, sys) -> {
+            if (first[0] < 0) first[0] = t;
+        });
+        assertEquals(0, first[0]);
+        assertTrue(queue.offer(sample(6), 6, 6));
+    }
+
+    @Test
+    public void concurrentProducerConsumer_noLossWhenNotFull() throws Exception {
+        final int total = 200000;
+        final SampleQueue queue = new SampleQueue(1024);
+        final long[] next = new long[1];
+        final boolean[] ok = {true};
+
+        Thread consumer = new Thread(() -> {
+            while (next[0] < total) {
+                queue.drain((r, t, sys) -> {
+                    if (t != next[0] || r[0] != (float) (t % 1000) || r[15] != (float) (t % 1000) + 15) {
+                        ok[0] = false;
+                    }
+                    next[0]++;
+                });
+            }
+        });
+        consumer.start();
+
+        float[] s = new float[SampleEncoder.NUM_CHANNELS];
+        for (long n = 0; n < total; n++) {
+            for (int i = 0; i < s.length; i++) {
+                s[i] = (float) (n % 1000) + i;
+            }
+            while (!queue.offer(s, n, n)) {
+                // spin until the consumer frees a slot; this test checks ordering, not drops
+                Thread.yield();
+            }
+        }
+        consumer.join(30000);
+
+        assertTrue(ok[0]);
+        assertEquals(total, next[0]);
+        assertTrue(queue.getHighWaterMark() <= 1024);
+    }
+}